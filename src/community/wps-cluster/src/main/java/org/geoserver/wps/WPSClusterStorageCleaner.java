@@ -60,10 +60,10 @@ public class WPSClusterStorageCleaner extends WPSStorageCleaner {
             if (!getStorage().exists())
                 return;
 
-            // ok, now scan for existing files there and clean up those
-            // that are too old
+            // ok, now clean up the files that are too old
             long now = System.currentTimeMillis();
-            cleanupDirectory(getStorage(), now); // call parent method
+            cleanupExpired(now); // call parent method
+            enforceQuota();
             cleanupStorage(now);
         } catch (Exception e) {
             LOGGER.log(Level.WARNING, "Error occurred while trying to clean up "
@@ -14,7 +14,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.Callable;
-import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -125,14 +124,7 @@ public class ClusterProcessManager extends DefaultProcessManager {
                 : new ClusterProcessListener((ClusterExecutionStatus) status);
         status.listener = listener;
         final ClusterProcessCallable callable = new ClusterProcessCallable(inputs, status, listener);
-        Future<Map<String, Object>> future;
-        if (background) {
-            future = asynchService.submit(callable);
-        } else {
-            future = synchService.submit(callable);
-        }
-
-        status.future = future;
+        status.future = schedule(callable, processName, background);
         executions.put(executionId, status);
     }
 
@@ -0,0 +1,116 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
+/**
+ * Base64 encodes the bytes written into it and passes the resulting characters to a SAX
+ * {@link ContentHandler} in fixed size chunks, so that binary outputs can be inlined in the XML
+ * response without holding them in memory. The stream must be closed to write out the final
+ * padding, closing it does not affect the content handler
+ * 
+ * @author Andrea Aime - GeoSolutions
+ */
+class Base64ContentHandlerStream extends OutputStream {
+
+    static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+            .toCharArray();
+
+    /**
+     * Size of the char chunks sent to the content handler, a multiple of 4
+     */
+    static final int BUFFER_SIZE = 4096;
+
+    ContentHandler handler;
+
+    char[] chars = new char[BUFFER_SIZE];
+
+    int charCount;
+
+    /**
+     * The bytes waiting to form a full three bytes group
+     */
+    int pending;
+
+    int pendingCount;
+
+    boolean closed;
+
+    public Base64ContentHandlerStream(ContentHandler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        pending = (pending << 8) | (b & 0xFF);
+        if (++pendingCount == 3) {
+            encode(pending, 4);
+            pending = 0;
+            pendingCount = 0;
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        int i = off;
+        // complete the pending group, if any
+        while (pendingCount > 0 && i < end) {
+            write(b[i++]);
+        }
+        // then go straight for the full groups
+        for (; i + 3 <= end; i += 3) {
+            encode(((b[i] & 0xFF) << 16) | ((b[i + 1] & 0xFF) << 8) | (b[i + 2] & 0xFF), 4);
+        }
+        while (i < end) {
+            write(b[i++]);
+        }
+    }
+
+    /**
+     * Encodes a 24 bits group, emitting only the first "count" chars of it
+     */
+    void encode(int group, int count) throws IOException {
+        if (charCount + 4 > chars.length) {
+            flushChars();
+        }
+        for (int shift = 18, c = 0; c < count; shift -= 6, c++) {
+            chars[charCount++] = ALPHABET[(group >> shift) & 0x3F];
+        }
+        for (int c = count; c < 4; c++) {
+            chars[charCount++] = '=';
+        }
+    }
+
+    void flushChars() throws IOException {
+        if (charCount > 0) {
+            try {
+                handler.characters(chars, 0, charCount);
+            } catch (SAXException e) {
+                throw new IOException("Failed to write out the base64 encoded data", e);
+            }
+            charCount = 0;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (pendingCount == 1) {
+            encode(pending << 16, 2);
+        } else if (pendingCount == 2) {
+            encode(pending << 8, 3);
+        }
+        flushChars();
+    }
+}
@@ -4,10 +4,8 @@
  */
 package org.geoserver.wps;
 
-import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
 
-import org.apache.commons.codec.binary.Base64;
 import org.geoserver.wps.ppio.BinaryPPIO;
 import org.geotools.xml.EncoderDelegate;
 import org.xml.sax.ContentHandler;
@@ -29,11 +27,10 @@ public class BinaryEncoderDelegate implements EncoderDelegate {
     }
 
     public void encode(ContentHandler output) throws Exception {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        ppio.encode(object, bos);
-
-        char[] chars = new String(Base64.encodeBase64(bos.toByteArray())).toCharArray();
-        output.characters(chars, 0, chars.length);
+        // stream the base64 chars to the handler, without holding the output in memory
+        Base64ContentHandlerStream os = new Base64ContentHandlerStream(output);
+        ppio.encode(object, os);
+        os.close();
     }
 
     public void encode(OutputStream os) throws Exception {
@@ -6,11 +6,15 @@
 package org.geoserver.wps;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.logging.Logger;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import net.opengis.ows11.CodeType;
 import net.opengis.wps10.DescribeProcessType;
 import net.opengis.wps10.ExecuteResponseType;
 import net.opengis.wps10.ExecuteType;
@@ -20,6 +24,8 @@ import net.opengis.wps10.WPSCapabilitiesType;
 
 import org.geoserver.config.GeoServer;
 import org.geoserver.config.GeoServerInfo;
+import org.geoserver.ows.URLMangler.URLType;
+import org.geoserver.ows.util.ResponseUtils;
 import org.geoserver.wps.executor.WPSExecutionManager;
 import org.geotools.util.logging.Logging;
 import org.springframework.beans.BeansException;
@@ -42,6 +48,8 @@ public class DefaultWebProcessingService implements WebProcessingService, Applic
 
     protected WPSExecutionManager executionManager;
 
+    protected WPSDocumentCache documentCache;
+
     public DefaultWebProcessingService(GeoServer gs, WPSExecutionManager executionManager) {
         this.wps = gs.getService(WPSInfo.class);
         this.gs = gs.getGlobal();
@@ -58,15 +66,64 @@ public class DefaultWebProcessingService implements WebProcessingService, Applic
     /**
      * @see org.geoserver.wps.WebProcessingService#getCapabilities
      */
-    public WPSCapabilitiesType getCapabilities(GetCapabilitiesType request) throws WPSException {
-        return new GetCapabilities(this.wps, context).run(request);
+    public WPSCapabilitiesType getCapabilities(final GetCapabilitiesType request)
+            throws WPSException {
+        if (documentCache == null) {
+            return new GetCapabilities(this.wps, context).run(request);
+        }
+
+        // the operation urls depend on the base url and on the url manglers
+        String serviceURL = null;
+        if (request.getBaseUrl() != null) {
+            serviceURL = ResponseUtils.buildURL(request.getBaseUrl(), "wps", null,
+                    URLType.SERVICE);
+        }
+        List<String> versions = null;
+        if (request.getAcceptVersions() != null) {
+            versions = new ArrayList<String>(request.getAcceptVersions().getVersion());
+        }
+        Object key = WPSDocumentCache.key("GetCapabilities", versions, request.getLanguage(),
+                serviceURL);
+        return documentCache.get(key, new Callable<WPSCapabilitiesType>() {
+
+            @Override
+            public WPSCapabilitiesType call() throws Exception {
+                return new GetCapabilities(wps, context).run(request);
+            }
+        });
     }
 
     /**
      * @see org.geoserver.wps.WebProcessingService#describeProcess
      */
-    public ProcessDescriptionsType describeProcess(DescribeProcessType request) throws WPSException {
-        return new DescribeProcess(this.wps, context).run(request);
+    public ProcessDescriptionsType describeProcess(final DescribeProcessType request)
+            throws WPSException {
+        if (documentCache == null) {
+            return new DescribeProcess(this.wps, context).run(request);
+        }
+
+        List<String> identifiers = new ArrayList<String>();
+        for (Object id : request.getIdentifier()) {
+            identifiers.add(((CodeType) id).getValue());
+        }
+        Object key = WPSDocumentCache.key("DescribeProcess", identifiers, request.getLanguage());
+        return documentCache.get(key, new Callable<ProcessDescriptionsType>() {
+
+            @Override
+            public ProcessDescriptionsType call() throws Exception {
+                return new DescribeProcess(wps, context).run(request);
+            }
+        });
+    }
+
+    /**
+     * Sets the cache for the capabilities and process descriptions, if null the documents are
+     * built at each request
+     * 
+     * @param documentCache
+     */
+    public void setDocumentCache(WPSDocumentCache documentCache) {
+        this.documentCache = documentCache;
     }
 
     /**
@@ -61,7 +61,12 @@ public class DescribeProcess {
     WPSInfo wps;
     ApplicationContext context;
     Locale locale;
-    XSProfile xsp;
+    XSProfile xsp = XSP;
+
+    /**
+     * The profile only holds static mappings, it can be shared
+     */
+    static final XSProfile XSP = new XSProfile();
     
     Wps10Factory wpsf = Wps10Factory.eINSTANCE;
     Ows11Factory owsf = Ows11Factory.eINSTANCE; 
@@ -87,10 +92,6 @@ public class DescribeProcess {
         this.wps = wps;
         this.context = context;
         locale = Locale.getDefault();
-        
-        //TODO: creating this ever time this operation is performed is sort of silly
-        // some sort of singleton would be nice
-        xsp = new XSProfile();
     }
 
     public ProcessDescriptionsType run(DescribeProcessType request) {
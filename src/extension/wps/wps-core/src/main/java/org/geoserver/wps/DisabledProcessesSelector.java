@@ -68,6 +68,8 @@ public class DisabledProcessesSelector extends ProcessSelector implements GeoSer
                 }
             }
         }
+        // the filtered factories need to be computed again
+        GeoServerProcessors.clearCache();
     }
 
 }
@@ -15,6 +15,8 @@ import net.opengis.wps10.ExecuteType;
 import net.opengis.wps10.OutputDefinitionType;
 import net.opengis.wps10.ResponseDocumentType;
 
+import org.geoserver.ows.Dispatcher;
+import org.geoserver.ows.Request;
 import org.geoserver.wps.executor.ExecuteResponseBuilder;
 import org.geoserver.wps.executor.ExecuteRequest;
 import org.geoserver.wps.executor.WPSExecutionManager;
@@ -68,12 +70,22 @@ public class Execute {
 
         // TODO: get the startup time from the execution status
         ExecuteResponseBuilder builder = new ExecuteResponseBuilder(execute, context, new Date());
-        String executionId = executionManager.submit(request, !request.isAsynchronous());
+        String executionId;
+        try {
+            executionId = executionManager.submit(request, !request.isAsynchronous());
+        } catch (ServerBusyException e) {
+            throw serverBusy(e);
+        }
         builder.setExecutionId(executionId);
+        builder.setOutputEncoders(executionManager.getOutputEncoders());
+        builder.setMaxInlineOutputSize(executionManager.getMaxInlineOutputSize());
         if (!request.isAsynchronous()) {
             try {
                 Map<String, Object> outputs = executionManager.getOutput(executionId, -1);
                 builder.setOutputs(outputs);
+            } catch (ServerBusyException e) {
+                // the process never got to run, report it as a service exception
+                throw serverBusy(e);
             } catch (Exception e) {
                 LOGGER.log(Level.SEVERE, "Process execution failed", e);
                 builder.setException(e);
@@ -83,4 +95,17 @@ public class Execute {
         return builder.build();
     }
 
+    /**
+     * Adds the Retry-After header to the response, so that well behaved clients know when to come
+     * back
+     */
+    ServerBusyException serverBusy(ServerBusyException e) {
+        LOGGER.log(Level.INFO, e.getMessage());
+        Request request = Dispatcher.REQUEST.get();
+        if (request != null && request.getHttpResponse() != null) {
+            request.getHttpResponse().setHeader("Retry-After", String.valueOf(e.getRetryAfter()));
+        }
+        return e;
+    }
+
 }
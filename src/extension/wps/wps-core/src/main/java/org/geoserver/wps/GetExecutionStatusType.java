@@ -19,6 +19,8 @@ public class GetExecutionStatusType {
 
     String baseUrl;
 
+    Integer waitTimeout;
+
     public String getService() {
         return service;
     }
@@ -51,6 +53,18 @@ public class GetExecutionStatusType {
         this.baseUrl = baseUrl;
     }
 
+    /**
+     * The time, in seconds, the request can wait for the status of the process to change before
+     * returning (vendor parameter)
+     */
+    public Integer getWaitTimeout() {
+        return waitTimeout;
+    }
+
+    public void setWaitTimeout(Integer waitTimeout) {
+        this.waitTimeout = waitTimeout;
+    }
+
     @Override
     public String toString() {
         return "StatusType [service=" + service + ", version=" + version + ", executionId="
@@ -65,6 +79,7 @@ public class GetExecutionStatusType {
         result = prime * result + ((executionId == null) ? 0 : executionId.hashCode());
         result = prime * result + ((service == null) ? 0 : service.hashCode());
         result = prime * result + ((version == null) ? 0 : version.hashCode());
+        result = prime * result + ((waitTimeout == null) ? 0 : waitTimeout.hashCode());
         return result;
     }
 
@@ -97,6 +112,11 @@ public class GetExecutionStatusType {
                 return false;
         } else if (!version.equals(other.version))
             return false;
+        if (waitTimeout == null) {
+            if (other.waitTimeout != null)
+                return false;
+        } else if (!waitTimeout.equals(other.waitTimeout))
+            return false;
         return true;
     }
 
@@ -6,8 +6,7 @@ package org.geoserver.wps;
 
 import java.io.File;
 
-import net.opengis.wps10.ExecuteResponseType;
-
+import org.geoserver.wps.executor.EncodedStatus;
 import org.geoserver.wps.executor.WPSExecutionManager;
 
 public class GetStatus {
@@ -19,8 +18,17 @@ public class GetStatus {
     }
 
     public Object run(GetExecutionStatusType request) {
-        // see if the process is still in-flight
-        ExecuteResponseType status = executionManager.getStatus(request.getExecutionId());
+        // see if the process is still in-flight (the status document is cached, polling
+        // clients won't cause it to be rebuilt on each call)
+        EncodedStatus status;
+        Integer waitTimeout = request.getWaitTimeout();
+        if (waitTimeout != null && waitTimeout > 0) {
+            // long polling, hold the request until the status changes
+            status = executionManager.getEncodedStatus(request.getExecutionId(),
+                    waitTimeout * 1000L);
+        } else {
+            status = executionManager.getEncodedStatus(request.getExecutionId());
+        }
         if (status != null) {
             return status;
         }
@@ -51,6 +51,29 @@ public interface ProcessGroupInfo extends Info, Cloneable {
      */
     public List<Name> getFilteredProcesses();
 
+    /**
+     * The list of processes generated by this factory that are deterministic, and whose results
+     * can thus be cached and reused for identical requests
+     * 
+     * @return
+     */
+    public List<Name> getCacheableProcesses();
+
+    /**
+     * The weight of this group when sharing the execution slots with other groups. When several
+     * groups have queued processes, each one gets slots in proportion to its weight (defaults to 1)
+     * 
+     * @return
+     */
+    public int getWeight();
+
+    /**
+     * Sets the weight of this process group, it must be a positive number
+     * 
+     * @param weight
+     */
+    public void setWeight(int weight);
+
     /**
      * The metadata map, can contain any sort of information that non core plugins might use to
      * handle information related to this factory
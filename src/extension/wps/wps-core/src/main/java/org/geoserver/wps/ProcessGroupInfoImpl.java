@@ -17,11 +17,17 @@ public class ProcessGroupInfoImpl implements ProcessGroupInfo {
 
     private static final long serialVersionUID = 4850653421657310854L;
 
+    static final int DEFAULT_WEIGHT = 1;
+
     Class<? extends ProcessFactory> factoryClass;
 
     boolean enabled;
 
     List<Name> filteredProcesses = new ArrayList<Name>();
+
+    List<Name> cacheableProcesses = new ArrayList<Name>();
+
+    Integer weight;
     
     MetadataMap metadataMap = new MetadataMap();
 
@@ -54,6 +60,26 @@ public class ProcessGroupInfoImpl implements ProcessGroupInfo {
         this.filteredProcesses = filteredProcesses;
     }
 
+    public List<Name> getCacheableProcesses() {
+        // configurations saved before the result cache was introduced do not have it
+        if (cacheableProcesses == null) {
+            cacheableProcesses = new ArrayList<Name>();
+        }
+        return cacheableProcesses;
+    }
+
+    public void setCacheableProcesses(List<Name> cacheableProcesses) {
+        this.cacheableProcesses = cacheableProcesses;
+    }
+
+    public int getWeight() {
+        return weight == null ? DEFAULT_WEIGHT : weight;
+    }
+
+    public void setWeight(int weight) {
+        this.weight = weight;
+    }
+
     @Override
     public MetadataMap getMetadata() {
         return metadataMap;
@@ -64,9 +90,11 @@ public class ProcessGroupInfoImpl implements ProcessGroupInfo {
         ProcessGroupInfoImpl clone = new ProcessGroupInfoImpl();
         clone.setEnabled(enabled);
         clone.setFactoryClass(factoryClass);
+        clone.weight = weight;
         if(filteredProcesses != null) {
             clone.setFilteredProcesses(new ArrayList<Name>(filteredProcesses));
         } 
+        clone.setCacheableProcesses(new ArrayList<Name>(getCacheableProcesses()));
         if(metadataMap != null) {
             clone.metadataMap = new MetadataMap(new HashMap<String, Serializable>(metadataMap));
         }
@@ -81,7 +109,9 @@ public class ProcessGroupInfoImpl implements ProcessGroupInfo {
         result = prime * result + (enabled ? 1231 : 1237);
         result = prime * result + ((factoryClass == null) ? 0 : factoryClass.hashCode());
         result = prime * result + ((filteredProcesses == null) ? 0 : filteredProcesses.hashCode());
+        result = prime * result + getCacheableProcesses().hashCode();
         result = prime * result + ((metadataMap == null) ? 0 : metadataMap.hashCode());
+        result = prime * result + getWeight();
         return result;
     }
 
@@ -106,18 +136,24 @@ public class ProcessGroupInfoImpl implements ProcessGroupInfo {
                 return false;
         } else if (!filteredProcesses.equals(other.filteredProcesses))
             return false;
+        if (!getCacheableProcesses().equals(other.getCacheableProcesses()))
+            return false;
         if (metadataMap == null) {
             if (other.metadataMap != null)
                 return false;
         } else if (!metadataMap.equals(other.metadataMap))
             return false;
+        if (getWeight() != other.getWeight())
+            return false;
         return true;
     }
 
     @Override
     public String toString() {
         return "ProcessFactoryInfoImpl [factoryClass=" + factoryClass + ", enabled=" + enabled
-                + ", filteredProcesses=" + filteredProcesses + ", metadataMap=" + metadataMap + "]";
+                + ", filteredProcesses=" + filteredProcesses + ", cacheableProcesses="
+                + cacheableProcesses + ", weight=" + getWeight()
+                + ", metadataMap=" + metadataMap + "]";
     }
     
     
@@ -8,7 +8,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
-import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.io.IOUtils;
 import org.geoserver.wps.process.RawData;
 import org.geotools.xml.EncoderDelegate;
@@ -32,20 +31,9 @@ public class RawDataEncoderDelegate implements EncoderDelegate {
         InputStream is = null;
         try {
             is = rawData.getInputStream();
-            byte[] buffer = new byte[4096];
-            int read = 0;
-            while ((read = is.read(buffer)) > 0) {
-                char[] chars;
-                if (read == 4096) {
-                    chars = new String(Base64.encodeBase64(buffer)).toCharArray();
-                } else {
-                    byte[] reducedBuffer = new byte[read];
-                    System.arraycopy(buffer, 0, reducedBuffer, 0, read);
-                    chars = new String(Base64.encodeBase64(reducedBuffer)).toCharArray();
-                }
-
-                output.characters(chars, 0, chars.length);
-            }
+            Base64ContentHandlerStream os = new Base64ContentHandlerStream(output);
+            IOUtils.copy(is, os);
+            os.close();
         } finally {
             IOUtils.closeQuietly(is);
         }
@@ -0,0 +1,41 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps;
+
+/**
+ * Thrown when the server cannot accept or run a process execution because it is overloaded. It
+ * maps to the "ServerBusy" WPS exception code, and carries a hint about how long the client should
+ * wait before trying again
+ * 
+ * @author Andrea Aime - GeoSolutions
+ */
+public class ServerBusyException extends WPSException {
+
+    private static final long serialVersionUID = -2398451235667187142L;
+
+    public static final String SERVER_BUSY = "ServerBusy";
+
+    int retryAfter;
+
+    /**
+     * Builds a new exception
+     * 
+     * @param message The error message
+     * @param retryAfter The number of seconds after which the client might retry the request
+     */
+    public ServerBusyException(String message, int retryAfter) {
+        super(message, SERVER_BUSY, null);
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * The number of seconds after which the client might retry the request
+     * 
+     * @return
+     */
+    public int getRetryAfter() {
+        return retryAfter;
+    }
+}
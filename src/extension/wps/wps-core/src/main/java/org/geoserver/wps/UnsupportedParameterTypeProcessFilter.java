@@ -4,13 +4,32 @@
  */
 package org.geoserver.wps;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.apache.commons.io.IOUtils;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.platform.GeoServerResourceLoader;
+import org.geoserver.platform.resource.Resource;
+import org.geoserver.wps.ppio.ComplexPPIO;
+import org.geoserver.wps.ppio.PPIORegistry;
 import org.geoserver.wps.ppio.ProcessParameterIO;
+import org.geoserver.wps.process.GeoServerProcessors;
 import org.geoserver.wps.process.ProcessSelector;
 import org.geotools.data.Parameter;
 import org.geotools.process.ProcessFactory;
@@ -20,66 +39,359 @@ import org.opengis.feature.type.Name;
 import org.springframework.beans.BeansException;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * A process filter that removes from the supported processes the ones that have inputs of outputs
  * we cannot deal with using the available {@link ProcessParameterIO} objects
- * 
+ * <p>
+ * Each factory is checked the first time it goes through the filter, and once the application
+ * context is started all the factories are checked in parallel in the background. The results
+ * are stored in the data directory for the factories declaring a release implementation version,
+ * and reused as long as the factory version, process version and signature, and available PPIO
+ * stay the same. The process signature is part of the key as the processes of some factories,
+ * like the scripting ones, are defined in the data directory. The results are written once the
+ * background checks are done
+ * </p>
+ *
  * @author Andrea Aime - GeoSolutions
  *
  */
-public class UnsupportedParameterTypeProcessFilter extends ProcessSelector implements ApplicationContextAware {
-    
+public class UnsupportedParameterTypeProcessFilter extends ProcessSelector implements
+        ApplicationContextAware, ApplicationListener<ContextRefreshedEvent> {
+
     static final Logger LOGGER = Logging.getLogger(UnsupportedParameterTypeProcessFilter.class);
-    
-    private Set<Name> processBlacklist = new HashSet<Name>();
-    
+
+    static final String CACHE_FILE = "wps-cache/process-support.properties";
+
+    static final String FINGERPRINT_KEY = "ppio.fingerprint";
+
+    static final String SNAPSHOT_SUFFIX = "-SNAPSHOT";
+
+    private Set<Name> processBlacklist = Collections
+            .newSetFromMap(new ConcurrentHashMap<Name, Boolean>());
+
+    ConcurrentHashMap<ProcessFactory, FutureTask<Void>> checks = new ConcurrentHashMap<ProcessFactory, FutureTask<Void>>();
+
+    ApplicationContext context;
+
+    /**
+     * The results of the previous checks, loaded from the data directory on demand
+     */
+    Properties supportCache;
+
+    /**
+     * The cache keys used since the context got started, the others are dropped when storing
+     */
+    Set<String> usedKeys = new HashSet<String>();
+
+    /**
+     * True if the cached results changed since they were last stored
+     */
+    boolean supportCacheUpdated;
+
+    /**
+     * True once the background checks are done, from then on updates are stored right away
+     */
+    boolean warmupCompleted;
+
     @Override
     protected boolean allowProcess(Name processName) {
         return !processBlacklist.contains(processName);
     }
 
+    @Override
+    public ProcessFactory filterFactory(ProcessFactory pf) {
+        check(pf);
+        return super.filterFactory(pf);
+    }
+
     @Override
     public void setApplicationContext(ApplicationContext context) throws BeansException {
+        this.context = context;
         processBlacklist.clear();
-        
-        for (ProcessFactory pf : Processors.getProcessFactories()) {
+        checks.clear();
+        synchronized (this) {
+            supportCache = null;
+            usedKeys.clear();
+            supportCacheUpdated = false;
+            warmupCompleted = false;
+        }
+        GeoServerProcessors.clearCache();
+    }
+
+    @Override
+    public void onApplicationEvent(ContextRefreshedEvent event) {
+        if (event.getApplicationContext() != context) {
+            return;
+        }
+
+        // warm up in the background, the filter will wait only for the factories it needs
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setDaemon(true)
+                        .setNameFormat("wps-process-check-%d").build());
+        Set<ProcessFactory> factories = Processors.getProcessFactories();
+        if (factories.isEmpty()) {
+            checksCompleted();
+        }
+        // the results are stored once, by the last check to complete
+        final AtomicInteger remaining = new AtomicInteger(factories.size());
+        for (final ProcessFactory pf : factories) {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        check(pf);
+                    } finally {
+                        if (remaining.decrementAndGet() == 0) {
+                            checksCompleted();
+                        }
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+    }
+
+    synchronized void checksCompleted() {
+        warmupCompleted = true;
+        if (supportCacheUpdated) {
+            storeSupportCache();
+        }
+    }
+
+    /**
+     * Checks the processes of the factory, unless done already, waiting for the check to
+     * complete if another thread is running it
+     */
+    void check(ProcessFactory pf) {
+        FutureTask<Void> task = checks.get(pf);
+        if (task == null) {
+            FutureTask<Void> created = new FutureTask<Void>(new FactoryCheck(pf), null);
+            task = checks.putIfAbsent(pf, created);
+            if (task == null) {
+                task = created;
+            }
+        }
+        // does nothing if already run, or running in another thread
+        task.run();
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.WARNING, "Failed to check the processes of " + pf.getTitle(),
+                    e.getCause());
+        }
+    }
+
+    class FactoryCheck implements Runnable {
+
+        ProcessFactory pf;
+
+        FactoryCheck(ProcessFactory pf) {
+            this.pf = pf;
+        }
+
+        @Override
+        public void run() {
+            String factoryVersion = getCacheableVersion(pf);
+            boolean updated = false;
             int count = 0;
             for (Name name : pf.getNames()) {
+                String key = null;
+                Boolean supported = null;
                 try {
-                    // check inputs
-                    for (Parameter<?> p : pf.getParameterInfo(name).values()) {
-                        List<ProcessParameterIO> ppios = ProcessParameterIO.findAll(p,
-                                context);
-                        if (ppios.isEmpty()) {
-                            LOGGER.log(Level.INFO, "Blacklisting process " + name.getURI()
-                                    + " as the input " + p.key + " of type " + p.type
-                                    + " cannot be handled");
-                            processBlacklist.add(name);
-                        }
+                    if (factoryVersion != null) {
+                        key = pf.getClass().getName() + "/" + factoryVersion + "/"
+                                + name.getURI() + "/" + pf.getVersion(name) + "/"
+                                + getSignatureFingerprint(pf, name);
+                        supported = getCachedSupport(key);
                     }
-
-                    // check outputs
-                    for (Parameter<?> p : pf.getResultInfo(name, null).values()) {
-                        List<ProcessParameterIO> ppios = ProcessParameterIO.findAll(p,
-                                context);
-                        if (ppios.isEmpty()) {
-                            LOGGER.log(Level.INFO, "Blacklisting process " + name.getURI()
-                                    + " as the output " + p.key + " of type " + p.type
-                                    + " cannot be handled");
-                            processBlacklist.add(name);
+                    if (supported == null) {
+                        supported = isSupported(pf, name);
+                        if (key != null) {
+                            setCachedSupport(key, supported);
+                            updated = true;
                         }
                     }
                 } catch (Throwable t) {
-                    processBlacklist.add(name);
+                    supported = false;
                 }
 
-                if (!processBlacklist.contains(name)) {
+                if (supported) {
                     count++;
+                } else {
+                    processBlacklist.add(name);
                 }
             }
+            if (updated) {
+                supportCacheUpdated();
+            }
             LOGGER.info("Found " + count + " bindable processes in " + pf.getTitle());
         }
     }
 
+    /**
+     * Returns the factory implementation version, or null if the check results should not be
+     * stored for it: a snapshot can change without its version doing the same
+     */
+    String getCacheableVersion(ProcessFactory pf) {
+        String version = getImplementationVersion(pf);
+        if (version == null || version.endsWith(SNAPSHOT_SUFFIX)) {
+            return null;
+        }
+        return version;
+    }
+
+    String getImplementationVersion(ProcessFactory pf) {
+        Package pkg = pf.getClass().getPackage();
+        return pkg != null ? pkg.getImplementationVersion() : null;
+    }
+
+    /**
+     * Summarizes the names and types of the process inputs and outputs, the only bits the PPIO
+     * lookup depends on
+     */
+    String getSignatureFingerprint(ProcessFactory pf, Name name) {
+        Hasher hasher = Hashing.md5().newHasher();
+        Charset charset = Charset.forName("UTF-8");
+        for (Parameter<?> p : pf.getParameterInfo(name).values()) {
+            hasher.putString("in:" + p.key + ":" + p.type.getName() + ";", charset);
+        }
+        for (Parameter<?> p : pf.getResultInfo(name, null).values()) {
+            hasher.putString("out:" + p.key + ":" + p.type.getName() + ";", charset);
+        }
+        return hasher.hash().toString();
+    }
+
+    boolean isSupported(ProcessFactory pf, Name name) {
+        // check inputs
+        for (Parameter<?> p : pf.getParameterInfo(name).values()) {
+            List<ProcessParameterIO> ppios = ProcessParameterIO.findAll(p, context);
+            if (ppios.isEmpty()) {
+                LOGGER.log(Level.INFO, "Blacklisting process " + name.getURI() + " as the input "
+                        + p.key + " of type " + p.type + " cannot be handled");
+                return false;
+            }
+        }
+
+        // check outputs
+        for (Parameter<?> p : pf.getResultInfo(name, null).values()) {
+            List<ProcessParameterIO> ppios = ProcessParameterIO.findAll(p, context);
+            if (ppios.isEmpty()) {
+                LOGGER.log(Level.INFO, "Blacklisting process " + name.getURI() + " as the output "
+                        + p.key + " of type " + p.type + " cannot be handled");
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    synchronized Boolean getCachedSupport(String key) {
+        usedKeys.add(key);
+        String value = getSupportCache().getProperty(key);
+        return value == null ? null : Boolean.valueOf(value);
+    }
+
+    synchronized void setCachedSupport(String key, boolean supported) {
+        usedKeys.add(key);
+        getSupportCache().setProperty(key, String.valueOf(supported));
+    }
+
+    /**
+     * Stores the updated results, unless the background checks are still running, in that case
+     * they will be stored once the checks are done
+     */
+    synchronized void supportCacheUpdated() {
+        supportCacheUpdated = true;
+        if (warmupCompleted) {
+            storeSupportCache();
+        }
+    }
+
+    /**
+     * Loads the results of the previous checks, dropping them if the available PPIO changed
+     */
+    Properties getSupportCache() {
+        if (supportCache == null) {
+            supportCache = new Properties();
+            String fingerprint = getPPIOFingerprint();
+            Resource resource = getSupportCacheResource();
+            if (resource != null && resource.getType() == Resource.Type.RESOURCE) {
+                InputStream is = null;
+                try {
+                    is = resource.in();
+                    supportCache.load(is);
+                } catch (Exception e) {
+                    LOGGER.log(Level.FINE, "Could not read the process support cache", e);
+                    supportCache.clear();
+                } finally {
+                    IOUtils.closeQuietly(is);
+                }
+            }
+            if (!fingerprint.equals(supportCache.getProperty(FINGERPRINT_KEY))) {
+                supportCache.clear();
+                supportCache.setProperty(FINGERPRINT_KEY, fingerprint);
+            }
+        }
+        return supportCache;
+    }
+
+    synchronized void storeSupportCache() {
+        Resource resource = getSupportCacheResource();
+        if (resource == null || supportCache == null) {
+            return;
+        }
+        // drop the results of the processes that are gone, or whose signature changed
+        String fingerprint = supportCache.getProperty(FINGERPRINT_KEY);
+        supportCache.keySet().retainAll(usedKeys);
+        supportCache.setProperty(FINGERPRINT_KEY, fingerprint);
+        supportCacheUpdated = false;
+        OutputStream os = null;
+        try {
+            os = resource.out();
+            supportCache.store(os, "Processes supported by the available PPIO");
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "Could not write the process support cache", e);
+        } finally {
+            IOUtils.closeQuietly(os);
+        }
+    }
+
+    Resource getSupportCacheResource() {
+        GeoServerResourceLoader loader = context != null ? GeoServerExtensions.bean(
+                GeoServerResourceLoader.class, context) : null;
+        return loader != null ? loader.get(CACHE_FILE) : null;
+    }
+
+    /**
+     * Summarizes the available PPIO, so that the cached results can be discarded when they change
+     */
+    String getPPIOFingerprint() {
+        List<String> descriptions = new ArrayList<String>();
+        for (ProcessParameterIO ppio : PPIORegistry.getAll(context)) {
+            String description = ppio.getClass().getName() + ":" + ppio.getType().getName() + ":"
+                    + ppio.getIdentifer();
+            if (ppio instanceof ComplexPPIO) {
+                description += ":" + ((ComplexPPIO) ppio).getMimeType();
+            }
+            descriptions.add(description);
+        }
+        Collections.sort(descriptions);
+        Hasher hasher = Hashing.md5().newHasher();
+        for (String description : descriptions) {
+            hasher.putString(description, Charset.forName("UTF-8"));
+        }
+        return hasher.hash().toString();
+    }
+
 }
@@ -0,0 +1,140 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geoserver.config.ConfigurationListenerAdapter;
+import org.geoserver.config.GeoServer;
+import org.geoserver.config.GeoServerInfo;
+import org.geoserver.config.GeoServerInitializer;
+import org.geoserver.config.ServiceInfo;
+import org.geoserver.config.SettingsInfo;
+import org.geoserver.wps.process.GeoServerProcessors;
+import org.geotools.process.ProcessFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Keeps the capabilities and process descriptions documents around, so that they are not built
+ * again at every request. The documents returned for the same request are the same object, which
+ * allows {@link org.geoserver.wps.response.CachingWPSObjectEncodingResponse} to encode them only
+ * once.
+ * <p>
+ * The cache is dropped when the WPS or global configuration changes, or when the set of available
+ * process factories changes. Invalidating the Guava cache does not stop the loads already in
+ * progress, which would then store documents built against the old configuration, so the cache
+ * keys also contain a generation number that is bumped at every change: stale documents end up
+ * under keys that are never looked up again, and get evicted over time
+ * </p>
+ *
+ * @author Andrea Aime - GeoSolutions
+ */
+public class WPSDocumentCache implements GeoServerInitializer {
+
+    static final int DEFAULT_MAX_ENTRIES = 256;
+
+    Cache<Object, Object> documents;
+
+    /**
+     * The factories the cached documents have been built against
+     */
+    Set<ProcessFactory> factories;
+
+    /**
+     * The current cache generation, part of every cache key
+     */
+    AtomicLong generation = new AtomicLong();
+
+    public WPSDocumentCache() {
+        setMaxEntries(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Sets the max number of documents kept in the cache, zero disables caching
+     *
+     * @param maxEntries
+     */
+    public void setMaxEntries(int maxEntries) {
+        documents = CacheBuilder.newBuilder().maximumSize(Math.max(0, maxEntries)).build();
+    }
+
+    /**
+     * Builds a cache key out of the request elements that affect the document
+     */
+    public static Object key(Object... elements) {
+        return Arrays.asList(elements);
+    }
+
+    /**
+     * Returns the cached document, or builds and caches it if missing. Failures are not cached
+     *
+     * @param key
+     * @param builder
+     * @return
+     * @throws WPSException
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(Object key, Callable<T> builder) throws WPSException {
+        Set<ProcessFactory> current = GeoServerProcessors.getProcessFactories();
+        synchronized (this) {
+            if (factories != current) {
+                factories = current;
+                clear();
+            }
+        }
+        Object generationKey = Arrays.asList(generation.get(), key);
+        try {
+            return (T) documents.get(generationKey, builder);
+        } catch (ExecutionException e) {
+            throw unwrap(e.getCause());
+        } catch (UncheckedExecutionException e) {
+            throw unwrap(e.getCause());
+        }
+    }
+
+    RuntimeException unwrap(Throwable cause) {
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        return new WPSException("Failed to build the document", cause);
+    }
+
+    /**
+     * Drops all the cached documents
+     */
+    public void clear() {
+        generation.incrementAndGet();
+        documents.invalidateAll();
+    }
+
+    @Override
+    public void initialize(GeoServer geoServer) throws Exception {
+        geoServer.addListener(new ConfigurationListenerAdapter() {
+            @Override
+            public void handlePostServiceChange(ServiceInfo service) {
+                if (service instanceof WPSInfo) {
+                    clear();
+                }
+            }
+
+            @Override
+            public void handlePostGlobalChange(GeoServerInfo global) {
+                clear();
+            }
+
+            @Override
+            public void handleSettingsPostModified(SettingsInfo settings) {
+                clear();
+            }
+        });
+    }
+}
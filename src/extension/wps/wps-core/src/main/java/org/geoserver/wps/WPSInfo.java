@@ -6,6 +6,7 @@
 package org.geoserver.wps;
 
 import java.util.List;
+import java.util.Map;
 
 import org.geoserver.catalog.MetadataMap;
 import org.geoserver.config.ServiceInfo;
@@ -75,7 +76,71 @@ public interface WPSInfo extends ServiceInfo {
      * @param maxAsynchronousProcesses
      */
     public void setMaxAsynchronousProcesses(int maxAsynchronousProcesses);
+
+    /**
+     * Returns the maximum number of synchronous processes that can wait in queue for an execution
+     * slot, further requests will be rejected with a "ServerBusy" exception. Zero or a negative
+     * value means no limit
+     * 
+     * @return
+     */
+    public int getMaxQueuedSynchronousProcesses();
+
+    /**
+     * Sets the maximum number of synchronous processes that can wait in queue
+     * 
+     * @param maxQueuedSynchronousProcesses
+     */
+    public void setMaxQueuedSynchronousProcesses(int maxQueuedSynchronousProcesses);
+
+    /**
+     * Returns the maximum number of asynchronous processes that can wait in queue for an execution
+     * slot, further requests will be rejected with a "ServerBusy" exception. Zero or a negative
+     * value means no limit
+     * 
+     * @return
+     */
+    public int getMaxQueuedAsynchronousProcesses();
+
+    /**
+     * Sets the maximum number of asynchronous processes that can wait in queue
+     * 
+     * @param maxQueuedAsynchronousProcesses
+     */
+    public void setMaxQueuedAsynchronousProcesses(int maxQueuedAsynchronousProcesses);
+
+    /**
+     * Returns the maximum time (in seconds) a synchronous request can wait in queue for an
+     * execution slot before being rejected with a "ServerBusy" exception. Zero or a negative value
+     * means no limit
+     * 
+     * @return
+     */
+    public int getSynchronousQueueTimeout();
+
+    /**
+     * Sets the maximum time (in seconds) a synchronous request can wait in queue
+     * 
+     * @param synchronousQueueTimeout
+     */
+    public void setSynchronousQueueTimeout(int synchronousQueueTimeout);
     
+    /**
+     * Returns the scheduling weights of the clients, keyed by user name, role name or remote
+     * address. Clients with higher weights get more execution slots when the pools are busy, the
+     * ones not listed get a weight of 1
+     * 
+     * @return
+     */
+    public Map<String, Integer> getClientWeights();
+
+    /**
+     * Sets the scheduling weights of the clients
+     * 
+     * @param clientWeights
+     */
+    public void setClientWeights(Map<String, Integer> clientWeights);
+
     /**
      * Retrieves the process groups configurations
      * 
@@ -8,7 +8,9 @@ package org.geoserver.wps;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.geoserver.catalog.MetadataMap;
 import org.geoserver.config.impl.ServiceInfoImpl;
@@ -39,6 +41,10 @@ public class WPSInfoImpl extends ServiceInfoImpl implements WPSInfo {
     
     static final int DEFAULT_MAX_ASYNCH = Runtime.getRuntime().availableProcessors();
     
+    static final int DEFAULT_MAX_QUEUED = -1;
+    
+    static final int DEFAULT_SYNCH_QUEUE_TIMEOUT = -1;
+    
     @Override
     public String getTitle() {
         return "Prototype GeoServer WPS";
@@ -66,10 +72,30 @@ public class WPSInfoImpl extends ServiceInfoImpl implements WPSInfo {
      */
     Integer maxAsynchronousProcesses = DEFAULT_MAX_ASYNCH;
 
+    /**
+     * Maximum number of synchronous requests waiting in queue
+     */
+    Integer maxQueuedSynchronousProcesses = DEFAULT_MAX_QUEUED;
+
+    /**
+     * Maximum number of asynchronous requests waiting in queue
+     */
+    Integer maxQueuedAsynchronousProcesses = DEFAULT_MAX_QUEUED;
+
+    /**
+     * Maximum time a synchronous request can wait in queue, in seconds
+     */
+    Integer synchronousQueueTimeout = DEFAULT_SYNCH_QUEUE_TIMEOUT;
+
     /**
      * List of process groups/factories.
      */
     List<ProcessGroupInfo> processGroups = new ArrayList<ProcessGroupInfo>();
+
+    /**
+     * Scheduling weights of the clients, by user name, role name or remote address
+     */
+    Map<String, Integer> clientWeights = new HashMap<String, Integer>();
     
     public WPSInfoImpl() {
         
@@ -168,6 +194,39 @@ public class WPSInfoImpl extends ServiceInfoImpl implements WPSInfo {
         this.maxAsynchronousProcesses = maxAsynchronousProcesses;
     }
 
+    public int getMaxQueuedSynchronousProcesses() {
+        if (maxQueuedSynchronousProcesses == null) {
+            return DEFAULT_MAX_QUEUED;
+        }
+        return maxQueuedSynchronousProcesses;
+    }
+
+    public void setMaxQueuedSynchronousProcesses(int maxQueuedSynchronousProcesses) {
+        this.maxQueuedSynchronousProcesses = maxQueuedSynchronousProcesses;
+    }
+
+    public int getMaxQueuedAsynchronousProcesses() {
+        if (maxQueuedAsynchronousProcesses == null) {
+            return DEFAULT_MAX_QUEUED;
+        }
+        return maxQueuedAsynchronousProcesses;
+    }
+
+    public void setMaxQueuedAsynchronousProcesses(int maxQueuedAsynchronousProcesses) {
+        this.maxQueuedAsynchronousProcesses = maxQueuedAsynchronousProcesses;
+    }
+
+    public int getSynchronousQueueTimeout() {
+        if (synchronousQueueTimeout == null) {
+            return DEFAULT_SYNCH_QUEUE_TIMEOUT;
+        }
+        return synchronousQueueTimeout;
+    }
+
+    public void setSynchronousQueueTimeout(int synchronousQueueTimeout) {
+        this.synchronousQueueTimeout = synchronousQueueTimeout;
+    }
+
     @Override
     public List<ProcessGroupInfo> getProcessGroups() {
         return processGroups;
@@ -176,4 +235,16 @@ public class WPSInfoImpl extends ServiceInfoImpl implements WPSInfo {
     public void setProcessGroups(List<ProcessGroupInfo> processGroups) {
         this.processGroups = processGroups;
     }
+
+    public Map<String, Integer> getClientWeights() {
+        if (clientWeights == null) {
+            // configurations saved before the client weights were introduced
+            clientWeights = new HashMap<String, Integer>();
+        }
+        return clientWeights;
+    }
+
+    public void setClientWeights(Map<String, Integer> clientWeights) {
+        this.clientWeights = clientWeights;
+    }
 }
@@ -7,16 +7,20 @@ package org.geoserver.wps;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.geoserver.config.ConfigurationListenerAdapter;
 import org.geoserver.config.GeoServer;
 import org.geoserver.config.GeoServerInfo;
 import org.geoserver.config.GeoServerInitializer;
+import org.geoserver.config.ServiceInfo;
 import org.geoserver.wps.executor.DefaultProcessManager;
 import org.geoserver.wps.executor.WPSExecutionManager;
 import org.geotools.process.ProcessFactory;
 import org.geotools.process.Processors;
+import org.opengis.feature.type.Name;
 
 /**
  * Initializes WPS functionality from configuration.
@@ -46,6 +50,14 @@ public class WPSInitializer implements GeoServerInitializer {
             public void handlePostGlobalChange(GeoServerInfo global) {
                 initWPS(geoServer.getService(WPSInfo.class), geoServer);
             }
+
+            @Override
+            public void handlePostServiceChange(ServiceInfo service) {
+                // workspace specific services do not drive the global process manager
+                if (service instanceof WPSInfo && service.getWorkspace() == null) {
+                    initWPS((WPSInfo) service, geoServer);
+                }
+            }
         });
     }
 
@@ -87,7 +99,36 @@ public class WPSInitializer implements GeoServerInitializer {
             processManager.setMaxAsynchronousProcesses(defaultMaxProcesses);
         }
 
+        // admission control, non positive values mean no limits
+        processManager.setMaxQueuedSynchronousProcesses(info.getMaxQueuedSynchronousProcesses());
+        processManager.setMaxQueuedAsynchronousProcesses(info.getMaxQueuedAsynchronousProcesses());
+        int queueTimeout = info.getSynchronousQueueTimeout();
+        processManager.setSynchronousQueueTimeout(queueTimeout > 0 ? queueTimeout * 1000l : -1);
+
         lookupNewProcessGroups(info, geoServer);
+
+        // the process group weights used for fair share scheduling
+        Map<Class<? extends ProcessFactory>, Integer> weights = new HashMap<Class<? extends ProcessFactory>, Integer>();
+        if (info.getProcessGroups() != null) {
+            for (ProcessGroupInfo group : info.getProcessGroups()) {
+                if (group.getFactoryClass() != null && group.getWeight() > 0) {
+                    weights.put(group.getFactoryClass(), group.getWeight());
+                }
+            }
+        }
+        processManager.setProcessGroupWeights(weights);
+        processManager.setClientWeights(info.getClientWeights());
+
+        // the deterministic processes whose results can be cached
+        List<Name> cacheable = new ArrayList<Name>();
+        if (info.getProcessGroups() != null) {
+            for (ProcessGroupInfo group : info.getProcessGroups()) {
+                if (group.isEnabled() && group.getCacheableProcesses() != null) {
+                    cacheable.addAll(group.getCacheableProcesses());
+                }
+            }
+        }
+        executionManager.setCacheableProcesses(cacheable);
     }
 
     static void lookupNewProcessGroups(WPSInfo info, GeoServer geoServer) {
@@ -8,10 +8,17 @@ import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Set;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -22,10 +29,23 @@ import org.geoserver.ows.Dispatcher;
 import org.geoserver.ows.URLMangler.URLType;
 import org.geoserver.ows.util.ResponseUtils;
 import org.geoserver.wcs.response.WCSStorageCleaner;
+import org.geoserver.wps.resource.WPSResourceManager;
 import org.geotools.util.logging.Logging;
 
 /**
- * Cleans up the temporary storage directory for WPS
+ * Cleans up the temporary storage directory for WPS.
+ * <p>
+ * The storage is scanned only once, on the first run, afterwards the cleaner only looks at the
+ * files and directories registered with {@link #track(File, long)}, in the order they are
+ * expected to expire. Directories are cleaned up recursively when their turn comes, the
+ * directory levels spreading the executions are never tracked as a whole, and are left around to
+ * be reused
+ * </p>
+ * <p>
+ * The cleaner also keeps track of the space used by the storage, and if a max storage size is
+ * set, evicts the completed results that have not been downloaded for the longest time until the
+ * storage is back within the limit. Files being downloaded are never removed.
+ * </p>
  * 
  * @author Andrea Aime - GeoSolutions
  */
@@ -38,7 +58,76 @@ public class WPSStorageCleaner extends TimerTask {
 
     private String baseURL;
 
-    Set<File> lockedFiles = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+    /**
+     * The files being accessed, along with the number of concurrent accesses
+     */
+    Map<File, Integer> lockedFiles = new HashMap<File, Integer>();
+
+    /**
+     * How long to wait before checking again an entry that could not be removed
+     */
+    static final long RETRY_DELAY = 60 * 1000;
+
+    /**
+     * The storage entries waiting for expiration, the oldest first
+     */
+    PriorityBlockingQueue<ExpirationEntry> expirations = new PriorityBlockingQueue<ExpirationEntry>();
+
+    ConcurrentHashMap<File, TrackedEntry> tracked = new ConcurrentHashMap<File, TrackedEntry>();
+
+    volatile boolean reconciled;
+
+    /**
+     * The max size of the storage in bytes, zero or negative means no limit
+     */
+    long maxStorageSize;
+
+    /**
+     * The space used by the tracked entries
+     */
+    AtomicLong storageSize = new AtomicLong();
+
+    ReentrantLock evictionLock = new ReentrantLock();
+
+    /**
+     * A top level entry of the storage, with its size and the last time it was accessed
+     */
+    static class TrackedEntry {
+        File file;
+
+        volatile long size;
+
+        volatile long accessTime;
+
+        /**
+         * False while the execution owning the entry is still writing into it
+         */
+        volatile boolean completed;
+
+        TrackedEntry(File file, long accessTime) {
+            this.file = file;
+            this.accessTime = accessTime;
+        }
+    }
+
+    static class ExpirationEntry implements Comparable<ExpirationEntry> {
+        File file;
+
+        /**
+         * The time the entry was last modified, the expiration delay starts from it
+         */
+        long time;
+
+        ExpirationEntry(File file, long time) {
+            this.file = file;
+            this.time = time;
+        }
+
+        @Override
+        public int compareTo(ExpirationEntry other) {
+            return time < other.time ? -1 : (time == other.time ? 0 : 1);
+        }
+    }
 
     public WPSStorageCleaner(GeoServerDataDirectory dataDirectory) throws IOException,
             ConfigurationException {
@@ -59,10 +148,10 @@ public class WPSStorageCleaner extends TimerTask {
             if (!storage.exists())
                 return;
 
-            // ok, now scan for existing files there and clean up those
-            // that are too old
+            // ok, now clean up the entries that are too old
             long now = System.currentTimeMillis();
-            cleanupDirectory(storage, now);
+            cleanupExpired(now);
+            enforceQuota();
         } catch (Exception e) {
             LOGGER.log(Level.WARNING, "Error occurred while trying to clean up "
                     + "old coverages from temp storage", e);
@@ -70,34 +159,305 @@ public class WPSStorageCleaner extends TimerTask {
     }
 
     /**
-     * Recursively cleans up files that are too old
+     * Registers a file or directory of the storage for expiration, the expiration delay will be
+     * counted from the specified time (or from the last modification, if more recent). Registering
+     * the same entry again has no effect until it is removed
+     * 
+     * @param file
+     * @param time
+     */
+    public void track(File file, long time) {
+        TrackedEntry entry = new TrackedEntry(file, time);
+        TrackedEntry previous = tracked.putIfAbsent(file, entry);
+        if (previous != null) {
+            if (previous.completed) {
+                return;
+            }
+            // the entry was being written, now it's complete
+            entry = previous;
+            entry.accessTime = Math.max(entry.accessTime, time);
+        }
+        entry.completed = true;
+        updateSize(entry);
+        expirations.add(new ExpirationEntry(file, time));
+        enforceQuota();
+    }
+
+    /**
+     * Accounts for some data being written in a storage entry, evicting old results if the
+     * storage goes beyond its max size. The entry won't be evicted or expired until it's
+     * registered with {@link #track(File, long)}
+     * 
+     * @param file the file or directory that will be tracked once complete
+     * @param bytes
+     */
+    public void addUsage(File file, long bytes) {
+        TrackedEntry entry = tracked.get(file);
+        if (entry == null) {
+            TrackedEntry created = new TrackedEntry(file, System.currentTimeMillis());
+            entry = tracked.putIfAbsent(file, created);
+            if (entry == null) {
+                entry = created;
+            }
+        }
+        synchronized (entry) {
+            entry.size += bytes;
+        }
+        storageSize.addAndGet(bytes);
+        enforceQuota();
+    }
+
+    /**
+     * Marks the tracked entry containing the file as recently used, making it the last candidate
+     * for eviction
+     * 
+     * @param file
+     */
+    public void touch(File file) {
+        for (File f = file; f != null && !f.equals(storage); f = f.getParentFile()) {
+            TrackedEntry entry = tracked.get(f);
+            if (entry != null) {
+                entry.accessTime = System.currentTimeMillis();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Recomputes the size of the entry from the file system
+     */
+    void updateSize(TrackedEntry entry) {
+        long size = sizeOf(entry.file);
+        long delta;
+        synchronized (entry) {
+            delta = size - entry.size;
+            entry.size = size;
+        }
+        storageSize.addAndGet(delta);
+    }
+
+    void untrack(File file) {
+        TrackedEntry entry = tracked.remove(file);
+        if (entry != null) {
+            synchronized (entry) {
+                storageSize.addAndGet(-entry.size);
+                entry.size = 0;
+            }
+        }
+    }
+
+    static long sizeOf(File file) {
+        if (file.isDirectory()) {
+            long size = 0;
+            File[] files = file.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    size += sizeOf(f);
+                }
+            }
+            return size;
+        }
+        return file.length();
+    }
+
+    /**
+     * Evicts the least recently used completed entries until the storage is back within its max
+     * size. Files being downloaded are left alone
+     */
+    public void enforceQuota() {
+        if (maxStorageSize <= 0 || storageSize.get() <= maxStorageSize) {
+            return;
+        }
+        // if another thread is already evicting there is no point in piling up
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            List<TrackedEntry> candidates = new ArrayList<TrackedEntry>();
+            for (TrackedEntry entry : tracked.values()) {
+                if (entry.completed) {
+                    candidates.add(entry);
+                }
+            }
+            Collections.sort(candidates, new Comparator<TrackedEntry>() {
+
+                @Override
+                public int compare(TrackedEntry e1, TrackedEntry e2) {
+                    long t1 = e1.accessTime;
+                    long t2 = e2.accessTime;
+                    return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+                }
+            });
+            for (TrackedEntry entry : candidates) {
+                if (storageSize.get() <= maxStorageSize) {
+                    break;
+                }
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.fine("WPS storage beyond its max size, evicting " + entry.file);
+                }
+                if (evict(entry.file)) {
+                    untrack(entry.file);
+                } else {
+                    updateSize(entry);
+                }
+            }
+            if (storageSize.get() > maxStorageSize) {
+                LOGGER.warning("The WPS storage uses " + storageSize.get()
+                        + " bytes, more than the configured max of " + maxStorageSize
+                        + ", but no more results can be evicted at the moment");
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the file or directory, skipping the locked files, returns true if it's gone
+     */
+    boolean evict(File file) {
+        if (isLocked(file)) {
+            return false;
+        }
+        if (file.isDirectory()) {
+            File[] files = file.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    evict(f);
+                }
+            }
+        }
+        return file.delete() || !file.exists();
+    }
+
+    /**
+     * Removes the entries whose expiration time passed, leaving alone the others
+     * 
+     * @param now
+     * @throws IOException
+     */
+    protected void cleanupExpired(long now) throws IOException {
+        if (expirationDelay <= 0) {
+            return;
+        }
+        if (!reconciled) {
+            // one time scan to pick up what was left around by a previous run
+            reconcile(storage, 0);
+            reconciled = true;
+        }
+
+        ExpirationEntry entry;
+        while ((entry = expirations.poll()) != null) {
+            if (now - entry.time <= expirationDelay) {
+                // not expired, and neither are the ones following it
+                expirations.add(entry);
+                break;
+            }
+            long time = expire(entry.file, now);
+            if (time >= 0) {
+                // still around, check it again later
+                if (now - time > expirationDelay) {
+                    time = getRetryTime(now);
+                }
+                expirations.add(new ExpirationEntry(entry.file, time));
+                TrackedEntry trackedEntry = tracked.get(entry.file);
+                if (trackedEntry != null && entry.file.isDirectory()) {
+                    updateSize(trackedEntry);
+                }
+            } else {
+                untrack(entry.file);
+            }
+        }
+    }
+
+    /**
+     * Tracks the contents of the directory, looking into the directory levels used to spread
+     * the executions
+     */
+    void reconcile(File directory, int level) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            if (level < WPSResourceManager.SHARD_LEVELS && f.isDirectory()
+                    && WPSResourceManager.isShardName(f.getName())) {
+                reconcile(f, level + 1);
+            } else if (!tracked.containsKey(f)) {
+                track(f, f.lastModified());
+            }
+        }
+    }
+
+    /**
+     * Removes the file or directory if too old, returning -1 if it's gone, or the time from which
+     * the expiration delay should be counted again otherwise
+     */
+    long expire(File file, long now) throws IOException {
+        if (!file.exists()) {
+            return -1;
+        }
+        if (isLocked(file)) {
+            return getRetryTime(now);
+        }
+        if (file.isDirectory()) {
+            long oldest = cleanupDirectory(file, now);
+            if (oldest >= 0) {
+                return oldest;
+            }
+            // make sure we delete the directory only if enough time elapsed, since
+            // it might have been just created to store some wps outputs
+            if (now - file.lastModified() > expirationDelay && file.delete()) {
+                return -1;
+            }
+            return file.lastModified();
+        } else if (now - file.lastModified() > expirationDelay && file.delete()) {
+            return -1;
+        }
+        return file.lastModified();
+    }
+
+    /**
+     * Returns a time that will make an entry expire again after the retry delay
+     */
+    long getRetryTime(long now) {
+        return now - expirationDelay + RETRY_DELAY;
+    }
+
+    /**
+     * Recursively cleans up files that are too old, returns the modification time of the oldest
+     * entry left in the directory, or -1 if the directory is empty
      * 
      * @param directory
      * @param now
      * @throws IOException
      */
-    protected void cleanupDirectory(File directory, long now) throws IOException {
-        for (File f : directory.listFiles()) {
+    protected long cleanupDirectory(File directory, long now) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return -1;
+        }
+        long oldest = -1;
+        for (File f : files) {
+            long time = -1;
             // skip locked files, someone is downloading them
-            if (lockedFiles.contains(f)) {
-                continue;
-            }
-            // cleanup directories recursively
-            if (f.isDirectory()) {
-                cleanupDirectory(f, now);
+            if (isLocked(f)) {
+                time = getRetryTime(now);
+            } else if (f.isDirectory()) {
+                // cleanup directories recursively
+                time = cleanupDirectory(f, now);
                 // make sure we delete the directory only if enough time elapsed, since
                 // it might have been just created to store some wps outputs
-                if (f.list().length == 0 && f.lastModified() > expirationDelay) {
-                    f.delete();
-                }
-            } else {
-                if (expirationDelay > 0 && now - f.lastModified() > expirationDelay) {
-                    if (f.isFile()) {
-                        f.delete();
-                    }
+                if (time < 0 && (now - f.lastModified() <= expirationDelay || !f.delete())) {
+                    time = f.lastModified();
                 }
+            } else if (now - f.lastModified() <= expirationDelay || !f.delete()) {
+                time = f.lastModified();
+            }
+            if (time >= 0 && (oldest < 0 || time < oldest)) {
+                oldest = time;
             }
         }
+        return oldest;
     }
 
     /**
@@ -127,6 +487,33 @@ public class WPSStorageCleaner extends TimerTask {
         this.expirationDelay = expirationDelay;
     }
 
+    /**
+     * The max size of the storage in bytes, past it the least recently used results are evicted.
+     * Zero or negative means no limit
+     * 
+     * @return
+     */
+    public long getMaxStorageSize() {
+        return maxStorageSize;
+    }
+
+    /**
+     * Sets the max size of the storage in bytes
+     * @param maxStorageSize
+     */
+    public void setMaxStorageSize(long maxStorageSize) {
+        this.maxStorageSize = maxStorageSize;
+    }
+
+    /**
+     * Returns the space used by the storage, as far as the cleaner knows
+     * 
+     * @return
+     */
+    public long getStorageSize() {
+        return storageSize.get();
+    }
+
     /**
      * Given a file inside the root storage directory returns a URL to retrieve it via the file
      * publisher
@@ -152,16 +539,39 @@ public class WPSStorageCleaner extends TimerTask {
      * @param file
      */
     public void lock(File file) {
-        this.lockedFiles.add(file);
+        synchronized (lockedFiles) {
+            Integer count = lockedFiles.get(file);
+            lockedFiles.put(file, count == null ? 1 : count + 1);
+        }
     }
 
     /**
-     * Unlocks a previously locked file, making it eligible for expiration again
+     * Unlocks a previously locked file, making it eligible for expiration again once all the
+     * concurrent accesses are done
      * 
      * @param file
      */
     public void unlock(File file) {
-        this.lockedFiles.remove(file);
+        synchronized (lockedFiles) {
+            Integer count = lockedFiles.get(file);
+            if (count == null || count <= 1) {
+                lockedFiles.remove(file);
+            } else {
+                lockedFiles.put(file, count - 1);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the file is being accessed
+     * 
+     * @param file
+     * @return
+     */
+    public boolean isLocked(File file) {
+        synchronized (lockedFiles) {
+            return lockedFiles.containsKey(file);
+        }
     }
     
     /**
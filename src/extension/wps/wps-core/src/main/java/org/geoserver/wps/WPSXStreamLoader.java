@@ -92,6 +92,9 @@ public class WPSXStreamLoader extends XStreamServiceLoader<WPSInfo> {
         if (service.getProcessGroups() == null) {
             ((WPSInfoImpl)service).setProcessGroups(new ArrayList());
         }
+        if (service.getClientWeights() == null) {
+            service.setClientWeights(new HashMap<String, Integer>());
+        }
         if(service.getName() == null) {
             service.setName("WPS");
         }
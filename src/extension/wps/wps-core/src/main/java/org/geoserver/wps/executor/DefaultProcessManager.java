@@ -5,22 +5,34 @@
 package org.geoserver.wps.executor;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.geoserver.ows.Dispatcher;
+import org.geoserver.ows.Request;
 import org.geoserver.platform.ExtensionPriority;
 import org.geoserver.threadlocals.ThreadLocalsTransfer;
+import org.geoserver.wps.ServerBusyException;
 import org.geoserver.wps.WPSException;
 import org.geoserver.wps.executor.ExecutionStatus.ProcessState;
+import org.geoserver.wps.process.DelegatingProcessFactory;
 import org.geoserver.wps.process.GeoServerProcessors;
 import org.geoserver.wps.resource.WPSResourceManager;
 import org.geotools.process.Process;
@@ -33,18 +45,74 @@ import org.opengis.util.ProgressListener;
 import org.springframework.context.ApplicationEvent;
 import org.springframework.context.ApplicationListener;
 import org.springframework.context.event.ContextClosedEvent;
-import org.springframework.context.event.ContextRefreshedEvent;
-
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+import com.google.common.util.concurrent.ExecutionList;
+import com.google.common.util.concurrent.JdkFutureAdapters;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * The default process manager, runs processes in two thread pools, one for synchronous and one for
+ * asynchronous requests. The pools dequeue the pending executions with a weighted fair share policy:
+ * each client/process group pair gets its own share, weighted by the process group and client
+ * weights, so that a burst of requests from a single client cannot starve everybody else, while
+ * preferred clients still get a larger slice of the executors.
+ * <p>
+ * The queues can be bounded, and synchronous requests can be given a maximum queue time: when the
+ * limits are reached the submission is rejected with a {@link ServerBusyException}
+ * </p>
+ * 
+ * @author Andrea Aime - GeoSolutions
+ */
 public class DefaultProcessManager implements ProcessManager, ExtensionPriority, ApplicationListener<ApplicationEvent> {
 
+    static final Logger LOGGER = Logging.getLogger(DefaultProcessManager.class);
+
     ConcurrentHashMap<String, ExecutionStatusEx> executions = new ConcurrentHashMap<String, DefaultProcessManager.ExecutionStatusEx>();
 
     ThreadPoolExecutor synchService;
 
     ThreadPoolExecutor asynchService;
+
+    /**
+     * Used to retrieve the slow inputs in parallel before the process starts, if null the inputs
+     * are parsed on demand by the process itself
+     */
+    ThreadPoolExecutor inputService;
     
     WPSResourceManager resourceManager;
 
+    /**
+     * The process group weights used for the fair share scheduling, by factory class
+     */
+    volatile Map<Class<? extends ProcessFactory>, Integer> processGroupWeights = Collections.emptyMap();
+
+    /**
+     * The client weights used for the fair share scheduling, by user name, role or remote address
+     */
+    volatile Map<String, Integer> clientWeights = Collections.emptyMap();
+
+    int maxQueuedSynchronousProcesses;
+
+    int maxQueuedAsynchronousProcesses;
+
+    /**
+     * Max time a synchronous request can wait in queue before being rejected, in milliseconds
+     */
+    volatile long synchronousQueueTimeout;
+
+    AtomicLong rejectedExecutions = new AtomicLong();
+
+    /**
+     * Moving average of the execution times, in milliseconds, used to build the retry hints
+     */
+    volatile long averageSynchronousTime;
+
+    volatile long averageAsynchronousTime;
+
     public DefaultProcessManager(WPSResourceManager resourceManager) {
         this.resourceManager = resourceManager;
     }
@@ -52,10 +120,10 @@ public class DefaultProcessManager implements ProcessManager, ExtensionPriority,
     public void setMaxAsynchronousProcesses(int maxAsynchronousProcesses) {
         if(asynchService == null) {
             // create a fixed size pool. If we allow a delta between core and max 
-            // the pool will create new threads only if the queue is full, but the linked queue never is
+            // the pool will create new threads only if the queue is full, but the fair share queue never is
             asynchService = new ThreadPoolExecutor(maxAsynchronousProcesses, maxAsynchronousProcesses, 
                                       0L, TimeUnit.MILLISECONDS,
-                                      new LinkedBlockingQueue<Runnable>());
+                                      new FairShareQueue(maxQueuedAsynchronousProcesses));
         } else {
             asynchService.setCorePoolSize(maxAsynchronousProcesses);
             asynchService.setMaximumPoolSize(maxAsynchronousProcesses);
@@ -65,23 +133,143 @@ public class DefaultProcessManager implements ProcessManager, ExtensionPriority,
     public void setMaxSynchronousProcesses(int maxSynchronousProcesses) {
         if(synchService == null) {
             // create a fixed size pool. If we allow a delta between core and max 
-            // the pool will create new threads only if the queue is full, but the linked queue never is
+            // the pool will create new threads only if the queue is full, but the fair share queue never is
             synchService = new ThreadPoolExecutor(maxSynchronousProcesses, maxSynchronousProcesses, 
                                       0L, TimeUnit.MILLISECONDS,
-                                      new LinkedBlockingQueue<Runnable>());
+                                      new FairShareQueue(maxQueuedSynchronousProcesses));
         } else {
             synchService.setCorePoolSize(maxSynchronousProcesses);
             synchService.setMaximumPoolSize(maxSynchronousProcesses);
         }
     }
+
+    /**
+     * Sets the number of threads used to retrieve the remote and chained inputs in parallel before
+     * the process starts. A non positive value disables the parallel retrieval, the inputs will be
+     * parsed one by one as the process asks for them
+     * 
+     * @param maxInputPrefetchThreads
+     */
+    public void setMaxInputPrefetchThreads(int maxInputPrefetchThreads) {
+        if (maxInputPrefetchThreads <= 0) {
+            if (inputService != null) {
+                inputService.shutdown();
+                inputService = null;
+            }
+        } else if (inputService == null) {
+            // when all threads are busy the retrieval happens in the process thread, which
+            // is the same as not having a prefetch at all
+            inputService = new ThreadPoolExecutor(maxInputPrefetchThreads,
+                    maxInputPrefetchThreads, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(maxInputPrefetchThreads),
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+            inputService.allowCoreThreadTimeOut(true);
+        } else {
+            inputService.setCorePoolSize(maxInputPrefetchThreads);
+            inputService.setMaximumPoolSize(maxInputPrefetchThreads);
+        }
+    }
+
+    /**
+     * Sets the maximum number of synchronous processes waiting in queue, further submissions will
+     * be rejected. A non positive value means no limit
+     * 
+     * @param maxQueuedSynchronousProcesses
+     */
+    public void setMaxQueuedSynchronousProcesses(int maxQueuedSynchronousProcesses) {
+        this.maxQueuedSynchronousProcesses = maxQueuedSynchronousProcesses;
+        if (synchService != null) {
+            ((FairShareQueue) synchService.getQueue()).setCapacity(maxQueuedSynchronousProcesses);
+        }
+    }
+
+    /**
+     * Sets the maximum number of asynchronous processes waiting in queue, further submissions
+     * will be rejected. A non positive value means no limit
+     * 
+     * @param maxQueuedAsynchronousProcesses
+     */
+    public void setMaxQueuedAsynchronousProcesses(int maxQueuedAsynchronousProcesses) {
+        this.maxQueuedAsynchronousProcesses = maxQueuedAsynchronousProcesses;
+        if (asynchService != null) {
+            ((FairShareQueue) asynchService.getQueue()).setCapacity(maxQueuedAsynchronousProcesses);
+        }
+    }
+
+    /**
+     * Sets the maximum time, in milliseconds, a synchronous process can wait in queue before the
+     * request is rejected. A non positive value means the request will wait as long as necessary
+     * 
+     * @param synchronousQueueTimeout
+     */
+    public void setSynchronousQueueTimeout(long synchronousQueueTimeout) {
+        this.synchronousQueueTimeout = synchronousQueueTimeout;
+    }
+
+    /**
+     * Returns the number of synchronous processes waiting for an execution slot
+     */
+    public int getQueuedSynchronousProcesses() {
+        return synchService == null ? 0 : synchService.getQueue().size();
+    }
+
+    /**
+     * Returns the number of asynchronous processes waiting for an execution slot
+     */
+    public int getQueuedAsynchronousProcesses() {
+        return asynchService == null ? 0 : asynchService.getQueue().size();
+    }
+
+    /**
+     * Returns the number of submissions rejected so far because the server was too busy
+     */
+    public long getRejectedExecutions() {
+        return rejectedExecutions.get();
+    }
+
+    /**
+     * Sets the weights of the process groups, keyed by process factory class. Groups that are not
+     * listed get a weight of 1
+     * 
+     * @param processGroupWeights
+     */
+    public void setProcessGroupWeights(
+            Map<Class<? extends ProcessFactory>, Integer> processGroupWeights) {
+        if (processGroupWeights == null) {
+            this.processGroupWeights = Collections.emptyMap();
+        } else {
+            this.processGroupWeights = new ConcurrentHashMap<Class<? extends ProcessFactory>, Integer>(
+                    processGroupWeights);
+        }
+    }
     
+    /**
+     * Sets the weights of the clients, keyed by user name, role name or remote address. A client
+     * matching several keys gets the highest weight, clients not listed get a weight of 1. The
+     * client weight multiplies the process group one
+     * 
+     * @param clientWeights
+     */
+    public void setClientWeights(Map<String, Integer> clientWeights) {
+        if (clientWeights == null) {
+            this.clientWeights = Collections.emptyMap();
+        } else {
+            this.clientWeights = new ConcurrentHashMap<String, Integer>(clientWeights);
+        }
+    }
+
     @Override
     public void onApplicationEvent(ApplicationEvent event) {
-        if (event instanceof ContextRefreshedEvent) {
-            if (event instanceof ContextClosedEvent) {
+        if (event instanceof ContextClosedEvent) {
+            if (synchService != null) {
                 synchService.shutdownNow();
+            }
+            if (asynchService != null) {
                 asynchService.shutdownNow();
             }
+            if (inputService != null) {
+                inputService.shutdownNow();
+            }
         }
     }
 
@@ -103,6 +291,19 @@ public class DefaultProcessManager implements ProcessManager, ExtensionPriority,
             throw new WPSException("No such process: " + processName);
         }
 
+        // the inputs might be chained processes themselves, evaluate the independent ones
+        // in parallel (the prefetch never waits on queued tasks, so it cannot deadlock)
+        ThreadPoolExecutor prefetcher = inputService;
+        if (prefetcher != null && inputs instanceof LazyInputMap) {
+            try {
+                ((LazyInputMap) inputs).prefetch(prefetcher, resourceManager, executionId);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ProcessException("Interrupted while retrieving the inputs of "
+                        + processName, e);
+            }
+        }
+
         // execute the process in the same thread as the caller
         Process p = pf.create(processName);
         Map<String, Object> result = p.execute(inputs, listener);
@@ -120,14 +321,132 @@ public class DefaultProcessManager implements ProcessManager, ExtensionPriority,
         ProcessListener listener = new ProcessListener(status);
         status.listener = listener;
         ProcessCallable callable = new ProcessCallable(inputs, status);
-        Future<Map<String, Object>> future;
-        if(background) {
-            future = asynchService.submit(callable);
+        status.future = schedule(callable, processName, background);
+        executions.put(executionId, status);
+    }
+
+    /**
+     * Queues the callable for execution in either the synchronous or asynchronous pool, accounting
+     * it against the share of the current client and process group
+     * 
+     * @param callable
+     * @param processName
+     * @param background
+     * @return
+     */
+    protected Future<Map<String, Object>> schedule(Callable<Map<String, Object>> callable,
+            Name processName, boolean background) {
+        Class<? extends ProcessFactory> group = getProcessGroup(processName);
+        String shareKey = getClientId() + "/" + (group != null ? group.getName() : null);
+        int weight = 1;
+        if (group != null) {
+            Integer groupWeight = processGroupWeights.get(group);
+            if (groupWeight != null && groupWeight > 0) {
+                weight = groupWeight;
+            }
+        }
+        weight *= getClientWeight();
+
+        ProcessFutureTask task = new ProcessFutureTask(callable, shareKey, weight, background);
+        try {
+            if (background) {
+                asynchService.execute(task);
+            } else {
+                synchService.execute(task);
+            }
+        } catch (RejectedExecutionException e) {
+            rejectedExecutions.incrementAndGet();
+            throw new ServerBusyException("Too many " + (background ? "asynchronous" : "synchronous")
+                    + " processes queued for execution, please retry later",
+                    getRetryAfter(background));
+        }
+        return task;
+    }
+
+    /**
+     * Estimates after how many seconds a rejected client should retry, based on the queue length
+     * and the average execution time
+     */
+    int getRetryAfter(boolean background) {
+        ThreadPoolExecutor service = background ? asynchService : synchService;
+        long average = background ? averageAsynchronousTime : averageSynchronousTime;
+        double waves = (service.getQueue().size() + 1) / (double) service.getMaximumPoolSize();
+        return (int) Math.max(1, Math.ceil(waves * average / 1000d));
+    }
+
+    void updateAverageTime(boolean background, long elapsed) {
+        // exponential moving average, the readers can tolerate a lost update
+        if (background) {
+            long average = averageAsynchronousTime;
+            averageAsynchronousTime = average == 0 ? elapsed : (average * 7 + elapsed) / 8;
         } else {
-            future = synchService.submit(callable);
+            long average = averageSynchronousTime;
+            averageSynchronousTime = average == 0 ? elapsed : (average * 7 + elapsed) / 8;
         }
-        status.future = future;
-        executions.put(executionId, status);
+    }
+
+    /**
+     * Returns the class of the original factory providing the specified process, if any
+     */
+    Class<? extends ProcessFactory> getProcessGroup(Name processName) {
+        ProcessFactory pf = GeoServerProcessors.createProcessFactory(processName);
+        if (pf instanceof DelegatingProcessFactory) {
+            pf = ((DelegatingProcessFactory) pf).getInnermostDelegate();
+        }
+        return pf != null ? pf.getClass() : null;
+    }
+
+    /**
+     * Returns the weight of the client submitting the request, the highest among the ones
+     * configured for its user name, its roles and its remote address, or 1 if none is configured
+     */
+    int getClientWeight() {
+        Map<String, Integer> weights = clientWeights;
+        if (weights.isEmpty()) {
+            return 1;
+        }
+        List<String> keys = new ArrayList<String>();
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        if (auth != null) {
+            if (!(auth instanceof AnonymousAuthenticationToken) && auth.getName() != null) {
+                keys.add(auth.getName());
+            }
+            if (auth.getAuthorities() != null) {
+                for (GrantedAuthority authority : auth.getAuthorities()) {
+                    keys.add(authority.getAuthority());
+                }
+            }
+        }
+        Request request = Dispatcher.REQUEST.get();
+        if (request != null && request.getHttpRequest() != null) {
+            keys.add(request.getHttpRequest().getRemoteAddr());
+        }
+
+        int weight = 0;
+        for (String key : keys) {
+            Integer clientWeight = weights.get(key);
+            if (clientWeight != null && clientWeight > weight) {
+                weight = clientWeight;
+            }
+        }
+        return weight > 0 ? weight : 1;
+    }
+
+    /**
+     * Identifies the client submitting the request, using the authenticated user name if
+     * available, the remote address otherwise
+     */
+    String getClientId() {
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        if (auth != null && !(auth instanceof AnonymousAuthenticationToken)
+                && auth.getName() != null) {
+            return auth.getName();
+        }
+        Request request = Dispatcher.REQUEST.get();
+        if (request != null && request.getHttpRequest() != null) {
+            return request.getHttpRequest().getRemoteAddr();
+        }
+        return null;
     }
 
     protected ExecutionStatusEx createExecutionStatus(Name processName, String executionId) {
@@ -144,12 +463,45 @@ public class DefaultProcessManager implements ProcessManager, ExtensionPriority,
         }
     }
 
+    @Override
+    public boolean addCompletionListener(String executionId, Runnable listener, Executor executor) {
+        ExecutionStatusEx status = executions.get(executionId);
+        if (status == null) {
+            return false;
+        }
+        Future<Map<String, Object>> future = status.future;
+        if (future instanceof ListenableFuture) {
+            ((ListenableFuture<Map<String, Object>>) future).addListener(listener, executor);
+        } else {
+            // subclasses scheduling their own futures, fall back on a waiting thread
+            JdkFutureAdapters.listenInPoolThread(future).addListener(listener, executor);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean addStatusListener(String executionId, Runnable listener) {
+        ExecutionStatusEx status = executions.get(executionId);
+        if (status == null) {
+            return false;
+        }
+        status.statusListeners.add(listener);
+        return true;
+    }
+
     @Override
     public Map<String, Object> getOutput(String executionId, long timeout) throws ProcessException {
         ExecutionStatusEx status = executions.get(executionId);
         if (status == null) {
             return null;
         }
+        if (status.future instanceof ProcessFutureTask
+                && !((ProcessFutureTask) status.future).awaitStart()) {
+            // waited too long in the queue, give up
+            executions.remove(executionId);
+            throw new ServerBusyException("Process execution " + executionId
+                    + " waited too long in queue, please retry later", getRetryAfter(false));
+        }
         try {
             if (timeout <= 0) {
                 return status.future.get();
@@ -219,6 +571,13 @@ public class DefaultProcessManager implements ProcessManager, ExtensionPriority,
                 
                 resourceManager.setCurrentExecutionId(status.getExecutionId());
                 status.setPhase(ProcessState.RUNNING);
+
+                // retrieve the slow inputs in parallel, if possible
+                ThreadPoolExecutor prefetcher = inputService;
+                if (prefetcher != null && inputs instanceof LazyInputMap) {
+                    ((LazyInputMap) inputs).prefetch(prefetcher, resourceManager,
+                            status.getExecutionId());
+                }
                 ProcessListener listener = status.listener;
                 Name processName = status.getProcessName();
                 ProcessFactory pf = GeoServerProcessors.createProcessFactory(processName);
@@ -251,6 +610,105 @@ public class DefaultProcessManager implements ProcessManager, ExtensionPriority,
 
     }
 
+    /**
+     * A future task that carries the fair share scheduling information, keeps track of when
+     * the execution actually started, and notifies the completion listeners
+     */
+    class ProcessFutureTask extends FutureTask<Map<String, Object>> implements
+            FairShareQueue.Task, ListenableFuture<Map<String, Object>> {
+
+        ExecutionList completionListeners = new ExecutionList();
+
+        String shareKey;
+
+        int shareWeight;
+
+        boolean background;
+
+        CountDownLatch started = new CountDownLatch(1);
+
+        /**
+         * Set by whoever gets the task out of the queue first, either the executor or a request
+         * that got tired of waiting
+         */
+        AtomicBoolean dequeued = new AtomicBoolean(false);
+
+        public ProcessFutureTask(Callable<Map<String, Object>> callable, String shareKey,
+                int shareWeight, boolean background) {
+            super(callable);
+            this.shareKey = shareKey;
+            this.shareWeight = shareWeight;
+            this.background = background;
+        }
+
+        @Override
+        public void run() {
+            if (!dequeued.compareAndSet(false, true)) {
+                // the request waiting for it already gave up
+                return;
+            }
+            started.countDown();
+            if (isCancelled()) {
+                return;
+            }
+            long start = System.currentTimeMillis();
+            try {
+                super.run();
+            } finally {
+                updateAverageTime(background, System.currentTimeMillis() - start);
+            }
+        }
+
+        /**
+         * Waits for the task to leave the queue, for at most the synchronous queue timeout. If the
+         * task is still queued after that, it gets cancelled and removed from the queue
+         * 
+         * @return true if the task started, false if it got cancelled
+         */
+        boolean awaitStart() {
+            long timeout = synchronousQueueTimeout;
+            if (background || timeout <= 0) {
+                return true;
+            }
+            try {
+                if (started.await(timeout, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return true;
+            }
+            // give up only if the task did not start in the meantime
+            if (dequeued.compareAndSet(false, true)) {
+                cancel(false);
+                synchService.remove(this);
+                rejectedExecutions.incrementAndGet();
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void addListener(Runnable listener, Executor executor) {
+            completionListeners.add(listener, executor);
+        }
+
+        @Override
+        protected void done() {
+            completionListeners.execute();
+        }
+
+        @Override
+        public String getShareKey() {
+            return shareKey;
+        }
+
+        @Override
+        public int getShareWeight() {
+            return shareWeight;
+        }
+    }
+
     /**
      * A pimped up execution status
      * 
@@ -262,10 +720,35 @@ public class DefaultProcessManager implements ProcessManager, ExtensionPriority,
 
         ProcessListener listener;
 
+        List<Runnable> statusListeners = new CopyOnWriteArrayList<Runnable>();
+
         public ExecutionStatusEx(Name processName, String executionId) {
             super(processName, executionId, ProcessState.QUEUED, 0, null);
         }
 
+        void fireStatusChanged() {
+            for (Runnable listener : statusListeners) {
+                try {
+                    listener.run();
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Status listener failed for execution "
+                            + executionId, e);
+                }
+            }
+        }
+
+        @Override
+        public void setProgress(float progress) {
+            super.setProgress(progress);
+            fireStatusChanged();
+        }
+
+        @Override
+        public void setTask(String task) {
+            super.setTask(task);
+            fireStatusChanged();
+        }
+
         public ExecutionStatus getStatus() {
             return new ExecutionStatus(processName, executionId, phase, progress, task);
         }
@@ -277,6 +760,7 @@ public class DefaultProcessManager implements ProcessManager, ExtensionPriority,
                 listener.setCanceled(true);
             }
             super.setPhase(phase);
+            fireStatusChanged();
         }
 
         @Override
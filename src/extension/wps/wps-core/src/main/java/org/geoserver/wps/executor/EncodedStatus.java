@@ -0,0 +1,37 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps.executor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The status document of a running asynchronous process, already encoded in XML, so that it can
+ * be sent back to polling clients without building and encoding it over and over
+ *
+ * @author Andrea Aime - GeoSolutions
+ */
+public class EncodedStatus {
+
+    byte[] contents;
+
+    public EncodedStatus(byte[] contents) {
+        this.contents = contents;
+    }
+
+    public int getLength() {
+        return contents.length;
+    }
+
+    /**
+     * Copies the encoded document in the provided stream
+     *
+     * @param output
+     * @throws IOException
+     */
+    public void writeTo(OutputStream output) throws IOException {
+        output.write(contents);
+    }
+}
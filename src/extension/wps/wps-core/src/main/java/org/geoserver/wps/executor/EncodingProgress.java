@@ -0,0 +1,74 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps.executor;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks how many bytes of the process outputs have been encoded so far, compared to the sizes
+ * estimated by the {@link org.geoserver.wps.ppio.ComplexPPIO} in use
+ *
+ * @author Andrea Aime - GeoSolutions
+ */
+class EncodingProgress {
+
+    AtomicLong expected = new AtomicLong();
+
+    AtomicLong written = new AtomicLong();
+
+    /**
+     * Adds the estimated size of an output, non positive values (unknown size) are ignored
+     */
+    void addExpected(long size) {
+        if (size > 0) {
+            expected.addAndGet(size);
+        }
+    }
+
+    long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * Returns the ratio between the bytes written and the estimated ones, never reaching 1 as the
+     * estimates might be too small, or -1 if no estimate is available
+     */
+    float getRatio() {
+        long total = expected.get();
+        if (total <= 0) {
+            return -1;
+        }
+        return Math.min(written.get() / (float) total, 0.99f);
+    }
+
+    /**
+     * Wraps the stream so that the bytes going through it are counted
+     */
+    OutputStream wrap(OutputStream os) {
+        return new CountingOutputStream(os);
+    }
+
+    class CountingOutputStream extends FilterOutputStream {
+
+        public CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            written.incrementAndGet();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            written.addAndGet(len);
+        }
+    }
+}
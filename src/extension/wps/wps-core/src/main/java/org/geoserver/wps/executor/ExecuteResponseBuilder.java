@@ -6,12 +6,21 @@ package org.geoserver.wps.executor;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.OutputStream;
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.xml.datatype.XMLGregorianCalendar;
@@ -44,6 +53,7 @@ import org.geoserver.ows.Ows11Util;
 import org.geoserver.ows.URLMangler.URLType;
 import org.geoserver.ows.util.ResponseUtils;
 import org.geoserver.platform.ServiceException;
+import org.geoserver.threadlocals.ThreadLocalsTransfer;
 import org.geoserver.wps.BinaryEncoderDelegate;
 import org.geoserver.wps.CDataEncoderDelegate;
 import org.geoserver.wps.RawDataEncoderDelegate;
@@ -58,9 +68,11 @@ import org.geoserver.wps.ppio.LiteralPPIO;
 import org.geoserver.wps.ppio.ProcessParameterIO;
 import org.geoserver.wps.ppio.RawDataPPIO;
 import org.geoserver.wps.ppio.XMLPPIO;
+import org.geoserver.wps.process.FileRawData;
 import org.geoserver.wps.process.GeoServerProcessors;
 import org.geoserver.wps.process.RawData;
 import org.geoserver.wps.resource.GridCoverageResource;
+import org.geoserver.wps.resource.WPSFileResource;
 import org.geoserver.wps.resource.WPSResourceManager;
 import org.geotools.data.Parameter;
 import org.geotools.process.ProcessFactory;
@@ -93,6 +105,12 @@ public class ExecuteResponseBuilder {
 
     WPSResourceManager resourceManager;
 
+    EncodingProgress encodingProgress;
+
+    ThreadPoolExecutor outputEncoders;
+
+    long maxInlineOutputSize;
+
     public ExecuteResponseBuilder(ExecuteType request, ApplicationContext context, Date created) {
         this.request = request;
         this.created = created;
@@ -228,21 +246,62 @@ public class ExecuteResponseBuilder {
                 // we have a selection of outputs, possibly with indication of mime type
                 // and reference encoding
                 EList outputs = request.getResponseForm().getResponseDocument().getOutput();
+                if (encodingProgress != null) {
+                    for (Object object : outputs) {
+                        DocumentOutputDefinitionType odt = (DocumentOutputDefinitionType) object;
+                        String key = odt.getIdentifier().getValue();
+                        estimateOutput(key, resultInfo.get(key), odt.getMimeType(),
+                                odt.isAsReference());
+                    }
+                }
+                // the outputs stored as references can be written in parallel, if there
+                // are at least two of them
+                int references = 0;
                 for (Object object : outputs) {
-                    DocumentOutputDefinitionType odt = (DocumentOutputDefinitionType) object;
-                    String key = odt.getIdentifier().getValue();
-                    Parameter<?> outputParam = resultInfo.get(key);
-                    if (outputParam == null) {
-                        throw new WPSException("Unknown output " + key + " possible values are: "
-                                + resultInfo.keySet());
+                    if (((DocumentOutputDefinitionType) object).isAsReference()) {
+                        references++;
+                    }
+                }
+                boolean parallel = outputEncoders != null && references > 1;
+                List<OutputEncoding> encodings = new ArrayList<OutputEncoding>();
+                try {
+                    for (Object object : outputs) {
+                        DocumentOutputDefinitionType odt = (DocumentOutputDefinitionType) object;
+                        String key = odt.getIdentifier().getValue();
+                        Parameter<?> outputParam = resultInfo.get(key);
+                        if (outputParam == null) {
+                            throw new WPSException("Unknown output " + key
+                                    + " possible values are: " + resultInfo.keySet());
+                        }
+
+                        String mimeType = odt.getMimeType();
+                        OutputEncoding encoding = new OutputEncoding(key, outputParam, mimeType,
+                                odt.isAsReference());
+                        if (parallel && odt.isAsReference()) {
+                            encoding.submit();
+                        }
+                        encodings.add(encoding);
+                    }
+                    for (OutputEncoding encoding : encodings) {
+                        processOutputs.getOutput().add(encoding.get());
+                    }
+                } finally {
+                    // in case of failure, stop the encodings still running, and wait for them
+                    // to be over, the caller will clean up the resources they are using
+                    for (OutputEncoding encoding : encodings) {
+                        encoding.cancel(true);
+                    }
+                    for (OutputEncoding encoding : encodings) {
+                        encoding.awaitTermination();
                     }
-
-                    String mimeType = odt.getMimeType();
-                    OutputDataType output = encodeOutput(key, outputParam, mimeType, odt.isAsReference());
-                    processOutputs.getOutput().add(output);
                 }
             } else {
                 // encode all as inline for the moment
+                if (encodingProgress != null) {
+                    for (String key : outputs.keySet()) {
+                        estimateOutput(key, resultInfo.get(key), null, false);
+                    }
+                }
                 for (String key : outputs.keySet()) {
                     Parameter<?> outputParam = resultInfo.get(key);
                     OutputDataType output = encodeOutput(key, outputParam, null, false);
@@ -254,6 +313,181 @@ public class ExecuteResponseBuilder {
         return response;
     }
 
+    /**
+     * Encodes a single output, either in the current thread or in the output encoders pool
+     */
+    class OutputEncoding extends FutureTask<OutputDataType> {
+
+        String key;
+
+        boolean submitted;
+
+        boolean started;
+
+        boolean abandoned;
+
+        final CountDownLatch finished = new CountDownLatch(1);
+
+        OutputEncoding(final String key, final Parameter<?> outputParam, final String mimeType,
+                final boolean reference) {
+            super(new Callable<OutputDataType>() {
+
+                final ThreadLocalsTransfer threadLocalTransfer = new ThreadLocalsTransfer();
+
+                final Thread caller = Thread.currentThread();
+
+                @Override
+                public OutputDataType call() throws Exception {
+                    if (Thread.currentThread() == caller) {
+                        return encodeOutput(key, outputParam, mimeType, reference);
+                    }
+                    try {
+                        threadLocalTransfer.apply();
+                        if (executionId != null) {
+                            resourceManager.setCurrentExecutionId(executionId);
+                        }
+                        return encodeOutput(key, outputParam, mimeType, reference);
+                    } finally {
+                        threadLocalTransfer.cleanup();
+                        // the pool thread will serve other executions
+                        resourceManager.clearCurrentExecutionId();
+                    }
+                }
+            });
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (abandoned) {
+                    return;
+                }
+                started = true;
+            }
+            try {
+                super.run();
+            } finally {
+                finished.countDown();
+            }
+        }
+
+        /**
+         * Waits for the encoding to be over, if it started, and prevents it from starting
+         * otherwise
+         */
+        void awaitTermination() {
+            synchronized (this) {
+                abandoned = true;
+                if (!started) {
+                    return;
+                }
+            }
+            try {
+                finished.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void submit() {
+            try {
+                outputEncoders.execute(this);
+                submitted = true;
+            } catch (RejectedExecutionException e) {
+                // will be encoded in the calling thread
+                LOGGER.log(Level.FINE, "Could not encode output " + key + " in parallel", e);
+            }
+        }
+
+        /**
+         * Returns the encoded output, running the encoding in the current thread if it did not
+         * start yet
+         */
+        @Override
+        public OutputDataType get() {
+            if (!isDone() && (!submitted || outputEncoders.remove(this))) {
+                run();
+            }
+            try {
+                return super.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new WPSException("Interrupted while encoding the " + key + " output", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new WPSException("Failed to encode the " + key + " output", cause);
+            }
+        }
+    }
+
+    /**
+     * Adds the estimated size of the output to the encoding progress, in case it's a complex one
+     */
+    void estimateOutput(String key, Parameter<?> outputParam, String mimeType, boolean reference) {
+        if (outputParam == null) {
+            return;
+        }
+        if (mimeType == null) {
+            mimeType = getOutputMimeType(key);
+        }
+        ProcessParameterIO ppio = ProcessParameterIO.find(outputParam, context, mimeType);
+        if (ppio instanceof ComplexPPIO) {
+            encodingProgress.addExpected(getEncodedSize(key, (ComplexPPIO) ppio, reference));
+        }
+    }
+
+    /**
+     * Returns the estimated size of the encoded output, or -1 if unknown
+     */
+    long getEncodedSize(String key, ComplexPPIO ppio, boolean reference) {
+        try {
+            long size = ppio.getEstimatedSize(outputs.get(key));
+            if (size > 0 && !reference
+                    && (ppio instanceof BinaryPPIO || ppio instanceof RawDataPPIO)) {
+                // inline binary outputs are base64 encoded
+                size = size * 4 / 3;
+            }
+            return size;
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "Failed to estimate the size of output " + key, e);
+            return -1;
+        }
+    }
+
+    /**
+     * Encodes the output in its reference file
+     */
+    File writeOutputFile(String key, ComplexPPIO cppio, Object value) throws Exception {
+        return writeOutputFile(key, cppio, value, true);
+    }
+
+    /**
+     * Encodes the output in its reference file, accounting for the storage usage only if
+     * requested, outputs written just to measure them might not be kept
+     */
+    File writeOutputFile(String key, ComplexPPIO cppio, Object value, boolean account)
+            throws Exception {
+        File file = resourceManager.getOutputFile(executionId, key + "." + cppio.getFileExtension());
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(file);
+            OutputStream os = encodingProgress != null ? encodingProgress.wrap(fos) : fos;
+            cppio.encode(value, os);
+        } finally {
+            IOUtils.closeQuietly(fos);
+            if (account) {
+                resourceManager.addStorageUsage(executionId, file);
+            }
+        }
+        return file;
+    }
+
     OutputDataType encodeOutput(String key, Parameter<?> outputParam, String mimeType,
             boolean reference) {
         Wps10Factory f = Wps10Factory.eINSTANCE;
@@ -273,22 +507,49 @@ public class ExecuteResponseBuilder {
         }
 
         try {
+            // is the output too big to be inlined in the response?
+            File encoded = null;
+            if (!reference && ppio instanceof ComplexPPIO && maxInlineOutputSize > 0
+                    && executionId != null) {
+                ComplexPPIO cppio = (ComplexPPIO) ppio;
+                long size = getEncodedSize(key, cppio, false);
+                if (size < 0) {
+                    // no estimate, write it down to measure it
+                    encoded = writeOutputFile(key, cppio, o, false);
+                    size = encoded.length();
+                    if (cppio instanceof BinaryPPIO || cppio instanceof RawDataPPIO) {
+                        // inline binary outputs are base64 encoded
+                        size = size * 4 / 3;
+                    }
+                }
+                if (size > maxInlineOutputSize) {
+                    LOGGER.log(Level.FINE, "Output " + key + " is too big to be inlined, "
+                            + "returning it as a reference instead");
+                    reference = true;
+                    if (encoded != null) {
+                        resourceManager.addStorageUsage(executionId, encoded);
+                    }
+                } else if (encoded != null) {
+                    if (cppio instanceof BinaryPPIO) {
+                        // binary outputs are inlined from the file, which goes away with the
+                        // other temporary resources once the response is written
+                        resourceManager.addResource(new WPSFileResource(encoded));
+                    } else {
+                        // text outputs are encoded again straight in the response
+                        encoded.delete();
+                        encoded = null;
+                    }
+                }
+            }
+
             if (reference && ppio instanceof ComplexPPIO) {
                 // encode as reference
                 OutputReferenceType outputReference = f.createOutputReferenceType();
                 output.setReference(outputReference);
                 
+                // write out the file, unless we already did
                 ComplexPPIO cppio = (ComplexPPIO) ppio;
-                File file = resourceManager.getOutputFile(executionId, key + "." + cppio.getFileExtension());
-                
-                // write out the file
-                FileOutputStream fos = null;
-                try {
-                    fos = new FileOutputStream(file);
-                    cppio.encode(o, fos);
-                } finally {
-                    IOUtils.closeQuietly(fos);
-                }
+                File file = encoded != null ? encoded : writeOutputFile(key, cppio, o);
                 
                 // create the link
                 Map<String, String> kvp = new LinkedHashMap<String, String>();
@@ -337,7 +598,13 @@ public class ExecuteResponseBuilder {
                         complex.getData().add(new CDataEncoderDelegate((CDataPPIO) cppio, o));
                     } else if (cppio instanceof BinaryPPIO) {
                         complex.setEncoding("base64");
-                        complex.getData().add(new BinaryEncoderDelegate((BinaryPPIO) cppio, o));
+                        if (encoded != null) {
+                            // already encoded, just stream the file contents
+                            complex.getData().add(new RawDataEncoderDelegate(new FileRawData(
+                                    encoded, cppio.getMimeType())));
+                        } else {
+                            complex.getData().add(new BinaryEncoderDelegate((BinaryPPIO) cppio, o));
+                        }
                     } else {
                         throw new WPSException("Don't know how to encode an output whose PPIO is "
                                 + cppio);
@@ -403,4 +670,28 @@ public class ExecuteResponseBuilder {
     public void setExecutionId(String executionId) {
         this.executionId = executionId;
     }
+
+    /**
+     * Sets the pool used to write the outputs stored as references in parallel. If not set, the
+     * outputs are written one after the other
+     */
+    public void setOutputEncoders(ThreadPoolExecutor outputEncoders) {
+        this.outputEncoders = outputEncoders;
+    }
+
+    /**
+     * Sets the size, in bytes, above which an output requested inline is stored as a reference
+     * instead. The size is the estimated one, if the PPIO can provide it, or otherwise the actual
+     * one, measured by writing down the output. Zero or a negative value disables the check
+     */
+    public void setMaxInlineOutputSize(long maxInlineOutputSize) {
+        this.maxInlineOutputSize = maxInlineOutputSize;
+    }
+
+    /**
+     * Sets the object tracking how many bytes have been encoded
+     */
+    void setEncodingProgress(EncodingProgress encodingProgress) {
+        this.encodingProgress = encodingProgress;
+    }
 }
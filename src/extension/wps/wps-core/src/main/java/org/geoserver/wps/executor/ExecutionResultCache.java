@@ -0,0 +1,488 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps.executor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import net.opengis.ows11.BoundingBoxType;
+import net.opengis.wps10.ComplexDataType;
+import net.opengis.wps10.DataType;
+import net.opengis.wps10.ExecuteType;
+import net.opengis.wps10.HeaderType;
+import net.opengis.wps10.InputReferenceType;
+import net.opengis.wps10.InputType;
+import net.opengis.wps10.LiteralDataType;
+import net.opengis.wps10.OutputDefinitionType;
+import net.opengis.wps10.ResponseFormType;
+
+import org.apache.commons.io.IOUtils;
+import org.geoserver.wps.resource.WPSResourceManager;
+import org.geotools.util.logging.Logging;
+import org.opengis.coverage.grid.GridCoverage;
+import org.opengis.feature.type.Name;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.w3c.dom.Node;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Caches the outputs of deterministic processes, so that identical Execute requests do not need to
+ * be recomputed. The cache key is made of the process name and a hash of the canonical form of the
+ * inputs (literals, bounding boxes, inline complex data, references along with their bodies and
+ * headers), of the requested output mime types and of the user name and roles of the caller.
+ * <p>
+ * Only the processes explicitly marked as cacheable are considered, and only outputs that are
+ * serializable (and not grid coverages, which are tied to resources that get disposed) are cached.
+ * The cache has an in memory tier and an optional on disk one, under the WPS temporary storage,
+ * both with size and time to live limits. The disk entries are also subject to the WPS resource
+ * expiration.
+ * </p>
+ *
+ * @author Andrea Aime - GeoSolutions
+ */
+public class ExecutionResultCache {
+
+    static final Logger LOGGER = Logging.getLogger(ExecutionResultCache.class);
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final String CACHE_DIRECTORY = "cache";
+
+    static final String EXTENSION = ".ser";
+
+    WPSResourceManager resourceManager;
+
+    volatile Set<Name> cacheableProcesses = Collections.emptySet();
+
+    int maxEntries = 100;
+
+    int maxDiskEntries = 0;
+
+    long timeToLive = 3600;
+
+    volatile Cache<String, Map<String, Object>> memoryCache;
+
+    public ExecutionResultCache(WPSResourceManager resourceManager) {
+        this.resourceManager = resourceManager;
+        this.memoryCache = buildMemoryCache();
+    }
+
+    Cache<String, Map<String, Object>> buildMemoryCache() {
+        return CacheBuilder.newBuilder().maximumSize(maxEntries)
+                .expireAfterWrite(timeToLive, TimeUnit.SECONDS).build();
+    }
+
+    /**
+     * Sets the maximum number of results kept in memory
+     *
+     * @param maxEntries
+     */
+    public synchronized void setMaxEntries(int maxEntries) {
+        this.maxEntries = Math.max(0, maxEntries);
+        this.memoryCache = buildMemoryCache();
+    }
+
+    /**
+     * Sets the maximum number of results kept on disk, zero disables the disk cache
+     *
+     * @param maxDiskEntries
+     */
+    public void setMaxDiskEntries(int maxDiskEntries) {
+        this.maxDiskEntries = Math.max(0, maxDiskEntries);
+    }
+
+    /**
+     * Sets the time to live of the cached results, in seconds
+     *
+     * @param timeToLive
+     */
+    public synchronized void setTimeToLive(long timeToLive) {
+        this.timeToLive = Math.max(1, timeToLive);
+        this.memoryCache = buildMemoryCache();
+    }
+
+    /**
+     * Sets the names of the processes whose results can be cached
+     *
+     * @param names
+     */
+    public void setCacheableProcesses(Collection<Name> names) {
+        if (names == null || names.isEmpty()) {
+            cacheableProcesses = Collections.emptySet();
+        } else {
+            cacheableProcesses = Collections.unmodifiableSet(new HashSet<Name>(names));
+        }
+    }
+
+    /**
+     * Returns true if the results of the specified process can be cached
+     *
+     * @param processName
+     * @return
+     */
+    public boolean isCacheable(Name processName) {
+        return maxEntries > 0 && cacheableProcesses.contains(processName);
+    }
+
+    /**
+     * Builds the cache key for the specified request, or returns null if the request results
+     * cannot be cached
+     *
+     * @param request
+     * @return
+     */
+    public String getKey(ExecuteRequest request) {
+        Name processName = request.getProcessName();
+        if (!isCacheable(processName)) {
+            return null;
+        }
+
+        try {
+            ExecuteType execute = request.getRequest();
+            Hasher hasher = Hashing.sha1().newHasher();
+            putString(hasher, processName.getURI());
+
+            // internal references are read with the caller credentials, results are not shared
+            // among users that might see different data
+            putPrincipal(hasher);
+
+            // inputs in a stable order, but keep the order of the values of multi valued ones
+            List<String[]> inputs = new ArrayList<String[]>();
+            if (execute.getDataInputs() != null) {
+                for (Object o : execute.getDataInputs().getInput()) {
+                    InputType input = (InputType) o;
+                    String canonical = canonicalize(input);
+                    if (canonical == null) {
+                        return null;
+                    }
+                    inputs.add(new String[] { input.getIdentifier().getValue(), canonical });
+                }
+            }
+            Collections.sort(inputs, new Comparator<String[]>() {
+
+                @Override
+                public int compare(String[] o1, String[] o2) {
+                    return o1[0].compareTo(o2[0]);
+                }
+            });
+            for (String[] input : inputs) {
+                putString(hasher, input[0]);
+                putString(hasher, input[1]);
+            }
+
+            // the requested mime types are fed back to some processes as inputs
+            ResponseFormType form = execute.getResponseForm();
+            if (form != null) {
+                if (form.getRawDataOutput() != null) {
+                    putOutput(hasher, form.getRawDataOutput());
+                } else if (form.getResponseDocument() != null) {
+                    for (Object o : form.getResponseDocument().getOutput()) {
+                        putOutput(hasher, (OutputDefinitionType) o);
+                    }
+                }
+            }
+
+            return hasher.hash().toString();
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "Could not compute the cache key for process " + processName,
+                    e);
+            return null;
+        }
+    }
+
+    private void putPrincipal(Hasher hasher) {
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        if (auth == null) {
+            putString(hasher, null);
+            return;
+        }
+        putString(hasher, auth.getName());
+        List<String> roles = new ArrayList<String>();
+        if (auth.getAuthorities() != null) {
+            for (GrantedAuthority authority : auth.getAuthorities()) {
+                roles.add(authority.getAuthority());
+            }
+        }
+        Collections.sort(roles);
+        hasher.putInt(roles.size());
+        for (String role : roles) {
+            putString(hasher, role);
+        }
+    }
+
+    private void putOutput(Hasher hasher, OutputDefinitionType output) {
+        putString(hasher, output.getIdentifier() != null ? output.getIdentifier().getValue()
+                : null);
+        putString(hasher, output.getMimeType());
+    }
+
+    private void putString(Hasher hasher, String value) {
+        if (value == null) {
+            hasher.putInt(-1);
+        } else {
+            // the length avoids ambiguities when concatenating strings
+            hasher.putInt(value.length());
+            hasher.putString(value, UTF8);
+        }
+    }
+
+    /**
+     * Returns the canonical form of the input, or null if the input contents cannot be represented
+     * reliably
+     */
+    String canonicalize(InputType input) throws Exception {
+        StringBuilder sb = new StringBuilder();
+        if (input.getReference() != null) {
+            InputReferenceType ref = input.getReference();
+            sb.append("ref|").append(ref.getHref()).append('|').append(ref.getMethod())
+                    .append('|').append(ref.getMimeType()).append('|').append(ref.getEncoding())
+                    .append('|').append(ref.getSchema());
+            if (ref.getHeader() != null) {
+                for (Object o : ref.getHeader()) {
+                    HeaderType header = (HeaderType) o;
+                    sb.append("|h:").append(header.getKey()).append('=')
+                            .append(header.getValue());
+                }
+            }
+            if (ref.getBody() != null) {
+                String body = toString(ref.getBody());
+                if (body == null) {
+                    return null;
+                }
+                sb.append("|body:").append(body);
+            }
+            if (ref.getBodyReference() != null) {
+                sb.append("|bodyRef:").append(ref.getBodyReference().getHref());
+            }
+        } else if (input.getData() != null) {
+            DataType data = input.getData();
+            if (data.getLiteralData() != null) {
+                LiteralDataType literal = data.getLiteralData();
+                sb.append("literal|").append(literal.getValue()).append('|')
+                        .append(literal.getUom()).append('|').append(literal.getDataType());
+            } else if (data.getComplexData() != null) {
+                ComplexDataType complex = data.getComplexData();
+                sb.append("complex|").append(complex.getMimeType()).append('|')
+                        .append(complex.getEncoding()).append('|').append(complex.getSchema());
+                for (Object item : complex.getData()) {
+                    String content = toString(item);
+                    if (content == null) {
+                        return null;
+                    }
+                    sb.append('|').append(content);
+                }
+            } else if (data.getBoundingBoxData() != null) {
+                BoundingBoxType bbox = data.getBoundingBoxData();
+                sb.append("bbox|").append(bbox.getCrs()).append('|')
+                        .append(bbox.getLowerCorner()).append('|').append(bbox.getUpperCorner());
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Turns the content into a string, only if its string representation is known to reflect the
+     * actual contents
+     */
+    String toString(Object content) throws Exception {
+        if (content instanceof String || content instanceof Number) {
+            return content.toString();
+        } else if (content instanceof Node) {
+            Transformer tx = TransformerFactory.newInstance().newTransformer();
+            tx.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+            StringWriter writer = new StringWriter();
+            tx.transform(new DOMSource((Node) content), new StreamResult(writer));
+            return writer.toString();
+        }
+        return null;
+    }
+
+    /**
+     * Returns the cached outputs for the specified key, or null if not found
+     *
+     * @param key
+     * @return
+     */
+    public Map<String, Object> get(String key) {
+        Map<String, Object> outputs = memoryCache.getIfPresent(key);
+        if (outputs == null && maxDiskEntries > 0) {
+            outputs = readFromDisk(key);
+            if (outputs != null) {
+                memoryCache.put(key, outputs);
+            }
+        }
+        return outputs;
+    }
+
+    /**
+     * Caches the outputs, if they are all suitable for caching
+     *
+     * @param key
+     * @param outputs
+     */
+    public void put(String key, Map<String, Object> outputs) {
+        if (key == null || outputs == null) {
+            return;
+        }
+        for (Object value : outputs.values()) {
+            if (value != null
+                    && (!(value instanceof Serializable) || value instanceof GridCoverage)) {
+                return;
+            }
+        }
+
+        Map<String, Object> copy = Collections.unmodifiableMap(new HashMap<String, Object>(
+                outputs));
+        memoryCache.put(key, copy);
+        if (maxDiskEntries > 0) {
+            writeToDisk(key, copy);
+        }
+    }
+
+    /**
+     * Removes all the cached results
+     */
+    public void clear() {
+        memoryCache.invalidateAll();
+        File directory = getCacheDirectory();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    File getCacheDirectory() {
+        return new File(resourceManager.getWpsOutputStorage(), CACHE_DIRECTORY);
+    }
+
+    @SuppressWarnings("unchecked")
+    Map<String, Object> readFromDisk(String key) {
+        File file = new File(getCacheDirectory(), key + EXTENSION);
+        if (!file.exists()) {
+            return null;
+        }
+        if (System.currentTimeMillis() - file.lastModified() > timeToLive * 1000) {
+            file.delete();
+            return null;
+        }
+
+        ObjectInputStream ois = null;
+        try {
+            ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+            return (Map<String, Object>) ois.readObject();
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "Failed to read cached result " + file, e);
+            file.delete();
+            return null;
+        } finally {
+            IOUtils.closeQuietly(ois);
+        }
+    }
+
+    void writeToDisk(String key, Map<String, Object> outputs) {
+        File directory = getCacheDirectory();
+        if (!directory.exists()) {
+            if (!directory.mkdirs()) {
+                LOGGER.log(Level.FINE, "Could not create the result cache directory " + directory);
+                return;
+            }
+            resourceManager.scheduleExpiration(directory);
+        }
+
+        // write to a temp file and then rename, so that readers never see partial contents
+        File file = new File(directory, key + EXTENSION);
+        File tmp = new File(directory, key + ".tmp");
+        ObjectOutputStream oos = null;
+        try {
+            oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            oos.writeObject(new HashMap<String, Object>(outputs));
+            oos.close();
+            oos = null;
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                LOGGER.log(Level.FINE, "Failed to rename " + tmp + " to " + file);
+            }
+        } catch (Exception e) {
+            // some value is not really serializable, keep it in memory only
+            LOGGER.log(Level.FINE, "Failed to write cached result " + file, e);
+        } finally {
+            IOUtils.closeQuietly(oos);
+            tmp.delete();
+        }
+
+        pruneDisk(directory);
+    }
+
+    /**
+     * Removes the expired entries, and the oldest ones if there are too many
+     */
+    void pruneDisk(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<File> entries = new ArrayList<File>();
+        for (File file : files) {
+            if (!file.getName().endsWith(EXTENSION)) {
+                continue;
+            }
+            if (now - file.lastModified() > timeToLive * 1000) {
+                file.delete();
+            } else {
+                entries.add(file);
+            }
+        }
+        if (entries.size() > maxDiskEntries) {
+            File[] sorted = entries.toArray(new File[entries.size()]);
+            Arrays.sort(sorted, new Comparator<File>() {
+
+                @Override
+                public int compare(File f1, File f2) {
+                    long diff = f1.lastModified() - f2.lastModified();
+                    return diff < 0 ? -1 : (diff == 0 ? 0 : 1);
+                }
+            });
+            for (int i = 0; i < sorted.length - maxDiskEntries; i++) {
+                sorted[i].delete();
+            }
+        }
+    }
+}
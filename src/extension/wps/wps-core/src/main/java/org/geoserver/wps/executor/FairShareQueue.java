@@ -0,0 +1,427 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps.executor;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A work queue for thread pool executors that dequeues tasks using a weighted fair share policy
+ * (start time fair queueing) instead of plain FIFO order.
+ * <p>
+ * Each task belongs to a "share", identified by a key (e.g., the client plus the process group),
+ * and each share has a weight. When several shares have queued tasks, they get executor slots in
+ * proportion to their weight, so a single share submitting a burst of jobs cannot starve the
+ * others. Within a share tasks are still executed in submission order. Tasks that do not implement
+ * {@link Task} end up in a common default share with weight 1.
+ * </p>
+ * <p>
+ * The queue can be bounded, in that case {@link #offer(Runnable)} returns false once the capacity
+ * is reached, allowing the executor to reject the submission instead of piling up work
+ * </p>
+ *
+ * @author Andrea Aime - GeoSolutions
+ */
+class FairShareQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    /**
+     * A task that can tell the queue which share it belongs to
+     */
+    interface Task {
+
+        /**
+         * The share this task belongs to
+         */
+        String getShareKey();
+
+        /**
+         * The share weight, a positive number, higher values get more executions
+         */
+        int getShareWeight();
+    }
+
+    static final String DEFAULT_SHARE = "default";
+
+    /**
+     * The virtual cost of a task with weight 1, tasks with higher weights cost proportionally less
+     */
+    static final long UNIT_COST = 1000000;
+
+    final ReentrantLock lock = new ReentrantLock();
+
+    final Condition notEmpty = lock.newCondition();
+
+    final Condition notFull = lock.newCondition();
+
+    final PriorityQueue<Entry> entries = new PriorityQueue<Entry>(16, new Comparator<Entry>() {
+
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            if (e1.start != e2.start) {
+                return e1.start < e2.start ? -1 : 1;
+            }
+            return e1.sequence < e2.sequence ? -1 : (e1.sequence == e2.sequence ? 0 : 1);
+        }
+    });
+
+    final Map<String, Share> shares = new HashMap<String, Share>();
+
+    long virtualTime;
+
+    long sequence;
+
+    volatile int capacity;
+
+    public FairShareQueue() {
+        this(Integer.MAX_VALUE);
+    }
+
+    public FairShareQueue(int capacity) {
+        setCapacity(capacity);
+    }
+
+    /**
+     * Sets the maximum number of queued tasks, a non positive value means unbounded. Reducing the
+     * capacity does not remove the tasks already queued
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = capacity > 0 ? capacity : Integer.MAX_VALUE;
+        lock.lock();
+        try {
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    static final class Share {
+        /**
+         * Virtual finish time of the last task queued for this share
+         */
+        long lastFinish;
+
+        /**
+         * Number of tasks of this share still in the queue
+         */
+        int queued;
+    }
+
+    static final class Entry {
+        final Runnable task;
+
+        final Share share;
+
+        final String shareKey;
+
+        final long start;
+
+        final long sequence;
+
+        Entry(Runnable task, String shareKey, Share share, long start, long sequence) {
+            this.task = task;
+            this.shareKey = shareKey;
+            this.share = share;
+            this.start = start;
+            this.sequence = sequence;
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable task) {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        lock.lock();
+        try {
+            if (entries.size() >= capacity) {
+                return false;
+            }
+            enqueue(task);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void enqueue(Runnable task) {
+        String key = DEFAULT_SHARE;
+        int weight = 1;
+        if (task instanceof Task) {
+            Task st = (Task) task;
+            if (st.getShareKey() != null) {
+                key = st.getShareKey();
+            }
+            weight = Math.max(1, st.getShareWeight());
+        }
+
+        Share share = shares.get(key);
+        if (share == null) {
+            share = new Share();
+            shares.put(key, share);
+        }
+        long start = Math.max(virtualTime, share.lastFinish);
+        share.lastFinish = start + UNIT_COST / weight;
+        share.queued++;
+        entries.add(new Entry(task, key, share, start, sequence++));
+    }
+
+    private Runnable dequeue() {
+        Entry entry = entries.poll();
+        if (entry == null) {
+            return null;
+        }
+        virtualTime = Math.max(virtualTime, entry.start);
+        release(entry);
+        notFull.signal();
+        return entry.task;
+    }
+
+    private void release(Entry entry) {
+        Share share = entry.share;
+        share.queued--;
+        // idle shares are dropped, when they come back they start again from the current
+        // virtual time, like a new share would
+        if (share.queued == 0) {
+            shares.remove(entry.shareKey);
+        }
+    }
+
+    @Override
+    public void put(Runnable task) throws InterruptedException {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        lock.lockInterruptibly();
+        try {
+            while (entries.size() >= capacity) {
+                notFull.await();
+            }
+            enqueue(task);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable task, long timeout, TimeUnit unit) throws InterruptedException {
+        if (task == null) {
+            throw new NullPointerException();
+        }
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (entries.size() >= capacity) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            enqueue(task);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (entries.isEmpty()) {
+                notEmpty.await();
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (entries.isEmpty()) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            Entry entry = entries.peek();
+            return entry != null ? entry.task : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return capacity == Integer.MAX_VALUE ? Integer.MAX_VALUE : Math.max(0, capacity
+                    - entries.size());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (o == null) {
+            return false;
+        }
+        lock.lock();
+        try {
+            for (Iterator<Entry> it = entries.iterator(); it.hasNext();) {
+                Entry entry = it.next();
+                if (entry.task == o) {
+                    it.remove();
+                    release(entry);
+                    notFull.signal();
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        lock.lock();
+        try {
+            int count = 0;
+            while (count < maxElements && !entries.isEmpty()) {
+                c.add(dequeue());
+                count++;
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of tasks queued for each share
+     */
+    Map<String, Integer> getQueuedByShare() {
+        lock.lock();
+        try {
+            Map<String, Integer> result = new HashMap<String, Integer>();
+            for (Map.Entry<String, Share> entry : shares.entrySet()) {
+                if (entry.getValue().queued > 0) {
+                    result.put(entry.getKey(), entry.getValue().queued);
+                }
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a snapshot iterator, in no particular order, whose remove method removes the
+     * element from the live queue
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        final List<Runnable> snapshot = new ArrayList<Runnable>();
+        lock.lock();
+        try {
+            for (Entry entry : entries) {
+                snapshot.add(entry.task);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        return new Iterator<Runnable>() {
+            int next = 0;
+
+            Runnable last;
+
+            @Override
+            public boolean hasNext() {
+                return next < snapshot.size();
+            }
+
+            @Override
+            public Runnable next() {
+                if (next >= snapshot.size()) {
+                    throw new NoSuchElementException();
+                }
+                last = snapshot.get(next++);
+                return last;
+            }
+
+            @Override
+            public void remove() {
+                if (last == null) {
+                    throw new IllegalStateException();
+                }
+                FairShareQueue.this.remove(last);
+                last = null;
+            }
+        };
+    }
+}
@@ -5,12 +5,22 @@
 package org.geoserver.wps.executor;
 
 import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import org.geoserver.threadlocals.ThreadLocalsTransfer;
 import org.geoserver.wps.WPSException;
+import org.geoserver.wps.resource.WPSResourceManager;
+import org.geotools.util.logging.Logging;
 
 /**
  * A map using input providers internally, allows for deferred execution of the input parsing
@@ -20,6 +30,8 @@ import org.geoserver.wps.WPSException;
  */
 class LazyInputMap extends AbstractMap<String, Object> {
 
+    static final Logger LOGGER = Logging.getLogger(LazyInputMap.class);
+
     Map<String, InputProvider> providers = new HashMap<String, InputProvider>();
 
     public LazyInputMap(Map<String, InputProvider> providers) {
@@ -58,14 +70,109 @@ class LazyInputMap extends AbstractMap<String, Object> {
             return 100.0f;
         }
         
-        int  count = 0;
+        float count = 0;
         for (InputProvider provider: providers.values()) {
             if(provider.resolved()) {
                 count++;
+            } else if(provider instanceof ListInputProvider) {
+                // multi valued inputs can be partially retrieved
+                count += ((ListInputProvider) provider).getResolvedRatio();
             }
         }
         return 100f * count / providers.size();
     }
+
+    /**
+     * Resolves in parallel, using the provided executor, all the inputs that might take a long time
+     * to parse (remote references, chained processes), including the single items of multi valued
+     * inputs, and waits for them to complete. Failures are not reported here, they will be thrown
+     * as usual when the process asks for the input value.
+     * <p>
+     * Chained processes prefetch their own inputs in turn, so a chain is evaluated as a tree
+     * whose independent branches run in parallel. Since the same pool is used at all levels, a
+     * waiting thread never blocks on a retrieval that has not started yet, it takes it off the
+     * queue and runs it itself instead: this way a pool full of waiting parents cannot starve the
+     * children they are waiting for.
+     * </p>
+     * 
+     * @param service The executor resolving the inputs
+     * @param resourceManager The resource manager the inputs might register resources with
+     * @param executionId The current execution id
+     * @throws InterruptedException If the calling thread got interrupted while waiting for the
+     *         inputs to be retrieved
+     */
+    public void prefetch(ThreadPoolExecutor service, final WPSResourceManager resourceManager,
+            final String executionId) throws InterruptedException {
+        List<InputProvider> targets = new ArrayList<InputProvider>();
+        for (InputProvider provider : providers.values()) {
+            if (provider instanceof ListInputProvider) {
+                for (InputProvider item : ((ListInputProvider) provider).getProviders()) {
+                    if (item.longParse() && !item.resolved()) {
+                        targets.add(item);
+                    }
+                }
+            } else if (provider.longParse() && !provider.resolved()) {
+                targets.add(provider);
+            }
+        }
+        // with a single slow input there is nothing to gain, it will be parsed inline
+        if (targets.size() < 2) {
+            return;
+        }
+
+        final ThreadLocalsTransfer threadLocalTransfer = new ThreadLocalsTransfer();
+        final Thread caller = Thread.currentThread();
+        List<FutureTask<Object>> futures = new ArrayList<FutureTask<Object>>();
+        for (final InputProvider provider : targets) {
+            FutureTask<Object> task = new FutureTask<Object>(new Runnable() {
+
+                @Override
+                public void run() {
+                    // rejected or pulled back tasks run in the caller thread, whose thread
+                    // locals must be left alone, the process still needs them
+                    boolean transfer = Thread.currentThread() != caller;
+                    try {
+                        if (transfer) {
+                            threadLocalTransfer.apply();
+                            resourceManager.setCurrentExecutionId(executionId);
+                        }
+                        provider.getValue();
+                    } catch (Exception e) {
+                        // the provider will throw it again when the process asks for the value
+                        LOGGER.log(Level.FINE, "Failed to prefetch input " + provider.getInputId(),
+                                e);
+                    } finally {
+                        if (transfer) {
+                            threadLocalTransfer.cleanup();
+                        }
+                    }
+                }
+            }, null);
+            futures.add(task);
+            service.execute(task);
+        }
+
+        try {
+            for (FutureTask<Object> future : futures) {
+                try {
+                    // not started yet? Then run it here, instead of waiting for a free thread
+                    if (!future.isDone() && service.remove(future)) {
+                        future.run();
+                    }
+                    future.get();
+                } catch (ExecutionException e) {
+                    // cannot happen, the task catches everything
+                    LOGGER.log(Level.FINE, "Unexpected input prefetch failure", e);
+                }
+            }
+        } catch (InterruptedException e) {
+            // the process got cancelled, stop the retrievals still pending
+            for (FutureTask<Object> future : futures) {
+                future.cancel(true);
+            }
+            throw e;
+        }
+    }
     
     public boolean longParse() {
         for (InputProvider provider: providers.values()) {
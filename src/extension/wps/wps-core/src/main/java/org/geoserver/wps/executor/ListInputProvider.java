@@ -15,11 +15,11 @@ import java.util.List;
  */
 class ListInputProvider implements InputProvider {
 
-    List<InputProvider> providers;
+    volatile List<InputProvider> providers;
 
     String inputId;
 
-    List<Object> value;
+    volatile List<Object> value;
 
     public ListInputProvider(InputProvider provider) {
         this.providers = new ArrayList<InputProvider>();
@@ -30,11 +30,12 @@ class ListInputProvider implements InputProvider {
     @Override
     public Object getValue() throws Exception {
         if (value == null) {
-            value = new ArrayList<Object>();
+            List<Object> values = new ArrayList<Object>();
             for (InputProvider provider : providers) {
                 Object pv = provider.getValue();
-                value.add(pv);
+                values.add(pv);
             }
+            value = values;
             providers = null;
         }
         return value;
@@ -49,6 +50,36 @@ class ListInputProvider implements InputProvider {
         this.providers.add(provider);
     }
 
+    /**
+     * Returns the providers for the single values, or an empty list if the value has already been
+     * retrieved
+     * 
+     * @return
+     */
+    List<InputProvider> getProviders() {
+        List<InputProvider> result = providers;
+        return result == null ? new ArrayList<InputProvider>() : result;
+    }
+
+    /**
+     * Returns the ratio of single values already parsed, as a number between 0 and 1
+     * 
+     * @return
+     */
+    float getResolvedRatio() {
+        List<InputProvider> current = providers;
+        if (value != null || current == null || current.isEmpty()) {
+            return 1;
+        }
+        int count = 0;
+        for (InputProvider provider : current) {
+            if (provider.resolved()) {
+                count++;
+            }
+        }
+        return count / (float) current.size();
+    }
+
     @Override
     public boolean resolved() {
         return value != null;
@@ -56,7 +87,7 @@ class ListInputProvider implements InputProvider {
 
     @Override
     public boolean longParse() {
-        for (InputProvider provider : providers) {
+        for (InputProvider provider : getProviders()) {
             if(provider.longParse()) {
                 return true;
             }
@@ -6,6 +6,7 @@ package org.geoserver.wps.executor;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 import org.geoserver.threadlocals.ThreadLocalsTransfer;
 import org.geoserver.wps.resource.WPSResourceManager;
@@ -70,6 +71,33 @@ public interface ProcessManager {
     void submit(String executionId, Name processName, Map<String, Object> inputs, boolean background)
             throws ProcessException;
 
+    /**
+     * Registers a listener that will be invoked, using the specified executor, as soon as the
+     * execution terminates (successfully, with a failure, or because it got cancelled). If the
+     * execution is already terminated the listener is invoked right away. This allows to avoid
+     * blocking a thread in {@link #getOutput(String, long)} while waiting for the process to
+     * complete
+     * 
+     * @param executionId The execution id
+     * @param listener The listener to be invoked
+     * @param executor The executor running the listener
+     * @return True if the listener was registered, false if the execution is not known to this
+     *         process manager
+     */
+    boolean addCompletionListener(String executionId, Runnable listener, Executor executor);
+
+    /**
+     * Registers a listener that will be invoked every time the status of the execution changes
+     * (phase, progress or current task). The listener is called by the thread updating the
+     * status, so it must return quickly
+     * 
+     * @param executionId The execution id
+     * @param listener The listener to be invoked
+     * @return True if the listener was registered, false if the execution is not known to this
+     *         process manager
+     */
+    boolean addStatusListener(String executionId, Runnable listener);
+
     /**
      * Returns the status of an asynch call if the id is known, null otherwise
      */
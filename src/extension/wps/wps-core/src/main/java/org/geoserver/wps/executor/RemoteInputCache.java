@@ -0,0 +1,328 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps.executor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.io.IOUtils;
+import org.geoserver.wps.WPSException;
+import org.geoserver.wps.resource.WPSResourceManager;
+import org.geotools.util.logging.Logging;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Keeps a local copy of the remote input references retrieved with a GET request, so that popular
+ * datasets are downloaded once, and then just revalidated with a conditional request using the
+ * ETag and Last-Modified headers the server provided. Responses without any validator are not
+ * cached.
+ * <p>
+ * The copies are stored under the WPS temporary storage, each revalidation refreshes the file
+ * modification date, so the entries that are not used get removed by the WPS resource expiration,
+ * or when the max number of entries is reached
+ * </p>
+ *
+ * @author Andrea Aime - GeoSolutions
+ */
+public class RemoteInputCache {
+
+    static final Logger LOGGER = Logging.getLogger(RemoteInputCache.class);
+
+    static final String CACHE_DIRECTORY = "remote";
+
+    static final String DATA_EXTENSION = ".data";
+
+    static final String INFO_EXTENSION = ".properties";
+
+    static final String ETAG = "ETag";
+
+    static final String LAST_MODIFIED = "Last-Modified";
+
+    WPSResourceManager resourceManager;
+
+    int maxEntries = 0;
+
+    public RemoteInputCache(WPSResourceManager resourceManager) {
+        this.resourceManager = resourceManager;
+    }
+
+    /**
+     * Sets the maximum number of remote resources kept on disk, zero disables the cache
+     *
+     * @param maxEntries
+     */
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = Math.max(0, maxEntries);
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    public boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    /**
+     * Executes the GET request and returns the response body, either from the network or, if the
+     * remote server says it did not change, from the local copy. The method connection must be
+     * released by the caller once done with the stream.
+     *
+     * @param client
+     * @param method
+     * @return
+     * @throws IOException
+     */
+    public InputStream get(HttpClient client, GetMethod method) throws IOException {
+        String key = getKey(method);
+        File directory = getCacheDirectory();
+        File data = new File(directory, key + DATA_EXTENSION);
+        File info = new File(directory, key + INFO_EXTENSION);
+
+        // do we have a copy to revalidate? If so open it right away, so that it cannot be
+        // removed under our feet while we talk to the server
+        Properties validators = readValidators(info, data);
+        InputStream cached = null;
+        if (validators != null) {
+            try {
+                cached = new FileInputStream(data);
+                if (validators.getProperty(ETAG) != null) {
+                    method.setRequestHeader("If-None-Match", validators.getProperty(ETAG));
+                }
+                if (validators.getProperty(LAST_MODIFIED) != null) {
+                    method.setRequestHeader("If-Modified-Since",
+                            validators.getProperty(LAST_MODIFIED));
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Cached copy of " + method.getURI() + " disappeared", e);
+            }
+        }
+
+        int code;
+        try {
+            code = client.executeMethod(method);
+        } catch (IOException e) {
+            IOUtils.closeQuietly(cached);
+            throw e;
+        }
+        if (code == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+            LOGGER.log(Level.FINE, "Using the cached copy of " + method.getURI());
+            long now = System.currentTimeMillis();
+            data.setLastModified(now);
+            info.setLastModified(now);
+            return cached;
+        }
+        IOUtils.closeQuietly(cached);
+        if (code != HttpStatus.SC_OK) {
+            throw new WPSException("Error getting remote resources from " + method.getURI()
+                    + ", http error " + code + ": " + method.getStatusText());
+        }
+
+        // store a local copy, if we'll be able to revalidate it later
+        Header etag = method.getResponseHeader(ETAG);
+        Header lastModified = method.getResponseHeader(LAST_MODIFIED);
+        Header cacheControl = method.getResponseHeader("Cache-Control");
+        boolean noStore = cacheControl != null && cacheControl.getValue() != null
+                && cacheControl.getValue().toLowerCase().contains("no-store");
+        if ((etag == null && lastModified == null) || noStore || !ensureDirectory(directory)) {
+            return method.getResponseBodyAsStream();
+        }
+
+        Properties newValidators = new Properties();
+        if (etag != null) {
+            newValidators.setProperty(ETAG, etag.getValue());
+        }
+        if (lastModified != null) {
+            newValidators.setProperty(LAST_MODIFIED, lastModified.getValue());
+        }
+        InputStream result = store(method, newValidators, data, info);
+        prune(directory);
+
+        return result;
+    }
+
+    /**
+     * Builds a key out of the request URI and headers (which might contain authentication
+     * information, and thus change the response)
+     */
+    String getKey(GetMethod method) throws IOException {
+        Hasher hasher = Hashing.sha1().newHasher();
+        hasher.putString(method.getURI().toString(), Charset.forName("UTF-8"));
+        for (Header header : method.getRequestHeaders()) {
+            hasher.putString("|" + header.getName() + "=" + header.getValue(),
+                    Charset.forName("UTF-8"));
+        }
+        return hasher.hash().toString();
+    }
+
+    Properties readValidators(File info, File data) {
+        if (!info.exists() || !data.exists()) {
+            return null;
+        }
+        InputStream is = null;
+        try {
+            is = new FileInputStream(info);
+            Properties props = new Properties();
+            props.load(is);
+            return props.isEmpty() ? null : props;
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to read cache information " + info, e);
+            return null;
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    /**
+     * Stores the response body in the cache and returns a stream over it. Failing to store the
+     * copy is not fatal, the downloaded contents are returned anyways, just not cached
+     */
+    InputStream store(GetMethod method, Properties validators, File data, File info)
+            throws IOException {
+        // write in temporary files, and then rename, the same resource might be fetched
+        // by several requests at the same time
+        File tmpData = null;
+        File tmpInfo = null;
+        try {
+            tmpData = File.createTempFile("remote", ".tmp", data.getParentFile());
+            tmpInfo = File.createTempFile("remote", ".tmp", data.getParentFile());
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Cannot cache " + method.getURI()
+                    + ", reading it straight from the network", e);
+            if (tmpData != null) {
+                tmpData.delete();
+            }
+            return method.getResponseBodyAsStream();
+        }
+
+        OutputStream os = null;
+        boolean handedOver = false;
+        try {
+            os = new FileOutputStream(tmpData);
+            IOUtils.copy(method.getResponseBodyAsStream(), os);
+            os.close();
+            os = new FileOutputStream(tmpInfo);
+            validators.store(os, null);
+            os.close();
+            os = null;
+
+            // the info goes last, it's what makes the entry valid
+            info.delete();
+            data.delete();
+            boolean dataStored = tmpData.renameTo(data);
+            if (dataStored && tmpInfo.renameTo(info)) {
+                return new FileInputStream(data);
+            }
+
+            // without the info file the entry won't be used, and will eventually be pruned
+            LOGGER.log(Level.WARNING, "Failed to store the remote resource copy in " + data
+                    + ", the resource will not be cached");
+            if (dataStored) {
+                return new FileInputStream(data);
+            }
+            InputStream result = new TemporaryFileInputStream(tmpData);
+            handedOver = true;
+            return result;
+        } finally {
+            IOUtils.closeQuietly(os);
+            if (!handedOver) {
+                tmpData.delete();
+            }
+            tmpInfo.delete();
+        }
+    }
+
+    boolean ensureDirectory(File directory) {
+        if (directory.exists()) {
+            return true;
+        }
+        if (directory.mkdirs()) {
+            resourceManager.scheduleExpiration(directory);
+            return true;
+        }
+        return false;
+    }
+
+    File getCacheDirectory() {
+        return new File(resourceManager.getWpsOutputStorage(), CACHE_DIRECTORY);
+    }
+
+    /**
+     * Removes the least recently used entries when there are too many
+     */
+    void prune(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<File> entries = new ArrayList<File>();
+        for (File file : files) {
+            if (file.getName().endsWith(DATA_EXTENSION)) {
+                entries.add(file);
+            }
+        }
+        if (entries.size() <= maxEntries) {
+            return;
+        }
+
+        File[] sorted = entries.toArray(new File[entries.size()]);
+        Arrays.sort(sorted, new Comparator<File>() {
+
+            @Override
+            public int compare(File f1, File f2) {
+                long diff = f1.lastModified() - f2.lastModified();
+                return diff < 0 ? -1 : (diff == 0 ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < sorted.length - maxEntries; i++) {
+            File data = sorted[i];
+            String name = data.getName();
+            String key = name.substring(0, name.length() - DATA_EXTENSION.length());
+            new File(directory, key + INFO_EXTENSION).delete();
+            data.delete();
+        }
+    }
+
+    /**
+     * Reads a temporary file, and removes it once closed
+     */
+    static class TemporaryFileInputStream extends FileInputStream {
+
+        File file;
+
+        public TemporaryFileInputStream(File file) throws FileNotFoundException {
+            super(file);
+            this.file = file;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                file.delete();
+            }
+        }
+    }
+}
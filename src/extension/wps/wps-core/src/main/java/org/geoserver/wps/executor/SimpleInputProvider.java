@@ -4,10 +4,10 @@
  */
 package org.geoserver.wps.executor;
 
+import java.io.File;
 import java.io.InputStream;
 import java.net.URL;
 import java.net.URLConnection;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -22,16 +22,15 @@ import net.opengis.wps10.InputReferenceType;
 import net.opengis.wps10.InputType;
 import net.opengis.wps10.LiteralDataType;
 import net.opengis.wps10.MethodType;
+import net.opengis.wps10.OutputDefinitionType;
+import net.opengis.wps10.ResponseFormType;
 
 import org.apache.commons.httpclient.HttpClient;
-import org.apache.commons.httpclient.HttpConnectionManager;
 import org.apache.commons.httpclient.HttpMethod;
-import org.apache.commons.httpclient.SimpleHttpConnectionManager;
 import org.apache.commons.httpclient.methods.GetMethod;
 import org.apache.commons.httpclient.methods.InputStreamRequestEntity;
 import org.apache.commons.httpclient.methods.PostMethod;
 import org.apache.commons.httpclient.methods.StringRequestEntity;
-import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.geoserver.ows.Dispatcher;
 import org.geoserver.ows.KvpRequestReader;
 import org.geoserver.ows.Request;
@@ -47,11 +46,14 @@ import org.geoserver.wps.WPSException;
 import org.geoserver.wps.kvp.ExecuteKvpRequestReader;
 import org.geoserver.wps.ppio.BoundingBoxPPIO;
 import org.geoserver.wps.ppio.ComplexPPIO;
+import org.geoserver.wps.ppio.FileReferenceInputStream;
 import org.geoserver.wps.ppio.LiteralPPIO;
 import org.geoserver.wps.ppio.ProcessParameterIO;
 import org.geoserver.wps.ppio.RawDataPPIO;
 import org.geoserver.wps.process.StringRawData;
 import org.geoserver.wps.resource.GridCoverageResource;
+import org.geotools.data.DataUtilities;
+import org.geotools.data.simple.SimpleFeatureCollection;
 import org.opengis.coverage.grid.GridCoverage;
 import org.springframework.context.ApplicationContext;
 
@@ -66,7 +68,13 @@ class SimpleInputProvider implements InputProvider {
 
     ProcessParameterIO ppio;
 
-    Object value;
+    volatile Object value;
+
+    /**
+     * The failure that occurred during the first parse attempt, if any. Inputs might be parsed
+     * ahead of time, so we need to remember it until the process asks for the value
+     */
+    Exception failure;
 
     ApplicationContext context;
 
@@ -108,7 +116,19 @@ class SimpleInputProvider implements InputProvider {
         }
     }
 
-    public Object getValue() throws Exception {
+    public synchronized Object getValue() throws Exception {
+        if (failure != null) {
+            throw failure;
+        }
+        try {
+            return parseValue();
+        } catch (Exception e) {
+            failure = e;
+            throw e;
+        }
+    }
+
+    Object parseValue() throws Exception {
         if (value == null) {
             if (input.getReference() != null) {
                 // this is a reference
@@ -204,15 +224,61 @@ class SimpleInputProvider implements InputProvider {
         }
 
         Map<String, Object> results = executor.submitChained(new ExecuteRequest(request));
-        Object obj = results.values().iterator().next();
+        Object obj = getChainedOutput(request, results);
         if (obj != null && !ppio.getType().isInstance(obj)) {
             throw new WPSException(
                     "The process output is incompatible with the input target type, was expecting "
                             + ppio.getType().getName() + " and got " + obj.getClass().getName());
         }
+        
+        // if the output is lazy, let the parent consume the features while the child computes them
+        if (obj instanceof SimpleFeatureCollection) {
+            obj = executor.streamChainedOutput((SimpleFeatureCollection) obj);
+        }
         return obj;
     }
 
+    /**
+     * Picks the output requested in the nested response form, or the one compatible with the
+     * target input if the nested request did not specify any
+     * 
+     * @param request
+     * @param results
+     * @return
+     */
+    Object getChainedOutput(ExecuteType request, Map<String, Object> results) {
+        String outputId = null;
+        ResponseFormType form = request.getResponseForm();
+        if (form != null) {
+            if (form.getRawDataOutput() != null) {
+                outputId = form.getRawDataOutput().getIdentifier().getValue();
+            } else if (form.getResponseDocument() != null
+                    && !form.getResponseDocument().getOutput().isEmpty()) {
+                OutputDefinitionType output = (OutputDefinitionType) form.getResponseDocument()
+                        .getOutput().get(0);
+                outputId = output.getIdentifier().getValue();
+            }
+        }
+        if (outputId != null) {
+            if (!results.containsKey(outputId)) {
+                throw new WPSException("The chained process did not return the requested output "
+                        + outputId, "InvalidParameterValue", inputId);
+            }
+            return results.get(outputId);
+        }
+
+        // no explicit choice, go for the first output compatible with the target
+        if (results.isEmpty()) {
+            return null;
+        }
+        for (Object value : results.values()) {
+            if (value != null && ppio.getType().isInstance(value)) {
+                return value;
+            }
+        }
+        return results.values().iterator().next();
+    }
+
     /**
      * Process the request as an internal one, without going through GML encoding/decoding
      * 
@@ -272,17 +338,8 @@ class SimpleInputProvider implements InputProvider {
         // execute the request
         try {
             if ("http".equalsIgnoreCase(destination.getProtocol())) {
-                // setup the client
-                HttpClient client = new HttpClient();
-                // setting timeouts (30 seconds, TODO: make this configurable)
-                HttpConnectionManagerParams params = new HttpConnectionManagerParams();
-                params.setSoTimeout(executor.getConnectionTimeout());
-                params.setConnectionTimeout(executor.getConnectionTimeout());
-                // TODO: make the http client a well behaved http client, no more than x connections
-                // per server (x admin configurable maybe), persistent connections and so on
-                HttpConnectionManager manager = new SimpleHttpConnectionManager();
-                manager.setParams(params);
-                client.setHttpConnectionManager(manager);
+                // setup the client, the connection pool is shared and holds the timeouts
+                HttpClient client = executor.getHttpClient();
 
                 // prepare either a GET or a POST request
                 if (ref.getMethod() == null || ref.getMethod() == MethodType.GET_LITERAL) {
@@ -336,14 +393,25 @@ class SimpleInputProvider implements InputProvider {
                         method.setRequestHeader(header.getKey(), header.getValue());
                     }
                 }
-                int code = client.executeMethod(method);
-
-                if (code == 200) {
-                    input = method.getResponseBodyAsStream();
+                RemoteInputCache cache = executor.getRemoteInputCache();
+                if (method instanceof GetMethod && cache != null && cache.isEnabled()) {
+                    // conditional GET against a local copy, if any
+                    input = cache.get(client, (GetMethod) method);
                 } else {
-                    throw new WPSException("Error getting remote resources from " + ref.getHref()
-                            + ", http error " + code + ": " + method.getStatusText());
+                    int code = client.executeMethod(method);
+
+                    if (code == 200) {
+                        input = method.getResponseBodyAsStream();
+                    } else {
+                        throw new WPSException("Error getting remote resources from "
+                                + ref.getHref() + ", http error " + code + ": "
+                                + method.getStatusText());
+                    }
                 }
+            } else if ("file".equalsIgnoreCase(destination.getProtocol())) {
+                // local file, let the PPIO read it in place if they can
+                File file = DataUtilities.urlToFile(destination);
+                input = new FileReferenceInputStream(file);
             } else {
                 // use the normal url connection methods then...
                 URLConnection conn = destination.openConnection();
@@ -391,8 +459,11 @@ class SimpleInputProvider implements InputProvider {
         // hack to allow wcs filters to work... we should really upgrade the WCS models instead...
         Request r = Dispatcher.REQUEST.get();
         if (r != null) {
-            Map kvp = new HashMap(r.getKvp());
-            r.setKvp(new CaseInsensitiveMap(parsed));
+            // inputs can be parsed in parallel, and they all share the same request object
+            synchronized (r) {
+                r.setKvp(new CaseInsensitiveMap(parsed));
+                return reader.read(reader.createRequest(), parsed, original);
+            }
         }
 
         return reader.read(reader.createRequest(), parsed, original);
@@ -0,0 +1,273 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps.executor;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.threadlocals.ThreadLocalsTransfer;
+import org.geoserver.wps.resource.WPSResource;
+import org.geoserver.wps.resource.WPSResourceManager;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.collection.SpatialIndexFeatureCollection;
+import org.geotools.data.collection.TreeSetFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.DefaultFeatureCollection;
+import org.geotools.feature.collection.DecoratingSimpleFeatureCollection;
+import org.geotools.process.ProcessException;
+import org.geotools.util.logging.Logging;
+import org.opengis.feature.simple.SimpleFeature;
+
+/**
+ * Hands over the features of a chained process output to the parent process through a bounded
+ * queue, filled by a separate thread, so that the parent can consume features while the child
+ * process is still producing them.
+ * <p>
+ * The chained process has already returned when its output gets wrapped, so this only helps when
+ * the output is a lazy collection that computes its features on iteration, see
+ * {@link #isLazy(SimpleFeatureCollection)}: the child then produces them in parallel with the
+ * parent consuming them. In memory collections are already fully computed and are not wrapped.
+ * </p>
+ * <p>
+ * Only the first iteration is streamed, the features are not kept around, so any other access
+ * (further iterations, size, bounds) goes straight to the child collection. If no thread is
+ * available to produce the features the collection behaves as a plain wrapper. The streaming
+ * iterator is closed when the execution gets cleaned up, in case the parent process did not
+ * close it.
+ * </p>
+ *
+ * @author Andrea Aime - GeoSolutions
+ */
+class StreamingFeatureCollection extends DecoratingSimpleFeatureCollection {
+
+    static final Logger LOGGER = Logging.getLogger(StreamingFeatureCollection.class);
+
+    static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    /**
+     * Marks the end of the stream
+     */
+    static final Object END = new Object();
+
+    Executor executor;
+
+    WPSResourceManager resourceManager;
+
+    String executionId;
+
+    int bufferSize;
+
+    AtomicBoolean streamed = new AtomicBoolean(false);
+
+    public StreamingFeatureCollection(SimpleFeatureCollection delegate, Executor executor,
+            WPSResourceManager resourceManager, String executionId, int bufferSize) {
+        super(delegate);
+        this.executor = executor;
+        this.resourceManager = resourceManager;
+        this.executionId = executionId;
+        this.bufferSize = bufferSize > 0 ? bufferSize : DEFAULT_BUFFER_SIZE;
+    }
+
+    /**
+     * Returns true if the collection computes its features while being iterated, false if it's a
+     * well known in memory collection that streaming would not make any faster
+     */
+    static boolean isLazy(SimpleFeatureCollection features) {
+        return !(features instanceof ListFeatureCollection
+                || features instanceof DefaultFeatureCollection
+                || features instanceof SpatialIndexFeatureCollection
+                || features instanceof TreeSetFeatureCollection);
+    }
+
+    @Override
+    public SimpleFeatureIterator features() {
+        if (!streamed.compareAndSet(false, true)) {
+            return delegate.features();
+        }
+        QueueIterator iterator = new QueueIterator(bufferSize);
+        if (resourceManager != null && executionId != null) {
+            // the consumer might drop the iterator without closing it, release the producer
+            // when the execution gets cleaned up
+            try {
+                resourceManager.addResource(executionId, new QueueIteratorResource(iterator));
+            } catch (IllegalStateException e) {
+                LOGGER.log(Level.FINE, "The execution is over, falling back on direct access", e);
+                return delegate.features();
+            }
+        }
+        try {
+            executor.execute(new Producer(iterator));
+            return iterator;
+        } catch (RejectedExecutionException e) {
+            LOGGER.log(Level.FINE, "No thread available to stream the chained process output, "
+                    + "falling back on direct access");
+            return delegate.features();
+        }
+    }
+
+    /**
+     * Reads features from the child collection and pushes them in the queue
+     */
+    class Producer implements Runnable {
+
+        QueueIterator target;
+
+        ThreadLocalsTransfer threadLocalTransfer;
+
+        public Producer(QueueIterator target) {
+            this.target = target;
+            this.threadLocalTransfer = new ThreadLocalsTransfer();
+        }
+
+        @Override
+        public void run() {
+            SimpleFeatureIterator fi = null;
+            try {
+                threadLocalTransfer.apply();
+                if (resourceManager != null && executionId != null) {
+                    resourceManager.setCurrentExecutionId(executionId);
+                }
+                fi = delegate.features();
+                while (fi.hasNext()) {
+                    if (!target.push(fi.next())) {
+                        // the consumer went away
+                        return;
+                    }
+                }
+                target.push(END);
+            } catch (Throwable t) {
+                target.fail(t);
+            } finally {
+                if (fi != null) {
+                    fi.close();
+                }
+                threadLocalTransfer.cleanup();
+            }
+        }
+    }
+
+    /**
+     * Returns the features pushed in the queue by the producer
+     */
+    static class QueueIterator implements SimpleFeatureIterator {
+
+        BlockingQueue<Object> queue;
+
+        volatile boolean closed;
+
+        Object next;
+
+        boolean ended;
+
+        public QueueIterator(int bufferSize) {
+            queue = new ArrayBlockingQueue<Object>(bufferSize);
+        }
+
+        /**
+         * Pushes a feature in the queue, waiting for space to be available. Returns false if the
+         * consumer closed the iterator
+         */
+        boolean push(Object item) throws InterruptedException {
+            while (!closed) {
+                if (queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void fail(Throwable t) {
+            // make room for the failure if needed, the consumer won't get to the other features
+            Failure failure = new Failure(t);
+            while (!closed && !queue.offer(failure)) {
+                queue.poll();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next != null) {
+                return true;
+            }
+            if (ended || closed) {
+                return false;
+            }
+            Object item;
+            try {
+                item = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new ProcessException("Interrupted while waiting for the chained process "
+                        + "output", e);
+            }
+            if (item == END) {
+                ended = true;
+                return false;
+            } else if (item instanceof Failure) {
+                ended = true;
+                Throwable cause = ((Failure) item).cause;
+                throw new ProcessException("The chained process failed: " + cause.getMessage(),
+                        cause);
+            }
+            next = item;
+            return true;
+        }
+
+        @Override
+        public SimpleFeature next() throws NoSuchElementException {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            SimpleFeature result = (SimpleFeature) next;
+            next = null;
+            return result;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            queue.clear();
+        }
+    }
+
+    /**
+     * Closes the iterator when the execution resources are cleaned up
+     */
+    static class QueueIteratorResource implements WPSResource {
+
+        QueueIterator iterator;
+
+        QueueIteratorResource(QueueIterator iterator) {
+            this.iterator = iterator;
+        }
+
+        @Override
+        public void delete() throws Exception {
+            iterator.close();
+        }
+
+        @Override
+        public String getName() {
+            return "Chained process output stream";
+        }
+    }
+
+    static class Failure {
+        Throwable cause;
+
+        Failure(Throwable cause) {
+            this.cause = cause;
+        }
+    }
+}
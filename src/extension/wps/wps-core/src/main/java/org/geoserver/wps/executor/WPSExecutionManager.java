@@ -4,20 +4,30 @@
  */
 package org.geoserver.wps.executor;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import net.opengis.wps10.ExecuteResponseType;
 
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
 import org.apache.commons.io.IOUtils;
 import org.geoserver.ows.XmlObjectEncodingResponse;
 import org.geoserver.platform.GeoServerExtensions;
@@ -29,6 +39,7 @@ import org.geoserver.wps.process.GeoServerProcessors;
 import org.geoserver.wps.resource.WPSResourceManager;
 import org.geoserver.wps.xml.WPSConfiguration;
 import org.geotools.data.Parameter;
+import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.process.ProcessException;
 import org.geotools.process.ProcessFactory;
 import org.geotools.util.logging.Logging;
@@ -41,6 +52,8 @@ import org.springframework.context.ApplicationListener;
 import org.springframework.context.event.ContextClosedEvent;
 import org.springframework.context.event.ContextRefreshedEvent;
 
+import com.google.common.base.Objects;
+
 /**
  * Manages the process runs for both synchronous and asynchronous processes
  * 
@@ -52,7 +65,24 @@ public class WPSExecutionManager implements ApplicationContextAware,
 
     private static final Logger LOGGER = Logging.getLogger(WPSExecutionManager.class);
 
-    private ExecutorService storedResponseWriters = Executors.newCachedThreadPool();
+    public static final int DEFAULT_MAX_STATUS_WAITERS = 32;
+
+    /**
+     * Writes the stored responses of the asynchronous processes, the tasks are submitted only once
+     * the process is completed, so a small number of threads is sufficient
+     */
+    private ThreadPoolExecutor storedResponseWriters;
+
+    private int maxStoredResponseWriters = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Writes the outputs stored as references in parallel, shared among all executions
+     */
+    private ThreadPoolExecutor outputEncoders;
+
+    private int maxOutputEncoders = Runtime.getRuntime().availableProcessors();
+
+    private long maxInlineOutputSize;
 
     ApplicationContext applicationContext;
 
@@ -64,6 +94,44 @@ public class WPSExecutionManager implements ApplicationContextAware,
 
     private int connectionTimeout;
 
+    private ExecutionResultCache resultCache;
+
+    /**
+     * Shared among all remote input retrievals, keeps the connections alive and limits how many
+     * of them are opened towards the same host
+     */
+    private MultiThreadedHttpConnectionManager connectionManager = new MultiThreadedHttpConnectionManager();
+
+    private RemoteInputCache remoteInputCache;
+
+    /**
+     * Produces the features of chained processes outputs, each stream uses a thread of its own
+     * for its whole life, when none is available the output is not streamed
+     */
+    private ThreadPoolExecutor chainedStreamers = new ThreadPoolExecutor(0, 32, 60L,
+            TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+
+    private int maxChainedStreams = 32;
+
+    private int chainedStreamBuffer = StreamingFeatureCollection.DEFAULT_BUFFER_SIZE;
+
+    /**
+     * The minimum progress change, in percentage points, that triggers a new encoding of the
+     * status document
+     */
+    private float statusProgressStep = 1f;
+
+    /**
+     * The maximum time, in milliseconds, a status request can wait for the status to change
+     */
+    private long maxStatusWait = 10000;
+
+    /**
+     * Limits the number of status requests waiting at the same time, each one holds a servlet
+     * thread
+     */
+    private volatile Semaphore statusWaiters = new Semaphore(DEFAULT_MAX_STATUS_WAITERS);
+
     public WPSExecutionManager(WPSResourceManager resourceManager) {
         this.resourceManager = resourceManager;
     }
@@ -71,6 +139,105 @@ public class WPSExecutionManager implements ApplicationContextAware,
     WPSResourceManager getResourceManager() {
         return resourceManager;
     }
+
+    /**
+     * Sets the number of threads writing the asynchronous process responses
+     * 
+     * @param maxStoredResponseWriters
+     */
+    public void setMaxStoredResponseWriters(int maxStoredResponseWriters) {
+        if (maxStoredResponseWriters <= 0) {
+            throw new IllegalArgumentException(
+                    "The number of stored response writers must be positive");
+        }
+        this.maxStoredResponseWriters = maxStoredResponseWriters;
+        if (storedResponseWriters != null) {
+            // core cannot be larger than max, change them in the right order
+            if (maxStoredResponseWriters > storedResponseWriters.getMaximumPoolSize()) {
+                storedResponseWriters.setMaximumPoolSize(maxStoredResponseWriters);
+                storedResponseWriters.setCorePoolSize(maxStoredResponseWriters);
+            } else {
+                storedResponseWriters.setCorePoolSize(maxStoredResponseWriters);
+                storedResponseWriters.setMaximumPoolSize(maxStoredResponseWriters);
+            }
+        }
+    }
+
+    /**
+     * Sets the number of threads writing the outputs stored as references, zero disables the
+     * parallel encoding
+     * 
+     * @param maxOutputEncoders
+     */
+    public synchronized void setMaxOutputEncoders(int maxOutputEncoders) {
+        this.maxOutputEncoders = Math.max(0, maxOutputEncoders);
+        if (outputEncoders != null) {
+            outputEncoders.shutdown();
+            outputEncoders = null;
+        }
+    }
+
+    /**
+     * Returns the pool used to write the reference outputs in parallel, or null if parallel
+     * encoding is disabled
+     */
+    public synchronized ThreadPoolExecutor getOutputEncoders() {
+        if (outputEncoders == null && maxOutputEncoders > 0) {
+            // all tasks are queued when the pool is full, so core == max
+            outputEncoders = new ThreadPoolExecutor(maxOutputEncoders, maxOutputEncoders, 60L,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            outputEncoders.allowCoreThreadTimeOut(true);
+        }
+        return outputEncoders;
+    }
+
+    /**
+     * Sets the size, in bytes, above which the outputs requested inline are stored as references
+     * instead, zero or a negative value disables the check
+     * 
+     * @param maxInlineOutputSize
+     */
+    public void setMaxInlineOutputSize(long maxInlineOutputSize) {
+        this.maxInlineOutputSize = maxInlineOutputSize;
+    }
+
+    public long getMaxInlineOutputSize() {
+        return maxInlineOutputSize;
+    }
+
+    /**
+     * Sets the cache used to reuse the results of deterministic processes, if null no caching
+     * will be performed
+     * 
+     * @param resultCache
+     */
+    public void setResultCache(ExecutionResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    public ExecutionResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * Sets the processes whose results can be cached
+     * 
+     * @param names
+     */
+    public void setCacheableProcesses(Collection<Name> names) {
+        if (resultCache != null) {
+            resultCache.setCacheableProcesses(names);
+        }
+    }
+
+    ThreadPoolExecutor createStoredResponseWriters() {
+        // all tasks are queued when the pool is full, so core == max
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxStoredResponseWriters,
+                maxStoredResponseWriters, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
     
     /**
      * This call should only be used by process chaining to avoid deadlocking due to execution
@@ -88,6 +255,78 @@ public class WPSExecutionManager implements ApplicationContextAware,
     }
     
 
+    /**
+     * Sets the maximum number of chained process outputs that can be streamed at the same time,
+     * zero disables streaming
+     * 
+     * @param maxChainedStreams
+     */
+    public void setMaxChainedStreams(int maxChainedStreams) {
+        this.maxChainedStreams = maxChainedStreams;
+        if (maxChainedStreams > 0) {
+            chainedStreamers.setMaximumPoolSize(maxChainedStreams);
+        }
+    }
+
+    /**
+     * Sets how many features can be buffered between a chained process and its parent
+     * 
+     * @param chainedStreamBuffer
+     */
+    public void setChainedStreamBuffer(int chainedStreamBuffer) {
+        this.chainedStreamBuffer = chainedStreamBuffer;
+    }
+
+    /**
+     * Sets how much the progress of a process has to move (in percentage points) before its cached
+     * status document gets encoded again. Phase changes and failures are always reported right away
+     * 
+     * @param statusProgressStep
+     */
+    public void setStatusProgressStep(float statusProgressStep) {
+        this.statusProgressStep = Math.max(0, statusProgressStep);
+    }
+
+    public float getStatusProgressStep() {
+        return statusProgressStep;
+    }
+
+    /**
+     * Sets the maximum time, in seconds, a status request is allowed to wait for the status of
+     * the process to change
+     * 
+     * @param maxStatusWait
+     */
+    public void setMaxStatusWait(int maxStatusWait) {
+        this.maxStatusWait = Math.max(0, maxStatusWait) * 1000L;
+    }
+
+    /**
+     * Sets the maximum number of status requests that can wait for the status to change at the
+     * same time. Once the limit is reached the status requests are answered immediately
+     * 
+     * @param maxStatusWaiters
+     */
+    public void setMaxStatusWaiters(int maxStatusWaiters) {
+        this.statusWaiters = new Semaphore(Math.max(0, maxStatusWaiters));
+    }
+
+    /**
+     * Wraps the lazy output of a chained process so that its features are produced in a separate
+     * thread while the parent process consumes them. In memory outputs are returned as is, they
+     * are already fully computed
+     * 
+     * @param features
+     * @return
+     */
+    SimpleFeatureCollection streamChainedOutput(SimpleFeatureCollection features) {
+        if (maxChainedStreams <= 0 || !StreamingFeatureCollection.isLazy(features)) {
+            return features;
+        }
+        return new StreamingFeatureCollection(features, chainedStreamers, resourceManager,
+                resourceManager.getExecutionId(null), chainedStreamBuffer);
+    }
+
     /**
      * Process submission, not blocking. Returns an id that can be used to get the process status
      * and result later.
@@ -105,21 +344,60 @@ public class WPSExecutionManager implements ApplicationContextAware,
         final AsynchronousProcessContext context = new AsynchronousProcessContext(request,
                 executionId, inputs, processManager, applicationContext);
         contexts.put(executionId, context);
-        if(!synchronous) {
-            LOGGER.log(Level.INFO, "Submitting new asynch process " + processName.getURI() + " with execution id " + executionId);
+
+        // did we already compute the very same request?
+        if (resultCache != null) {
+            context.cacheKey = resultCache.getKey(request);
+            if (context.cacheKey != null) {
+                context.cachedOutputs = resultCache.get(context.cacheKey);
+            }
+        }
+        if (context.cachedOutputs != null) {
+            LOGGER.log(Level.FINE, "Using cached results for process " + processName.getURI()
+                    + " with execution id " + executionId);
+        } else {
+            if (!synchronous) {
+                LOGGER.log(Level.INFO, "Submitting new asynch process " + processName.getURI()
+                        + " with execution id " + executionId);
+            }
+            try {
+                processManager.submit(executionId, processName, inputs, request.isAsynchronous());
+                if (!synchronous) {
+                    // wake up the clients waiting for status changes
+                    processManager.addStatusListener(executionId, new Runnable() {
+
+                        @Override
+                        public void run() {
+                            context.statusChanged();
+                        }
+                    });
+                }
+            } catch (ProcessException e) {
+                // the submission was rejected
+                contexts.remove(executionId);
+                throw e;
+            } catch (WPSException e) {
+                contexts.remove(executionId);
+                throw e;
+            }
         }
-        processManager.submit(executionId, processName, inputs, request.isAsynchronous());
         if (request.isAsynchronous()) {
-            // ah, we need to store the output at the end, schedule a thread that will
-            // do as soon as the process is done executing
-            storedResponseWriters.submit(new Runnable() {
+            // ah, we need to store the output at the end, have it written as soon as the
+            // process is done executing
+            Runnable writer = new Runnable() {
 
                 @Override
                 public void run() {
-                    
                     context.writeResponseFile();
                 }
-            });
+            };
+            if (context.cachedOutputs != null
+                    || !processManager.addCompletionListener(executionId, writer,
+                            getStoredResponseWriters())) {
+                // either the outputs came from the cache, or the process manager already forgot
+                // about the execution, in the latter case the writer will report the issue
+                getStoredResponseWriters().execute(writer);
+            }
         }
 
         return executionId;
@@ -140,6 +418,62 @@ public class WPSExecutionManager implements ApplicationContextAware,
         return context.getStatusResponse();
     }
 
+    /**
+     * Same as {@link #getStatus(String)}, but returns the status document already encoded. The
+     * document is re-encoded only when the process status changed significantly since the last
+     * call, making frequent polling cheap
+     * 
+     * @param executionId
+     * @return
+     */
+    public EncodedStatus getEncodedStatus(String executionId) {
+        AsynchronousProcessContext context = contexts.get(executionId);
+        if (context == null) {
+            return null;
+        }
+
+        try {
+            return context.getEncodedStatus();
+        } catch (IOException e) {
+            throw new WPSException("Failed to encode the status of execution " + executionId, e);
+        }
+    }
+
+    /**
+     * Same as {@link #getEncodedStatus(String)}, but waits up to the specified time (capped by
+     * the max status wait) for the status to change before returning. The caller is woken up by
+     * the process status updates, without any polling. Returns null if the process completed
+     * meanwhile, in that case the stored response is available. If too many requests are waiting
+     * already the current status is returned right away
+     * 
+     * @param executionId
+     * @param timeout The wait time, in milliseconds
+     * @return
+     */
+    public EncodedStatus getEncodedStatus(String executionId, long timeout) {
+        AsynchronousProcessContext context = contexts.get(executionId);
+        if (context == null) {
+            return null;
+        }
+
+        // if too many requests are waiting already answer right away, instead of holding yet
+        // another servlet thread
+        Semaphore waiters = statusWaiters;
+        boolean waiting = timeout > 0 && waiters.tryAcquire();
+        try {
+            return context.awaitEncodedStatus(waiting ? Math.min(timeout, maxStatusWait) : 0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return getEncodedStatus(executionId);
+        } catch (IOException e) {
+            throw new WPSException("Failed to encode the status of execution " + executionId, e);
+        } finally {
+            if (waiting) {
+                waiters.release();
+            }
+        }
+    }
+
     /**
      * Returns the stored response file for the specified execution (which has already completed its
      * lifecycle)
@@ -176,15 +510,29 @@ public class WPSExecutionManager implements ApplicationContextAware,
      * @return
      */
     public Map<String, Object> getOutput(String executionId, long timeout) throws ProcessException {
+        AsynchronousProcessContext context = contexts.get(executionId);
+        if (context != null && context.cachedOutputs != null) {
+            contexts.remove(executionId);
+            return context.cachedOutputs;
+        }
+
         Map<String, Object> output = null;
-        for (ProcessManager pm : getProcessManagers()) {
-            Map<String, Object> pmOutput = pm.getOutput(executionId, timeout);
-            if (pmOutput != null && output == null)
-                output = pmOutput;
+        try {
+            for (ProcessManager pm : getProcessManagers()) {
+                Map<String, Object> pmOutput = pm.getOutput(executionId, timeout);
+                if (pmOutput != null && output == null)
+                    output = pmOutput;
+            }
+        } finally {
+            // the process managers forget about the execution once the output is retrieved
+            // (or failed to be), so should we
+            contexts.remove(executionId);
         }
 
         if (output != null) {
-            contexts.remove(executionId);
+            if (context != null) {
+                context.cacheOutputs(output);
+            }
             return output;
         }
         throw new ProcessException("Failed to find output for execution " + executionId);
@@ -218,6 +566,50 @@ public class WPSExecutionManager implements ApplicationContextAware,
     
     public void setConnectionTimeout(int connectionTimeout) {
         this.connectionTimeout = connectionTimeout;
+        HttpConnectionManagerParams params = connectionManager.getParams();
+        params.setSoTimeout(connectionTimeout);
+        params.setConnectionTimeout(connectionTimeout);
+    }
+
+    /**
+     * Sets the maximum number of connections used to retrieve remote inputs
+     * 
+     * @param maxConnections
+     */
+    public void setMaxHttpConnections(int maxConnections) {
+        connectionManager.getParams().setMaxTotalConnections(maxConnections);
+    }
+
+    /**
+     * Sets the maximum number of connections used to retrieve remote inputs from a single host
+     * 
+     * @param maxConnectionsPerHost
+     */
+    public void setMaxHttpConnectionsPerHost(int maxConnectionsPerHost) {
+        connectionManager.getParams().setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+    }
+
+    /**
+     * Returns a http client using the shared connection pool
+     * 
+     * @return
+     */
+    HttpClient getHttpClient() {
+        return new HttpClient(connectionManager);
+    }
+
+    /**
+     * Sets the local cache of remote inputs, if null or disabled the inputs are always retrieved
+     * from the network
+     * 
+     * @param remoteInputCache
+     */
+    public void setRemoteInputCache(RemoteInputCache remoteInputCache) {
+        this.remoteInputCache = remoteInputCache;
+    }
+
+    RemoteInputCache getRemoteInputCache() {
+        return remoteInputCache;
     }
 
     @Override
@@ -225,17 +617,59 @@ public class WPSExecutionManager implements ApplicationContextAware,
         this.applicationContext = context;
     }
 
+    synchronized ExecutorService getStoredResponseWriters() {
+        if (storedResponseWriters == null) {
+            storedResponseWriters = createStoredResponseWriters();
+        }
+        return storedResponseWriters;
+    }
+
     @Override
     public void onApplicationEvent(ApplicationEvent event) {
         if (event instanceof ContextRefreshedEvent) {
-            if (storedResponseWriters == null) {
-                storedResponseWriters = Executors.newCachedThreadPool();
-            } else if (event instanceof ContextClosedEvent) {
-                storedResponseWriters.shutdownNow();
+            getStoredResponseWriters();
+        } else if (event instanceof ContextClosedEvent) {
+            synchronized (this) {
+                if (storedResponseWriters != null) {
+                    storedResponseWriters.shutdownNow();
+                    storedResponseWriters = null;
+                }
+                if (outputEncoders != null) {
+                    outputEncoders.shutdownNow();
+                    outputEncoders = null;
+                }
+                connectionManager.shutdown();
+                chainedStreamers.shutdownNow();
             }
         }
     }
 
+    /**
+     * An encoded status document, along with the status it was built from
+     */
+    static class StatusSnapshot {
+        final EncodedStatus encoded;
+
+        final ExecutionStatus status;
+
+        final Exception exception;
+
+        StatusSnapshot(EncodedStatus encoded, ExecutionStatus status, Exception exception) {
+            this.encoded = encoded;
+            this.status = status;
+            this.exception = exception;
+        }
+
+        /**
+         * Returns true if the document is still a good representation of the specified status
+         */
+        boolean isUpToDate(ExecutionStatus current, Exception currentException, float step) {
+            return status.getPhase() == current.getPhase() && exception == currentException
+                    && Objects.equal(status.getTask(), current.getTask())
+                    && Math.abs(current.getProgress() - status.getProgress()) < step;
+        }
+    }
+
     public class AsynchronousProcessContext {
 
         String executionId;
@@ -248,6 +682,16 @@ public class WPSExecutionManager implements ApplicationContextAware,
 
         volatile Exception exception;
 
+        /**
+         * The key in the result cache, or null if the results cannot be cached
+         */
+        String cacheKey;
+
+        /**
+         * The results found in the cache, if any
+         */
+        Map<String, Object> cachedOutputs;
+
         Date started;
 
         private float inputWeight;
@@ -256,6 +700,33 @@ public class WPSExecutionManager implements ApplicationContextAware,
 
         private float processWeight;
 
+        /**
+         * The last encoded status document, along with the status it was built from. Encoding
+         * happens without holding any lock, so that the process thread never waits for a poller
+         */
+        private volatile StatusSnapshot snapshot;
+
+        /**
+         * Counts the status change notifications, the waiting pollers use it to tell if
+         * something happened while they were encoding
+         */
+        private final AtomicLong statusChanges = new AtomicLong();
+
+        /**
+         * Used only to park and wake up the pollers waiting for a status change
+         */
+        private final Object statusMonitor = new Object();
+
+        /**
+         * Set once the stored response has been written
+         */
+        private volatile boolean completed;
+
+        /**
+         * Tracks the output encoding, once the process is done
+         */
+        volatile EncodingProgress encodingProgress;
+
         public AsynchronousProcessContext(ExecuteRequest request, String executionId,
                 LazyInputMap inputs, ProcessManager processManager,
                 ApplicationContext applicationContext) {
@@ -296,10 +767,23 @@ public class WPSExecutionManager implements ApplicationContextAware,
                     // failed
                     return new ExecutionStatus(request.getProcessName(), executionId, ProcessState.COMPLETED, 100f, null);
                 } else {
-                    // Still running, it's writing the output. Right now we have no way to track the
-                    // output progress, so return 66% complete
-                    return new ExecutionStatus(request.getProcessName(), executionId, ProcessState.RUNNING,
-                            66f, null);
+                    // Still running, it's writing the output, see how far the encoding got
+                    float progress = (inputWeight + processWeight) * 100;
+                    String task = null;
+                    EncodingProgress encoding = encodingProgress;
+                    if (encoding != null) {
+                        float ratio = encoding.getRatio();
+                        if (ratio >= 0) {
+                            progress += outputWeight * 100 * ratio;
+                            task = "Encoding the outputs";
+                        } else {
+                            // no size estimate, at least let the client know we're moving
+                            task = "Encoding the outputs, " + (encoding.getWritten() / 1024)
+                                    + "KB written";
+                        }
+                    }
+                    return new ExecutionStatus(request.getProcessName(), executionId,
+                            ProcessState.RUNNING, Math.min(progress, 99f), task);
                 }
             } else {
                 // still running
@@ -310,6 +794,96 @@ public class WPSExecutionManager implements ApplicationContextAware,
         }
 
         ExecuteResponseType getStatusResponse() {
+            return buildStatusResponse(getPublishedStatus(), exception);
+        }
+
+        /**
+         * Returns the encoded status document, encoding it again only if the phase or the
+         * current task changed, an error occurred, or the progress moved by at least
+         * statusProgressStep. Concurrent callers might end up encoding the same status twice,
+         * which is cheaper than making them, and the process thread, wait for each other
+         */
+        EncodedStatus getEncodedStatus() throws IOException {
+            ExecutionStatus status = getPublishedStatus();
+            Exception currentException = exception;
+            StatusSnapshot current = snapshot;
+            if (current != null && current.isUpToDate(status, currentException, statusProgressStep)) {
+                return current.encoded;
+            }
+
+            ExecuteResponseType response = buildStatusResponse(status, currentException);
+            XmlObjectEncodingResponse encoder = new XmlObjectEncodingResponse(
+                    ExecuteResponseType.class, "ExecuteResponse", WPSConfiguration.class);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            encoder.write(response, bos, null);
+
+            StatusSnapshot encoded = new StatusSnapshot(new EncodedStatus(bos.toByteArray()),
+                    status, currentException);
+            snapshot = encoded;
+            return encoded.encoded;
+        }
+
+        /**
+         * Waits for the encoded status to change, for at most the specified time. Returns null if
+         * the execution completed in the meantime. Changes in the input retrieval progress alone
+         * are picked up at the next notification, or when the time is up
+         */
+        EncodedStatus awaitEncodedStatus(long timeout) throws IOException,
+                InterruptedException {
+            long deadline = System.currentTimeMillis() + timeout;
+            // read the counter before encoding, so that no change can go unnoticed
+            long seen = statusChanges.get();
+            EncodedStatus initial = completed ? null : getEncodedStatus();
+            EncodedStatus current = initial;
+            while (current == initial && !completed) {
+                synchronized (statusMonitor) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    while (statusChanges.get() == seen && !completed && remaining > 0) {
+                        statusMonitor.wait(remaining);
+                        remaining = deadline - System.currentTimeMillis();
+                    }
+                }
+                long changes = statusChanges.get();
+                if (changes == seen) {
+                    // time is up
+                    break;
+                }
+                seen = changes;
+                if (!completed) {
+                    current = getEncodedStatus();
+                }
+            }
+            return completed ? null : current;
+        }
+
+        /**
+         * Called by the process thread at each status update, only wakes up the waiting pollers
+         */
+        void statusChanged() {
+            statusChanges.incrementAndGet();
+            synchronized (statusMonitor) {
+                statusMonitor.notifyAll();
+            }
+        }
+
+        void markCompleted() {
+            completed = true;
+            statusChanged();
+        }
+
+        ExecuteResponseType buildStatusResponse(ExecutionStatus overallStatus, Exception exception) {
+            ExecuteResponseBuilder responseBuilder = new ExecuteResponseBuilder(request.getRequest(),
+                    applicationContext, started);
+            responseBuilder.setExecutionId(executionId);
+            responseBuilder.setStatus(overallStatus);
+            responseBuilder.setException(exception);
+            return responseBuilder.build();
+        }
+
+        /**
+         * Returns the status to be reported to the client
+         */
+        ExecutionStatus getPublishedStatus() {
             ExecutionStatus overallStatus;
             if (request.isStatusEnabled()) {
                 // user requested to get status updates
@@ -321,12 +895,7 @@ public class WPSExecutionManager implements ApplicationContextAware,
                 overallStatus = new ExecutionStatus(request.getProcessName(), executionId, ProcessState.QUEUED,
                         0f, null);
             }
-            ExecuteResponseBuilder responseBuilder = new ExecuteResponseBuilder(request.getRequest(),
-                    applicationContext, started);
-            responseBuilder.setExecutionId(executionId);
-            responseBuilder.setStatus(overallStatus);
-            responseBuilder.setException(exception);
-            return responseBuilder.build();
+            return overallStatus;
         }
 
         public void writeResponseFile() {
@@ -335,8 +904,16 @@ public class WPSExecutionManager implements ApplicationContextAware,
                 ExecuteResponseBuilder responseBuilder = new ExecuteResponseBuilder(
                         request.getRequest(), applicationContext, started);
                 responseBuilder.setExecutionId(executionId);
+                encodingProgress = new EncodingProgress();
+                responseBuilder.setEncodingProgress(encodingProgress);
+                responseBuilder.setOutputEncoders(getOutputEncoders());
+                responseBuilder.setMaxInlineOutputSize(maxInlineOutputSize);
                 try {
-                    Map<String, Object> outputs = processManager.getOutput(executionId, -1);
+                    Map<String, Object> outputs = cachedOutputs;
+                    if (outputs == null) {
+                        outputs = processManager.getOutput(executionId, -1);
+                        cacheOutputs(outputs);
+                    }
                     responseBuilder.setOutputs(outputs);
                 } catch (Exception exception) {
                     LOGGER.log(Level.SEVERE, "Request " + executionId + " failed during execution", exception);
@@ -363,6 +940,14 @@ public class WPSExecutionManager implements ApplicationContextAware,
 
             } finally {
                 contexts.remove(executionId);
+                markCompleted();
+                resourceManager.finished(executionId);
+            }
+        }
+
+        void cacheOutputs(Map<String, Object> outputs) {
+            if (cacheKey != null && resultCache != null) {
+                resultCache.put(cacheKey, outputs);
             }
         }
 
@@ -371,12 +956,18 @@ public class WPSExecutionManager implements ApplicationContextAware,
             FileOutputStream fos = null;
             File tmpOutput = new File(output.getParent(), "tmp" + output.getName());
             try {
+                // the directory might not be there yet, if the process has no reference outputs
+                File parent = output.getParentFile();
+                if (!parent.exists() && !parent.mkdirs() && !parent.isDirectory()) {
+                    throw new IOException("Failed to create the response directory " + parent);
+                }
                 ExecuteResponseType response = responseBuilder.build();
                 XmlObjectEncodingResponse encoder = new XmlObjectEncodingResponse(
                         ExecuteResponseType.class, "ExecuteResponse", WPSConfiguration.class);
 
                 fos = new FileOutputStream(tmpOutput);
-                encoder.write(response, fos, null);
+                EncodingProgress encoding = encodingProgress;
+                encoder.write(response, encoding != null ? encoding.wrap(fos) : fos, null);
                 fos.flush();
                 fos.close();
                 if (!tmpOutput.renameTo(output)) {
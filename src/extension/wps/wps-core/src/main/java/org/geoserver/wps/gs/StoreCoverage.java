@@ -74,6 +74,7 @@ public class StoreCoverage implements GSProcess {
             }
         }
 
+        storage.track(file, file.lastModified());
         return storage.getURL(file);
     }
 
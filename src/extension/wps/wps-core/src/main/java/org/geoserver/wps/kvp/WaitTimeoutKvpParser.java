@@ -0,0 +1,39 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps.kvp;
+
+import org.geoserver.ows.KvpParser;
+import org.geoserver.wps.WPSException;
+
+/**
+ * Parses the waitTimeout vendor parameter of GetExecutionStatus, the number of seconds the
+ * request can wait for the process status to change
+ *
+ * @author Andrea Aime - GeoSolutions
+ */
+public class WaitTimeoutKvpParser extends KvpParser {
+
+    public WaitTimeoutKvpParser() {
+        super("waitTimeout", Integer.class);
+
+        this.setService("wps");
+        this.setRequest("GetExecutionStatus");
+    }
+
+    @Override
+    public Object parse(String value) throws Exception {
+        try {
+            int timeout = Integer.parseInt(value.trim());
+            if (timeout < 0) {
+                throw new NumberFormatException();
+            }
+            return timeout;
+        } catch (NumberFormatException e) {
+            throw new WPSException("Invalid waitTimeout value " + value
+                    + ", it should be a non negative number of seconds", "InvalidParameterValue",
+                    "waitTimeout");
+        }
+    }
+}
@@ -5,13 +5,10 @@
 package org.geoserver.wps.ppio;
 
 import java.io.ByteArrayInputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
-import org.apache.commons.io.IOUtils;
 import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.gce.arcgrid.ArcGridFormat;
 import org.geotools.parameter.Parameter;
@@ -31,19 +28,13 @@ public class ArcGridPPIO extends CDataPPIO {
 
     @Override
     public Object decode(InputStream input) throws Exception {
-    	// in order to read a grid coverage we need to first store it on disk
-        File root = new File(System.getProperty("java.io.tmpdir", "."));
-        File f = File.createTempFile("wps", "asc", root);
-        FileOutputStream os = null;
-        try {
-            os = new FileOutputStream(f);
-            IOUtils.copy(input, os);
-        } finally {
-            IOUtils.closeQuietly(os);
+        // small grids are read from memory, larger ones from a file cleaned up with the execution
+        StagedInput staged = StagedInput.stage(input, ".asc");
+        if (staged.isInMemory()) {
+            return new ArcGridFormat().getReader(staged.getMemoryStream()).read(null);
+        } else {
+            return new ArcGridFormat().getReader(staged.file).read(null);
         }
-
-        // and then we try to read it as a asc
-        return new ArcGridFormat().getReader(f).read(null);
     }
     
     @Override
@@ -64,6 +55,14 @@ public class ArcGridPPIO extends CDataPPIO {
                 new GeneralParameterValue[] {forceSquareCells});
     }
     
+    @Override
+    public long getEstimatedSize(Object value) {
+        // a rough guess of how many chars each cell value takes in the text output
+        GridCoverage2D coverage = (GridCoverage2D) value;
+        return (long) coverage.getRenderedImage().getWidth()
+                * coverage.getRenderedImage().getHeight() * 8;
+    }
+
     @Override
     public String getFileExtension() {
         return "asc";
@@ -0,0 +1,276 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps.ppio;
+
+import it.geosolutions.imageio.plugins.tiff.BaselineTIFFTagSet;
+import it.geosolutions.imageio.plugins.tiff.TIFFImageWriteParam;
+import it.geosolutions.imageioimpl.plugins.tiff.TIFFImageMetadata;
+import it.geosolutions.imageioimpl.plugins.tiff.TIFFImageWriter;
+import it.geosolutions.imageioimpl.plugins.tiff.TIFFImageWriterSpi;
+
+import java.awt.RenderingHints;
+import java.awt.image.IndexColorModel;
+import java.awt.image.RenderedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.stream.FileImageOutputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.media.jai.ImageLayout;
+import javax.media.jai.Interpolation;
+import javax.media.jai.JAI;
+import javax.media.jai.operator.ScaleDescriptor;
+import javax.media.jai.operator.SubsampleAverageDescriptor;
+import javax.servlet.ServletContext;
+
+import org.apache.commons.io.IOUtils;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.io.AbstractGridFormat;
+import org.geotools.coverage.grid.io.imageio.GeoToolsWriteParams;
+import org.geotools.gce.geotiff.GeoTiffFormat;
+import org.geotools.gce.geotiff.GeoTiffWriteParams;
+import org.geotools.gce.geotiff.GeoTiffWriter;
+import org.geotools.util.logging.Logging;
+import org.opengis.parameter.GeneralParameterValue;
+import org.opengis.parameter.ParameterValueGroup;
+
+/**
+ * Encodes a coverage as a tiled, compressed GeoTIFF with internal overviews, so that clients can
+ * read a portion of it, or a preview, without going through the full resolution raster.
+ * <p>
+ * The encoding is enabled and configured with the following system, context or environment
+ * variables:
+ * <ul>
+ * <li>{@link #COG_KEY}: set to true to enable the encoding</li>
+ * <li>{@link #TILE_SIZE_KEY}: the tile size, 512 by default</li>
+ * <li>{@link #COMPRESSION_KEY}: either Deflate (the default) or LZW</li>
+ * <li>{@link #OVERVIEWS_KEY}: the number of overviews, by default they are added until the
+ * smallest one fits in a tile</li>
+ * </ul>
+ * Each overview is computed from the previous one while the writer encodes it, so that only the
+ * tiles being encoded, and the ones retained by the JAI tile cache, are held in memory.
+ * </p>
+ *
+ * @author Andrea Aime - GeoSolutions
+ */
+class CloudOptimizedGeoTiffEncoder {
+
+    static final Logger LOGGER = Logging.getLogger(CloudOptimizedGeoTiffEncoder.class);
+
+    static final String COG_KEY = "WPS_GEOTIFF_COG";
+
+    static final String TILE_SIZE_KEY = "WPS_GEOTIFF_COG_TILE_SIZE";
+
+    static final String COMPRESSION_KEY = "WPS_GEOTIFF_COG_COMPRESSION";
+
+    static final String OVERVIEWS_KEY = "WPS_GEOTIFF_COG_OVERVIEWS";
+
+    static final int DEFAULT_TILE_SIZE = 512;
+
+    static final String DEFAULT_COMPRESSION = "Deflate";
+
+    static final GeoTiffFormat TIFF_FORMAT = new GeoTiffFormat();
+
+    int tileSize = DEFAULT_TILE_SIZE;
+
+    String compression = DEFAULT_COMPRESSION;
+
+    /**
+     * The number of overviews, or -1 to compute it from the image and tile size
+     */
+    int overviews = -1;
+
+    /**
+     * Returns the encoder configured from the environment, or null if the encoding is not enabled
+     */
+    static CloudOptimizedGeoTiffEncoder lookup() {
+        if (!Boolean.valueOf(getProperty(COG_KEY))) {
+            return null;
+        }
+
+        CloudOptimizedGeoTiffEncoder encoder = new CloudOptimizedGeoTiffEncoder();
+        String tileSize = getProperty(TILE_SIZE_KEY);
+        if (tileSize != null) {
+            try {
+                encoder.setTileSize(Integer.parseInt(tileSize.trim()));
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Invalid " + TILE_SIZE_KEY + " value " + tileSize
+                        + ", using the default tile size");
+            }
+        }
+        String compression = getProperty(COMPRESSION_KEY);
+        if (compression != null) {
+            encoder.setCompression(compression.trim());
+        }
+        String overviews = getProperty(OVERVIEWS_KEY);
+        if (overviews != null) {
+            try {
+                encoder.setOverviews(Integer.parseInt(overviews.trim()));
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Invalid " + OVERVIEWS_KEY + " value " + overviews
+                        + ", computing the overviews from the image size");
+            }
+        }
+        return encoder;
+    }
+
+    static String getProperty(String key) {
+        return GeoServerExtensions.getProperty(key, (ServletContext) null);
+    }
+
+    /**
+     * Sets the tile size, rounded to a multiple of 16 as required by the TIFF specification
+     */
+    public void setTileSize(int tileSize) {
+        this.tileSize = Math.max(16, (tileSize + 15) / 16 * 16);
+    }
+
+    /**
+     * Sets the compression, either Deflate or LZW
+     */
+    public void setCompression(String compression) {
+        if ("deflate".equalsIgnoreCase(compression)) {
+            this.compression = "Deflate";
+        } else if ("lzw".equalsIgnoreCase(compression)) {
+            this.compression = "LZW";
+        } else {
+            LOGGER.warning("Unsupported compression " + compression + ", using "
+                    + DEFAULT_COMPRESSION);
+            this.compression = DEFAULT_COMPRESSION;
+        }
+    }
+
+    /**
+     * Sets the number of overviews, a negative value computes them from the image size
+     */
+    public void setOverviews(int overviews) {
+        this.overviews = overviews;
+    }
+
+    /**
+     * Returns the number of overviews to build for an image of the specified size
+     */
+    int getOverviewCount(int width, int height) {
+        if (overviews >= 0) {
+            return overviews;
+        }
+        int count = 0;
+        while (width > tileSize || height > tileSize) {
+            width = (width + 1) / 2;
+            height = (height + 1) / 2;
+            count++;
+        }
+        return count;
+    }
+
+    public void encode(GridCoverage2D coverage, OutputStream os) throws Exception {
+        // the overviews are appended to the file, which requires random access
+        File file = StagedInput.createTemporaryFile(".tiff");
+        try {
+            writeCoverage(coverage, file);
+
+            RenderedImage image = coverage.getRenderedImage();
+            int count = getOverviewCount(image.getWidth(), image.getHeight());
+            if (count > 0) {
+                writeOverviews(image, count, file);
+            }
+
+            InputStream is = null;
+            try {
+                is = new FileInputStream(file);
+                IOUtils.copyLarge(is, os);
+            } finally {
+                IOUtils.closeQuietly(is);
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    void writeCoverage(GridCoverage2D coverage, File file) throws IOException {
+        GeoTiffWriteParams wp = new GeoTiffWriteParams();
+        wp.setTilingMode(GeoToolsWriteParams.MODE_EXPLICIT);
+        wp.setTiling(tileSize, tileSize);
+        wp.setCompressionMode(GeoTiffWriteParams.MODE_EXPLICIT);
+        wp.setCompressionType(compression);
+
+        ParameterValueGroup wparams = TIFF_FORMAT.getWriteParameters();
+        wparams.parameter(AbstractGridFormat.GEOTOOLS_WRITE_PARAMS.getName().toString())
+                .setValue(wp);
+        GeneralParameterValue[] params = (GeneralParameterValue[]) wparams.values().toArray(
+                new GeneralParameterValue[1]);
+
+        GeoTiffWriter writer = new GeoTiffWriter(file);
+        try {
+            writer.write(coverage, params);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    RenderedImage scale(RenderedImage image, double scale) {
+        ImageLayout layout = new ImageLayout();
+        layout.setTileWidth(tileSize);
+        layout.setTileHeight(tileSize);
+        RenderingHints hints = new RenderingHints(JAI.KEY_IMAGE_LAYOUT, layout);
+        if (image.getColorModel() instanceof IndexColorModel) {
+            // averaging palette indexes makes no sense
+            return ScaleDescriptor.create(image, (float) scale, (float) scale, 0f, 0f,
+                    Interpolation.getInstance(Interpolation.INTERP_NEAREST), hints);
+        } else {
+            return SubsampleAverageDescriptor.create(image, scale, scale, hints);
+        }
+    }
+
+    /**
+     * Appends the overviews to the file as reduced resolution images. Each overview is half the
+     * size of the previous one and computed from it, the images are not materialized, the writer
+     * pulls their tiles while encoding, one level at a time
+     */
+    void writeOverviews(RenderedImage image, int count, File file) throws IOException {
+        TIFFImageWriter writer = (TIFFImageWriter) new TIFFImageWriterSpi()
+                .createWriterInstance();
+        ImageOutputStream ios = null;
+        try {
+            ios = new FileImageOutputStream(file);
+            writer.setOutput(ios);
+            RenderedImage overview = image;
+            for (int i = 0; i < count; i++) {
+                // the tiles of the previous level are likely still in the tile cache
+                overview = scale(overview, 0.5);
+                TIFFImageWriteParam param = (TIFFImageWriteParam) writer.getDefaultWriteParam();
+                param.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setTiling(tileSize, tileSize, 0, 0);
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionType(compression);
+
+                TIFFImageMetadata metadata = (TIFFImageMetadata) writer.getDefaultImageMetadata(
+                        new ImageTypeSpecifier(overview), param);
+                metadata.addShortOrLongField(BaselineTIFFTagSet.TAG_NEW_SUBFILE_TYPE,
+                        BaselineTIFFTagSet.NEW_SUBFILE_TYPE_REDUCED_RESOLUTION);
+                writer.writeInsert(-1, new IIOImage(overview, null, metadata), param);
+            }
+        } finally {
+            writer.dispose();
+            if (ios != null) {
+                try {
+                    ios.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Failed to close the GeoTIFF output", e);
+                }
+            }
+        }
+    }
+
+}
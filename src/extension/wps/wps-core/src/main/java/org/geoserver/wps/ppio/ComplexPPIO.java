@@ -72,4 +72,16 @@ public abstract class ComplexPPIO extends ProcessParameterIO {
      */
     public abstract String getFileExtension();
 
+    /**
+     * Returns an estimate of the size, in bytes, of the encoded value, or -1 if no estimate can be
+     * made cheaply. The estimate is used to report the progress of the output encoding, it does
+     * not need to be accurate, but it should not require a pass over the data
+     * 
+     * @param value
+     * @return
+     */
+    public long getEstimatedSize(Object value) {
+        return -1;
+    }
+
 }
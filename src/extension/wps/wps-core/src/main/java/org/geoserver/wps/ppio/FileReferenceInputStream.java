@@ -0,0 +1,33 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps.ppio;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+
+/**
+ * A stream reading a local file referenced by a process input. PPIO that can read files directly
+ * can use {@link #getFile()} instead of copying the stream contents
+ *
+ * @author Andrea Aime - GeoSolutions
+ */
+public class FileReferenceInputStream extends FileInputStream {
+
+    File file;
+
+    public FileReferenceInputStream(File file) throws FileNotFoundException {
+        super(file);
+        this.file = file;
+    }
+
+    /**
+     * The file being read
+     */
+    public File getFile() {
+        return file;
+    }
+
+}
@@ -6,13 +6,14 @@ package org.geoserver.wps.ppio;
 
 import java.awt.Dimension;
 import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+import javax.imageio.stream.MemoryCacheImageInputStream;
 import javax.media.jai.JAI;
 
 import org.apache.commons.io.IOUtils;
@@ -21,8 +22,6 @@ import org.geotools.coverage.grid.GridCoverage2D;
 import org.geotools.coverage.grid.io.AbstractGridCoverage2DReader;
 import org.geotools.coverage.grid.io.AbstractGridCoverageWriter;
 import org.geotools.coverage.grid.io.AbstractGridFormat;
-import org.geotools.coverage.grid.io.GridFormatFinder;
-import org.geotools.coverage.grid.io.UnknownFormat;
 import org.geotools.coverage.grid.io.imageio.GeoToolsWriteParams;
 import org.geotools.gce.geotiff.GeoTiffFormat;
 import org.geotools.gce.geotiff.GeoTiffReader;
@@ -35,7 +34,8 @@ import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.opengis.referencing.crs.EngineeringCRS;
 
 /**
- * Decodes/encodes a GeoTIFF file
+ * Decodes/encodes a GeoTIFF file. Referenced coverages can be encoded with internal overviews,
+ * see {@link CloudOptimizedGeoTiffEncoder}
  * 
  * @author Andrea Aime - OpenGeo
  * @author Simone Giannecchini, GeoSolutions
@@ -61,24 +61,20 @@ public class GeoTiffPPIO extends BinaryPPIO {
 
     @Override
     public Object decode(InputStream input) throws Exception {
-        // in order to read a grid coverage we need to first store it on disk
-        File root = new File(System.getProperty("java.io.tmpdir", "."));
-        File f = File.createTempFile("wps", "tiff", root);
-        FileOutputStream os = null;
-        try {
-            os = new FileOutputStream(f);
-            IOUtils.copy(input, os);
-        } finally {
-            IOUtils.closeQuietly(os);
+        // the reader needs to seek, and reads the tiles lazily after the input is closed
+        StagedInput staged = StagedInput.stage(input, ".tiff");
+        Object source;
+        if (staged.isInMemory()) {
+            source = new MemoryCacheImageInputStream(staged.getMemoryStream());
+        } else {
+            source = staged.file;
         }
 
-        // and then we try to read it as a geotiff
-        AbstractGridFormat format = GridFormatFinder.findFormat(f);
-        if (format instanceof UnknownFormat) {
-            throw new WPSException(
-                    "Could not find the GeoTIFF GT2 format, please check it's in the classpath");
+        AbstractGridCoverage2DReader reader = TIFF_FORMAT.getReader(source);
+        if (reader == null) {
+            throw new WPSException("Could not read the input as a GeoTIFF");
         }
-        return format.getReader(f).read(null);
+        return reader.read(null);
     }
 
     @Override
@@ -88,6 +84,15 @@ public class GeoTiffPPIO extends BinaryPPIO {
         CoordinateReferenceSystem crs = coverage.getCoordinateReferenceSystem();
         boolean unreferenced = crs == null || crs instanceof EngineeringCRS;    
                 
+        // the copy below would not add the overviews
+        if (!unreferenced) {
+            CloudOptimizedGeoTiffEncoder cog = CloudOptimizedGeoTiffEncoder.lookup();
+            if (cog != null) {
+                cog.encode(coverage, os);
+                return;
+            }
+        }
+
         // did we get lucky and all we need to do is to copy a file over?
         final Object fileSource = coverage.getProperty(AbstractGridCoverage2DReader.FILE_SOURCE_PROPERTY);
         if (fileSource != null && fileSource instanceof String) {
@@ -176,6 +181,28 @@ public class GeoTiffPPIO extends BinaryPPIO {
         }
     }
     
+    @Override
+    public long getEstimatedSize(Object value) {
+        GridCoverage2D coverage = (GridCoverage2D) value;
+        // same checks as in encode, if we have a source file we'll copy it over
+        final Object fileSource = coverage.getProperty(AbstractGridCoverage2DReader.FILE_SOURCE_PROPERTY);
+        if (fileSource instanceof String) {
+            File file = new File((String) fileSource);
+            if (file.exists()) {
+                return file.length();
+            }
+        }
+
+        // uncompressed raster size
+        RenderedImage image = coverage.getRenderedImage();
+        SampleModel sm = image.getSampleModel();
+        long bits = 0;
+        for (int size : sm.getSampleSize()) {
+            bits += size;
+        }
+        return (long) image.getWidth() * image.getHeight() * bits / 8;
+    }
+
     @Override
     public String getFileExtension() {
         return "tiff";
@@ -0,0 +1,206 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps.ppio;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.geoserver.platform.GeoServerExtensions;
+import org.geotools.data.Parameter;
+import org.springframework.beans.BeansException;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationContextAware;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextClosedEvent;
+import org.springframework.context.event.ContextRefreshedEvent;
+
+import com.google.common.base.Objects;
+
+/**
+ * Keeps the list of {@link ProcessParameterIO} available in its application context, along with
+ * the results of the lookups already performed for a given parameter identifier and type, so
+ * that the list of PPIO is scanned only once per parameter. The lookups are dropped when the
+ * application context is refreshed or closed. Lookups against a context without a registry are
+ * not cached.
+ *
+ * @author Andrea Aime - GeoSolutions
+ */
+public class PPIORegistry implements ApplicationContextAware,
+        ApplicationListener<ApplicationEvent> {
+
+    ApplicationContext context;
+
+    volatile Index index;
+
+    /**
+     * The PPIO available in a context, and the lookups done so far
+     */
+    static class Index {
+        List<ProcessParameterIO> all;
+
+        ConcurrentHashMap<LookupKey, Lookup> lookups = new ConcurrentHashMap<LookupKey, Lookup>();
+
+        Index(List<ProcessParameterIO> all) {
+            this.all = all;
+        }
+
+        Lookup get(Parameter<?> p) {
+            LookupKey key = new LookupKey(p.key, p.type);
+            Lookup lookup = lookups.get(key);
+            if (lookup == null) {
+                // computing it twice in case of concurrent access is harmless
+                lookup = new Lookup(ProcessParameterIO.match(all, p));
+                lookups.put(key, lookup);
+            }
+            return lookup;
+        }
+    }
+
+    static class LookupKey {
+        String identifier;
+
+        Class<?> type;
+
+        LookupKey(String identifier, Class<?> type) {
+            this.identifier = identifier;
+            this.type = type;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(identifier, type);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof LookupKey)) {
+                return false;
+            }
+            LookupKey other = (LookupKey) obj;
+            return Objects.equal(identifier, other.identifier) && Objects.equal(type, other.type);
+        }
+    }
+
+    /**
+     * The PPIO matching a parameter, indexed by mime type
+     */
+    static class Lookup {
+        List<ProcessParameterIO> matches;
+
+        Map<String, ProcessParameterIO> byMimeType = new HashMap<String, ProcessParameterIO>();
+
+        ProcessParameterIO preferred;
+
+        Lookup(List<ProcessParameterIO> matches) {
+            this.matches = Collections.unmodifiableList(matches);
+            for (ProcessParameterIO ppio : matches) {
+                if (ppio instanceof ComplexPPIO) {
+                    String mimeType = ((ComplexPPIO) ppio).getMimeType();
+                    // the first match wins
+                    if (!byMimeType.containsKey(mimeType)) {
+                        byMimeType.put(mimeType, ppio);
+                    }
+                }
+            }
+            if (!matches.isEmpty()) {
+                List<ProcessParameterIO> sorted = new ArrayList<ProcessParameterIO>(matches);
+                ProcessParameterIO.sortByHierarchy(sorted);
+                preferred = sorted.get(0);
+            }
+        }
+
+        ProcessParameterIO find(String mime) {
+            if (mime != null) {
+                ProcessParameterIO ppio = byMimeType.get(mime);
+                if (ppio != null) {
+                    return ppio;
+                }
+            }
+            return preferred;
+        }
+    }
+
+    /**
+     * Returns the PPIO matching the parameter, in the same order as the PPIO lookup. The list
+     * cannot be modified
+     */
+    static List<ProcessParameterIO> findAll(Parameter<?> p, ApplicationContext context) {
+        return getIndex(context).get(p).matches;
+    }
+
+    /**
+     * Returns the PPIO for the specified mime type, or the one handling the most specific type
+     * if the mime type is not supported (or not specified)
+     */
+    static ProcessParameterIO find(Parameter<?> p, ApplicationContext context, String mime) {
+        return getIndex(context).get(p).find(mime);
+    }
+
+    /**
+     * Returns all the PPIO available in the context. The list cannot be modified
+     */
+    public static List<ProcessParameterIO> getAll(ApplicationContext context) {
+        return Collections.unmodifiableList(getIndex(context).all);
+    }
+
+    static Index getIndex(ApplicationContext context) {
+        PPIORegistry registry;
+        if (context != null) {
+            registry = GeoServerExtensions.bean(PPIORegistry.class, context);
+        } else {
+            registry = GeoServerExtensions.bean(PPIORegistry.class);
+        }
+        if (registry != null) {
+            return registry.getIndex();
+        }
+        return new Index(loadAll(context));
+    }
+
+    static List<ProcessParameterIO> loadAll(ApplicationContext context) {
+        List<ProcessParameterIO> all = new ArrayList<ProcessParameterIO>(
+                ProcessParameterIO.defaults);
+        if (context != null) {
+            all.addAll(GeoServerExtensions.extensions(ProcessParameterIO.class, context));
+        } else {
+            all.addAll(GeoServerExtensions.extensions(ProcessParameterIO.class));
+        }
+        return all;
+    }
+
+    Index getIndex() {
+        Index result = index;
+        if (result == null) {
+            // building it twice in case of concurrent access is harmless
+            result = new Index(loadAll(context));
+            index = result;
+        }
+        return result;
+    }
+
+    /**
+     * Drops all the cached lookups
+     */
+    public void reset() {
+        index = null;
+    }
+
+    @Override
+    public void setApplicationContext(ApplicationContext context) throws BeansException {
+        this.context = context;
+        reset();
+    }
+
+    @Override
+    public void onApplicationEvent(ApplicationEvent event) {
+        if (event instanceof ContextRefreshedEvent || event instanceof ContextClosedEvent) {
+            reset();
+        }
+    }
+}
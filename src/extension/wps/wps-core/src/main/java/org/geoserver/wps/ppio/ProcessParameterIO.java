@@ -14,7 +14,6 @@ import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
 
-import org.geoserver.platform.GeoServerExtensions;
 import org.geotools.data.Parameter;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.springframework.context.ApplicationContext;
@@ -110,42 +109,7 @@ public abstract class ProcessParameterIO {
         }
 
         // TODO: come up with some way to flag one as "default"
-        List<ProcessParameterIO> all = findAll(p, context);
-        if (all.isEmpty()) {
-            return null;
-        }
-
-        if (mime != null) {
-            for (ProcessParameterIO ppio : all) {
-                if (ppio instanceof ComplexPPIO && ((ComplexPPIO) ppio).getMimeType().equals(mime)) {
-                    return ppio;
-                }
-            }
-        }
-
-        // if more than one sort by class hierarchy, pushing the most specific classes to the
-        // beginning
-        if (all.size() > 0) {
-            Collections.sort(all, new Comparator<ProcessParameterIO>() {
-                public int compare(ProcessParameterIO o1, ProcessParameterIO o2) {
-                    Class c1 = o1.getType();
-                    Class c2 = o2.getType();
-
-                    if (c1.equals(c2)) {
-                        return 0;
-                    }
-
-                    if (c1.isAssignableFrom(c2)) {
-                        return 1;
-                    }
-
-                    return -1;
-                }
-            });
-        }
-
-        // fall back on the first found
-        return all.get(0);
+        return PPIORegistry.find(p, context, mime);
     }
 
     public static List<ProcessParameterIO> findAll(Parameter<?> p, ApplicationContext context) {
@@ -156,14 +120,14 @@ public abstract class ProcessParameterIO {
             return result;
         }
 
-        // load all extensions
-        List<ProcessParameterIO> l = new ArrayList<ProcessParameterIO>(defaults);
-        if (context != null) {
-            l.addAll(GeoServerExtensions.extensions(ProcessParameterIO.class, context));
-        } else {
-            l.addAll(GeoServerExtensions.extensions(ProcessParameterIO.class));
-        }
+        // the lookup is cached, return a copy the caller can modify
+        return new ArrayList<ProcessParameterIO>(PPIORegistry.findAll(p, context));
+    }
 
+    /**
+     * Returns the PPIO in the list matching the parameter
+     */
+    static List<ProcessParameterIO> match(List<ProcessParameterIO> l, Parameter<?> p) {
         // find parameters that match
         List<ProcessParameterIO> matches = new ArrayList<ProcessParameterIO>();
 
@@ -187,6 +151,28 @@ public abstract class ProcessParameterIO {
         return matches;
     }
 
+    /**
+     * Sorts by class hierarchy, pushing the most specific classes to the beginning
+     */
+    static void sortByHierarchy(List<ProcessParameterIO> ppios) {
+        Collections.sort(ppios, new Comparator<ProcessParameterIO>() {
+            public int compare(ProcessParameterIO o1, ProcessParameterIO o2) {
+                Class c1 = o1.getType();
+                Class c2 = o2.getType();
+
+                if (c1.equals(c2)) {
+                    return 0;
+                }
+
+                if (c1.isAssignableFrom(c2)) {
+                    return 1;
+                }
+
+                return -1;
+            }
+        });
+    }
+
     /**
      * java class of parameter when reading and writing i/o.
      */
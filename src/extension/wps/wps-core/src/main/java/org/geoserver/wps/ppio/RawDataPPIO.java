@@ -51,6 +51,17 @@ public class RawDataPPIO extends ComplexPPIO {
         IOUtils.copy(rd.getInputStream(), os);
     }
 
+    @Override
+    public long getEstimatedSize(Object value) {
+        if (value instanceof FileRawData) {
+            File file = ((FileRawData) value).getFile();
+            if (file != null && file.exists()) {
+                return file.length();
+            }
+        }
+        return -1;
+    }
+
     @Override
     public String getFileExtension() {
         LOGGER.warning("Code is grabbing the default file extension to generate the output, it should look in the RawData instead");
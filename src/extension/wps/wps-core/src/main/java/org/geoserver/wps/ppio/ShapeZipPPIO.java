@@ -4,35 +4,71 @@
  */
 package org.geoserver.wps.ppio;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
 import javax.servlet.ServletContext;
 
 import org.apache.commons.io.FileUtils;
-import org.geoserver.data.util.IOUtils;
+import org.apache.commons.io.FilenameUtils;
 import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.wfs.response.ShapeZipOutputFormat;
 import org.geoserver.wps.resource.ShapefileResource;
 import org.geoserver.wps.resource.WPSResourceManager;
 import org.geotools.data.DataUtilities;
+import org.geotools.data.shapefile.ShapeFileIndexer;
 import org.geotools.data.shapefile.ShapefileDataStore;
+import org.geotools.data.shapefile.files.ShpFiles;
 import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.collection.DecoratingSimpleFeatureCollection;
+import org.geotools.util.DefaultProgressListener;
+import org.geotools.util.logging.Logging;
+import org.opengis.filter.Filter;
+import org.springframework.context.ApplicationEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextClosedEvent;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
- * Handles input and output of feature collections as zipped shapefiles
+ * Handles input and output of feature collections as zipped shapefiles. Uploaded shapefiles are
+ * extracted in the execution directory and get a spatial index built in the background, reads
+ * switch to it once it's ready
  * 
  * @author Andrea Aime - OpenGeo
  */
-public class ShapeZipPPIO extends BinaryPPIO {
+public class ShapeZipPPIO extends BinaryPPIO implements ApplicationListener<ApplicationEvent> {
+
+    static final Logger LOGGER = Logging.getLogger(ShapeZipPPIO.class);
+
+    /**
+     * The files making up a shapefile, the others in the zip file are ignored
+     */
+    static final Set<String> SHAPEFILE_EXTENSIONS = new HashSet<String>(Arrays.asList("shp",
+            "shx", "dbf", "prj", "cpg"));
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    static ExecutorService indexExecutor;
 
     WPSResourceManager resources;
 
@@ -61,40 +97,74 @@ public class ShapeZipPPIO extends BinaryPPIO {
 
     @Override
     public Object decode(InputStream input) throws Exception {
-        // create the temp directory and register it as a temporary resource
-        File tempDir = IOUtils.createTempDirectory("shpziptemp");
+        // create the temp directory in the execution one, it's removed along with the store
+        File tempDir = resources.getTemporaryDirectory("shpziptemp");
 
-        // unzip to the temporary directory
-        ZipInputStream zis = null;
         File shapeFile = null;
         try {
-            zis = new ZipInputStream(input);
-            ZipEntry entry = null;
+            shapeFile = unzip(input, tempDir);
+        } catch (Exception e) {
+            FileUtils.deleteDirectory(tempDir);
+            throw e;
+        }
+
+        if (shapeFile == null) {
+            FileUtils.deleteDirectory(tempDir);
+            throw new IOException("Could not find any file with .shp extension in the zip file");
+        } else {
+            // the spatial index is built in the background, the store will start using it
+            // once it's ready
+            ShapefileDataStore store = new ShapefileDataStore(DataUtilities.fileToURL(shapeFile));
+            store.setIndexCreationEnabled(false);
+            store.setIndexed(false);
+            ShapefileResource resource = new ShapefileResource(store, tempDir);
+            resources.addResource(resource);
+            getIndexExecutor().execute(new SpatialIndexBuilder(resource, shapeFile));
+            return new IndexedShapefileCollection(store.getFeatureSource().getFeatures(),
+                    resource);
+        }
+
+    }
 
+    /**
+     * Extracts the shapefile files to the target directory, returning the .shp one, if found
+     */
+    File unzip(InputStream input, File targetDirectory) throws IOException {
+        File shapeFile = null;
+        ZipInputStream zis = null;
+        try {
+            zis = new ZipInputStream(new BufferedInputStream(input, BUFFER_SIZE));
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            ZipEntry entry = null;
             while ((entry = zis.getNextEntry()) != null) {
-                String name = entry.getName();
-                File file = new File(tempDir, entry.getName());
-                if (entry.isDirectory()) {
-                    file.mkdir();
-                } else {
-                    if (file.getName().toLowerCase().endsWith(".shp")) {
-                        shapeFile = file;
-                    }
+                // only the base name is used, this also keeps the files inside the directory
+                String name = new File(entry.getName()).getName();
+                String extension = FilenameUtils.getExtension(name).toLowerCase();
+                if (entry.isDirectory() || name.startsWith(".")
+                        || !SHAPEFILE_EXTENSIONS.contains(extension)) {
+                    continue;
+                }
+
+                File file = new File(targetDirectory, name);
+                if ("shp".equals(extension)) {
+                    shapeFile = file;
+                }
 
+                // write the files to the disk
+                FileChannel channel = null;
+                try {
+                    channel = new FileOutputStream(file).getChannel();
                     int count;
-                    byte data[] = new byte[4096];
-                    // write the files to the disk
-                    FileOutputStream fos = null;
-                    try {
-                        fos = new FileOutputStream(file);
-                        while ((count = zis.read(data)) != -1) {
-                            fos.write(data, 0, count);
-                        }
-                        fos.flush();
-                    } finally {
-                        if (fos != null) {
-                            fos.close();
+                    while ((count = zis.read(buffer.array())) != -1) {
+                        buffer.limit(count);
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer);
                         }
+                        buffer.clear();
+                    }
+                } finally {
+                    if (channel != null) {
+                        channel.close();
                     }
                 }
                 zis.closeEntry();
@@ -105,17 +175,121 @@ public class ShapeZipPPIO extends BinaryPPIO {
             }
         }
 
-        if (shapeFile == null) {
-            FileUtils.deleteDirectory(tempDir);
-            throw new IOException("Could not find any file with .shp extension in the zip file");
-        } else {
-            ShapefileDataStore store = new ShapefileDataStore(DataUtilities.fileToURL(shapeFile));
-            resources.addResource(new ShapefileResource(store, tempDir));
-            return store.getFeatureSource().getFeatures();
+        return shapeFile;
+    }
+
+    static synchronized ExecutorService getIndexExecutor() {
+        if (indexExecutor == null) {
+            int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+            indexExecutor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                    .setDaemon(true).setNameFormat("wps-shapefile-index-%d").build());
         }
+        return indexExecutor;
+    }
 
+    @Override
+    public void onApplicationEvent(ApplicationEvent event) {
+        if (event instanceof ContextClosedEvent) {
+            synchronized (ShapeZipPPIO.class) {
+                if (indexExecutor != null) {
+                    indexExecutor.shutdownNow();
+                    indexExecutor = null;
+                }
+            }
+        }
     }
-    
+
+    /**
+     * Builds the quadtree index of an uploaded shapefile, giving up as soon as the shapefile gets
+     * removed. Once done, reads are switched to a new store using the index
+     */
+    static class SpatialIndexBuilder implements Runnable {
+
+        ShapefileResource resource;
+
+        File shapeFile;
+
+        SpatialIndexBuilder(ShapefileResource resource, File shapeFile) {
+            this.resource = resource;
+            this.shapeFile = shapeFile;
+        }
+
+        @Override
+        public void run() {
+            if (resource.isDeleted()) {
+                return;
+            }
+            ShapefileDataStore indexed = null;
+            try {
+                ShapeFileIndexer indexer = new ShapeFileIndexer();
+                indexer.setShapeFileName(new ShpFiles(shapeFile));
+                indexer.index(false, new DefaultProgressListener() {
+                    @Override
+                    public boolean isCanceled() {
+                        return resource.isDeleted();
+                    }
+                });
+                if (resource.isDeleted()) {
+                    return;
+                }
+
+                // the store handed to the process might be in use, don't switch it under its feet
+                indexed = new ShapefileDataStore(DataUtilities.fileToURL(shapeFile));
+                indexed.setIndexCreationEnabled(false);
+                indexed.setIndexed(true);
+                if (resource.setIndexedStore(indexed)) {
+                    indexed = null;
+                }
+            } catch (Exception e) {
+                LOGGER.log(Level.FINE, "Failed to build the spatial index for " + shapeFile
+                        + ", the shapefile will be read without it", e);
+            } finally {
+                if (indexed != null) {
+                    indexed.dispose();
+                }
+                if (resource.isDeleted()) {
+                    // the removal might have raced with the index creation
+                    FileUtils.deleteQuietly(resource.getDirectory());
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the uploaded shapefile through the store with the spatial index, once available
+     */
+    static class IndexedShapefileCollection extends DecoratingSimpleFeatureCollection {
+
+        ShapefileResource resource;
+
+        IndexedShapefileCollection(SimpleFeatureCollection delegate, ShapefileResource resource) {
+            super(delegate);
+            this.resource = resource;
+        }
+
+        SimpleFeatureCollection getCurrent() {
+            ShapefileDataStore store = resource.getStore();
+            if (store != resource.getOriginalStore()) {
+                try {
+                    return store.getFeatureSource().getFeatures();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Failed to read through the spatial index", e);
+                }
+            }
+            return delegate;
+        }
+
+        @Override
+        public SimpleFeatureIterator features() {
+            return getCurrent().features();
+        }
+
+        @Override
+        public SimpleFeatureCollection subCollection(Filter filter) {
+            return getCurrent().subCollection(filter);
+        }
+    }
+
     @Override
     public String getFileExtension() {
         return "zip";
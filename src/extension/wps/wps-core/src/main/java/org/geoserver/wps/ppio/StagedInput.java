@@ -0,0 +1,110 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps.ppio;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.wps.resource.WPSResourceManager;
+
+/**
+ * The contents of an input stream made available to readers that need to go back and forth in
+ * the data, or read it after the stream is closed. Local files are used in place, small inputs
+ * are kept in memory, the others are staged into a temporary file that is removed along with the
+ * execution resources
+ *
+ * @author Andrea Aime - GeoSolutions
+ */
+class StagedInput {
+
+    /**
+     * Inputs up to this size are kept in memory
+     */
+    static int MEMORY_THRESHOLD = 4 * 1024 * 1024;
+
+    byte[] bytes;
+
+    File file;
+
+    StagedInput(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    StagedInput(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Stages the input, the temporary file, if needed, will use the specified extension
+     *
+     * @param input
+     * @param extension
+     * @return
+     * @throws IOException
+     */
+    static StagedInput stage(InputStream input, String extension) throws IOException {
+        if (input instanceof FileReferenceInputStream) {
+            return new StagedInput(((FileReferenceInputStream) input).getFile());
+        }
+
+        // read up to the threshold, see if we got everything
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            bos.write(buffer, 0, read);
+            if (bos.size() > MEMORY_THRESHOLD) {
+                break;
+            }
+        }
+        if (read == -1) {
+            return new StagedInput(bos.toByteArray());
+        }
+
+        // too big, stage it on disk
+        File file = createTemporaryFile(extension);
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(file);
+            bos.writeTo(os);
+            IOUtils.copyLarge(input, os);
+        } finally {
+            IOUtils.closeQuietly(os);
+        }
+        return new StagedInput(file);
+    }
+
+    static File createTemporaryFile(String extension) throws IOException {
+        WPSResourceManager resources = GeoServerExtensions.bean(WPSResourceManager.class);
+        if (resources != null) {
+            return resources.getTemporaryFile(extension);
+        } else {
+            // not running inside GeoServer, let's at least make sure it goes away eventually
+            File root = new File(System.getProperty("java.io.tmpdir", "."));
+            File file = File.createTempFile("wps", extension, root);
+            file.deleteOnExit();
+            return file;
+        }
+    }
+
+    boolean isInMemory() {
+        return bytes != null;
+    }
+
+    /**
+     * Returns a new stream over the in memory contents
+     */
+    InputStream getMemoryStream() {
+        return new ByteArrayInputStream(bytes);
+    }
+
+}
@@ -28,6 +28,10 @@ public class FileRawData extends AbstractRawData {
         this.file = file;
     }
 
+    public File getFile() {
+        return file;
+    }
+
     @Override
     public InputStream getInputStream() throws FileNotFoundException {
         return new FileInputStream(file);
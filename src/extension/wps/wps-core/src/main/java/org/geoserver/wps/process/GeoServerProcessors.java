@@ -4,9 +4,14 @@
  */
 package org.geoserver.wps.process;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.geoserver.platform.GeoServerExtensions;
 import org.geotools.process.Process;
@@ -19,7 +24,12 @@ import org.springframework.context.ApplicationContextAware;
 
 /**
  * GeoServer replacement for GeoTools's {@link Processors} class, it allow {@link ProcessFilter} to
- * be taken into account before creating factories and processes
+ * be taken into account before creating factories and processes.
+ * <p>
+ * The filtered factories are computed once, and then again only when the set of registered
+ * factories changes, or {@link #clearCache()} is called. This means the filters should depend on
+ * the configuration only, and call {@link #clearCache()} when it changes
+ * </p>
  * 
  * @author Andrea Aime - GeoSolutions
  * 
@@ -28,30 +38,97 @@ public class GeoServerProcessors implements ApplicationContextAware {
 
     private static List<ProcessFilter> filters;
 
+    private static final AtomicReference<FilteredFactories> cache =
+            new AtomicReference<FilteredFactories>();
+
+    /**
+     * Incremented at each cache clear, a snapshot computed against an older generation is stale
+     * and never returned
+     */
+    private static final AtomicLong generation = new AtomicLong();
+
+    /**
+     * An immutable snapshot of the registered factories, before and after filtering
+     */
+    static class FilteredFactories {
+        long generation;
+
+        Set<ProcessFactory> factories;
+
+        Set<ProcessFactory> filtered;
+
+        Map<Class<?>, ProcessFactory> byClass = new HashMap<Class<?>, ProcessFactory>();
+
+        Map<Name, ProcessFactory> byName = new HashMap<Name, ProcessFactory>();
+
+        FilteredFactories(long generation, Set<ProcessFactory> factories) {
+            this.generation = generation;
+            this.factories = factories;
+            Set<ProcessFactory> result = new LinkedHashSet<ProcessFactory>();
+            for (ProcessFactory pf : factories) {
+                ProcessFactory filteredFactory = applyFilters(pf);
+                if (filteredFactory != null) {
+                    result.add(filteredFactory);
+                }
+                if (!byClass.containsKey(pf.getClass())) {
+                    byClass.put(pf.getClass(), filteredFactory);
+                }
+                // same as Processors.createProcessFactory, the first factory wins, but the
+                // name might have been filtered out
+                for (Name name : pf.getNames()) {
+                    if (!byName.containsKey(name)) {
+                        if (filteredFactory != null && filteredFactory.getNames().contains(name)) {
+                            byName.put(name, filteredFactory);
+                        } else {
+                            byName.put(name, null);
+                        }
+                    }
+                }
+            }
+            this.filtered = Collections.unmodifiableSet(result);
+        }
+    }
+
     @Override
     public void setApplicationContext(ApplicationContext appContext) throws BeansException {
         filters = GeoServerExtensions.extensions(ProcessFilter.class, appContext);
+        clearCache();
+    }
+
+    /**
+     * Drops the filtered factories, forcing the filters to be applied again. To be called when the
+     * configuration driving the filters changes
+     */
+    public static void clearCache() {
+        generation.incrementAndGet();
+        cache.set(null);
+    }
+
+    /**
+     * Returns the filtered factories, computing them again if the registered factories changed
+     */
+    static FilteredFactories getFilteredFactories() {
+        long current = generation.get();
+        Set<ProcessFactory> factories = Processors.getProcessFactories();
+        FilteredFactories cached = cache.get();
+        if (cached != null && cached.generation == current && cached.factories.equals(factories)) {
+            return cached;
+        }
+        // install only if no other thread replaced the snapshot meanwhile, a snapshot installed
+        // right after a clear is harmless, its generation is older than the current one
+        FilteredFactories result = new FilteredFactories(current, factories);
+        cache.compareAndSet(cached, result);
+        return result;
     }
 
     /**
      * Set of available ProcessFactory, each eventually wrapped or filtered out by the registered
-     * {@link ProcessFilter}
+     * {@link ProcessFilter}. The set cannot be modified
      * 
      * @return Set of ProcessFactory
      */
     public static Set<ProcessFactory> getProcessFactories() {
-        Set<ProcessFactory> factories = Processors.getProcessFactories();
-        Set<ProcessFactory> result = new LinkedHashSet<ProcessFactory>();
-
-        // scan filters and let them wrap and exclude as necessary
-        for (ProcessFactory pf : factories) {
-            pf = applyFilters(pf);
-            if (pf != null) {
-                result.add(pf);
-            }
-        }
-
-        return result;
+        return getFilteredFactories().filtered;
     }
 
     private static ProcessFactory applyFilters(ProcessFactory pf) {
@@ -76,14 +153,9 @@ public class GeoServerProcessors implements ApplicationContextAware {
      * @return ProcessFactory capable of creating an instanceof the named process
      */
     public static ProcessFactory createProcessFactory(Name name) {
-        ProcessFactory pf = Processors.createProcessFactory(name);
-        pf = applyFilters(pf);
-        //JD: also check the names, this could be a filtered process factory with only a subset 
-        // disabled
-        if (pf != null && !pf.getNames().contains(name)) {
-            pf = null;
-        }
-        return pf;
+        //JD: the names are checked too, this could be a filtered process factory with only a
+        // subset disabled
+        return getFilteredFactories().byName.get(name);
     }
     
     /**
@@ -105,17 +177,14 @@ public class GeoServerProcessors implements ApplicationContextAware {
      * @return
      */
     public static ProcessFactory getProcessFactory(Class factoryClass, boolean applyFilters) {
+        if (applyFilters) {
+            return getFilteredFactories().byClass.get(factoryClass);
+        }
+
         Set<ProcessFactory> factories = Processors.getProcessFactories();
         for (ProcessFactory pf : factories) {
             if(factoryClass.equals(pf.getClass())) {
-                if(!applyFilters) {
-                    return pf;
-                } else {
-                    // scan filters and let them wrap as necessary
-                    pf = applyFilters(pf);
-                    
-                    return pf;
-                }
+                return pf;
             }
         }
         
@@ -23,20 +23,79 @@ public class ShapefileResource implements WPSResource {
 
     String name;
 
+    boolean deleted;
+
+    ShapefileDataStore indexedStore;
+
     public ShapefileResource(ShapefileDataStore store, File directory) throws IOException {
         this.directory = directory;
         this.name = directory.getPath() + store.getTypeNames()[0] + ".shp";
         this.store = store;
     }
 
+    /**
+     * Marks the resource as deleted and removes the shapefile. Code working on the shapefile in
+     * the background is not waited for, it should check {@link #isDeleted()} and bail out
+     */
     public void delete() throws Exception {
+        ShapefileDataStore indexed;
+        synchronized (this) {
+            deleted = true;
+            indexed = indexedStore;
+        }
         try {
             store.dispose();
+            if (indexed != null) {
+                indexed.dispose();
+            }
         } finally {
             FileUtils.deleteDirectory(directory);
         }
     }
 
+    /**
+     * Returns true if the shapefile has been removed already
+     */
+    public synchronized boolean isDeleted() {
+        return deleted;
+    }
+
+    /**
+     * Sets a new store reading the shapefile along with its spatial index, the original store is
+     * left untouched as it might be in use. Returns false if the resource has been deleted in the
+     * meantime, in that case the caller is responsible for disposing the store
+     * 
+     * @param indexedStore
+     */
+    public synchronized boolean setIndexedStore(ShapefileDataStore indexedStore) {
+        if (deleted) {
+            return false;
+        }
+        this.indexedStore = indexedStore;
+        return true;
+    }
+
+    /**
+     * Returns the store new reads should use, the one with the spatial index if available
+     */
+    public synchronized ShapefileDataStore getStore() {
+        return indexedStore != null ? indexedStore : store;
+    }
+
+    /**
+     * Returns the store the resource was created with
+     */
+    public ShapefileDataStore getOriginalStore() {
+        return store;
+    }
+
+    /**
+     * The directory containing the shapefile
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
     public String getName() {
         return name;
     }
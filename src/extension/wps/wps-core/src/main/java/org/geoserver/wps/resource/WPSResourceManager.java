@@ -5,11 +5,12 @@
 package org.geoserver.wps.resource;
 
 import java.io.File;
+import java.io.FilenameFilter;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -23,6 +24,7 @@ import org.geoserver.platform.Service;
 import org.geoserver.platform.ServiceException;
 import org.geoserver.platform.resource.Resource;
 import org.geoserver.wps.WPSException;
+import org.geoserver.wps.WPSStorageCleaner;
 import org.geotools.util.logging.Logging;
 import org.springframework.context.ApplicationEvent;
 import org.springframework.context.ApplicationListener;
@@ -51,6 +53,20 @@ public class WPSResourceManager implements DispatcherCallback,
 
     ThreadLocal<String> executionId = new InheritableThreadLocal<String>();
 
+    WPSStorageCleaner storageCleaner;
+
+    /**
+     * The number of directory levels used to spread the executions in the storage
+     */
+    public static final int SHARD_LEVELS = 2;
+
+    /**
+     * The number of hex digits of the execution id used for each directory level
+     */
+    static final int SHARD_LENGTH = 2;
+
+    volatile File outputStorage;
+
     static final class ExecutionResources {
         /**
          * Temporary resources used to parse inputs or during the process execution
@@ -74,8 +90,9 @@ public class WPSResourceManager implements DispatcherCallback,
 
         public ExecutionResources(boolean synchronouos) {
             this.synchronouos = synchronouos;
-            this.temporary = new ArrayList<WPSResource>();
-            this.outputs = new ArrayList<WPSResource>();
+            // inputs are parsed and outputs encoded in parallel, the lists are shared among threads
+            this.temporary = new CopyOnWriteArrayList<WPSResource>();
+            this.outputs = new CopyOnWriteArrayList<WPSResource>();
         }
     }
 
@@ -113,6 +130,14 @@ public class WPSResourceManager implements DispatcherCallback,
         this.executionId.set(executionId);
     }
 
+    /**
+     * Detaches the current thread from its execution, to be called by the pooled threads that
+     * used {@link #setCurrentExecutionId(String)} once they are done working for the execution
+     */
+    public void clearCurrentExecutionId() {
+        this.executionId.remove();
+    }
+
     public void addResource(WPSResource resource) {
         String processId = getExecutionId(null);
         ExecutionResources resources = resourceCache.get(processId);
@@ -122,6 +147,21 @@ public class WPSResourceManager implements DispatcherCallback,
             resources.temporary.add(resource);
         }
     }
+
+    /**
+     * Adds a resource to the specified execution, for code running in threads that are not bound
+     * to it
+     * 
+     * @param executionId
+     * @param resource
+     */
+    public void addResource(String executionId, WPSResource resource) {
+        ExecutionResources resources = resourceCache.get(executionId);
+        if (resources == null) {
+            throw new IllegalStateException("Execution id " + executionId + " is not known");
+        }
+        resources.temporary.add(resource);
+    }
     
     /**
      * Returns a file that will be used to store a process output as a "reference" 
@@ -131,12 +171,71 @@ public class WPSResourceManager implements DispatcherCallback,
      * @return
      */
     public File getOutputFile(String executionId, String fileName) {
-        File outputDirectory = new File(getWpsOutputStorage(), executionId);
+        File outputDirectory = getExecutionDirectory(executionId);
         if(!outputDirectory.exists()) {
             mkdir(outputDirectory);
         }
         return new File(outputDirectory, fileName);
     }
+
+    /**
+     * Returns the directory holding the outputs of the specified execution, which might not exist
+     * yet. Executions are spread in a two levels directory tree based on the first digits of their
+     * id, the directories of older GeoServer versions, directly in the storage root, are still
+     * found
+     * 
+     * @param executionId
+     * @return
+     */
+    public File getExecutionDirectory(String executionId) {
+        File storage = getWpsOutputStorage();
+        File directory = new File(getShardDirectory(storage, executionId), executionId);
+        if (!directory.exists()) {
+            File legacy = new File(storage, executionId);
+            if (legacy.exists()) {
+                return legacy;
+            }
+        }
+        return directory;
+    }
+
+    /**
+     * Returns the directory containing the execution files, or the storage root if the execution
+     * id is not suitable for sharding
+     */
+    File getShardDirectory(File storage, String executionId) {
+        String digits = executionId.replace("-", "");
+        if (digits.length() < SHARD_LEVELS * SHARD_LENGTH + 1) {
+            return storage;
+        }
+        File directory = storage;
+        for (int i = 0; i < SHARD_LEVELS; i++) {
+            String name = digits.substring(i * SHARD_LENGTH, (i + 1) * SHARD_LENGTH);
+            if (!isShardName(name)) {
+                return storage;
+            }
+            directory = new File(directory, name);
+        }
+        return directory;
+    }
+
+    /**
+     * Returns true if the name can be the one of a directory level of the sharded storage
+     * 
+     * @param name
+     * @return
+     */
+    public static boolean isShardName(String name) {
+        if (name.length() != SHARD_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.digit(name.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
     
     /**
      * Returns a file that will be used to store some temporary file for processing sake, and will
@@ -149,7 +248,7 @@ public class WPSResourceManager implements DispatcherCallback,
      */
     public File getTemporaryFile(String extension) throws IOException {
         String processId = getExecutionId(null);
-        File outputDirectory = new File(getWpsOutputStorage(), processId);
+        File outputDirectory = getExecutionDirectory(processId);
         if (!outputDirectory.exists()) {
             mkdir(outputDirectory);
         }
@@ -158,8 +257,31 @@ public class WPSResourceManager implements DispatcherCallback,
         return file;
     }
 
+    /**
+     * Returns a new directory, inside the execution directory, that can be used to store
+     * temporary files for processing sake. The caller is in charge of registering a resource that
+     * will remove it when the process ends
+     * 
+     * @param prefix
+     * @return
+     * @throws IOException
+     */
+    public File getTemporaryDirectory(String prefix) throws IOException {
+        String processId = getExecutionId(null);
+        File outputDirectory = getExecutionDirectory(processId);
+        if (!outputDirectory.exists()) {
+            mkdir(outputDirectory);
+        }
+        File directory = File.createTempFile(prefix, "", outputDirectory);
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Failed to create the temporary directory " + directory);
+        }
+        return directory;
+    }
+
     private void mkdir(File file) {
-        if(!file.mkdir()) {
+        // other executions might be creating the same parent directories
+        if(!file.mkdirs() && !file.isDirectory()) {
             throw new WPSException("Failed to create the specified directory " + file);
         }
     }
@@ -170,11 +292,35 @@ public class WPSResourceManager implements DispatcherCallback,
      * @return
      */
     public File getStoredResponseFile(String executionId) {
-        File file = new File(getWpsOutputStorage(), executionId + ".xml");
+        File storage = getWpsOutputStorage();
+        String name = executionId + ".xml";
+        File file = new File(getShardDirectory(storage, executionId), name);
+        if (!file.exists()) {
+            File legacy = new File(storage, name);
+            if (legacy.exists()) {
+                return legacy;
+            }
+        }
         return file;
     }
     
+    /**
+     * Returns the root of the WPS storage. The location is resolved only once, and then again if
+     * the directory gets removed
+     * 
+     * @return
+     */
     public File getWpsOutputStorage() {
+        File storage = outputStorage;
+        if (storage != null && storage.exists()) {
+            return storage;
+        }
+        storage = lookupWpsOutputStorage();
+        outputStorage = storage;
+        return storage;
+    }
+
+    File lookupWpsOutputStorage() {
         File wpsStore = null;
         try {
             GeoServerResourceLoader loader = GeoServerExtensions.bean(GeoServerResourceLoader.class);
@@ -204,21 +350,113 @@ public class WPSResourceManager implements DispatcherCallback,
         executionId.remove();
 
         // cleanup automatically if the process is synchronous
-        if (resourceCache.get(id).synchronouos) {
+        ExecutionResources resources = resourceCache.get(id);
+        if (resources.synchronouos) {
             cleanProcess(id);
             resourceCache.remove(id);
+            scheduleExpiration(id, System.currentTimeMillis());
         }
     }
     
+    /**
+     * Marks an asynchronous execution as complete, once its response has been stored, cleaning
+     * up its temporary resources and scheduling the expiration of its outputs
+     * 
+     * @param executionId
+     */
     public void finished(String executionId) {
         // cleanup the thread local, in case it has any id in it
         this.executionId.remove();
 
+        ExecutionResources resources = resourceCache.get(executionId);
+        if (resources == null) {
+            return;
+        }
+
         // cleanup the temporary resources
         cleanProcess(executionId);
        
-        // mark the process as complete
-        resourceCache.get(executionId).completionTime = System.currentTimeMillis();
+        // mark the process as complete, the outputs will expire starting from now
+        resources.completionTime = System.currentTimeMillis();
+        scheduleExpiration(executionId, resources.completionTime);
+        resourceCache.remove(executionId);
+    }
+
+    /**
+     * Registers the output directory of the execution for expiration, along with all the files
+     * named after the execution next to the stored response (the response itself, but also
+     * outputs moved there by other process managers, e.g. <code>&lt;id&gt;.zip</code>)
+     */
+    void scheduleExpiration(String executionId, long completionTime) {
+        try {
+            WPSStorageCleaner cleaner = getStorageCleaner();
+            if (cleaner == null) {
+                return;
+            }
+            File directory = getExecutionDirectory(executionId);
+            if (directory.exists()) {
+                cleaner.track(directory, completionTime);
+            }
+            File response = getStoredResponseFile(executionId);
+            final String prefix = executionId + ".";
+            File[] files = response.getParentFile().listFiles(new FilenameFilter() {
+
+                @Override
+                public boolean accept(File dir, String name) {
+                    return name.startsWith(prefix);
+                }
+            });
+            if (files != null) {
+                for (File file : files) {
+                    cleaner.track(file, completionTime);
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to schedule the expiration of the outputs of "
+                    + executionId, e);
+        }
+    }
+
+    /**
+     * Registers a file or directory of the WPS storage for expiration, to be used for contents
+     * that do not belong to a specific execution
+     * 
+     * @param file
+     */
+    public void scheduleExpiration(File file) {
+        WPSStorageCleaner cleaner = getStorageCleaner();
+        if (cleaner != null) {
+            cleaner.track(file, file.lastModified());
+        }
+    }
+
+    /**
+     * Accounts for an output file just written for the specified execution, so that older results
+     * can be evicted if the storage grows beyond its max size
+     * 
+     * @param executionId
+     * @param file
+     */
+    public void addStorageUsage(String executionId, File file) {
+        WPSStorageCleaner cleaner = getStorageCleaner();
+        if (cleaner != null) {
+            cleaner.addUsage(getExecutionDirectory(executionId), file.length());
+        }
+    }
+
+    WPSStorageCleaner getStorageCleaner() {
+        return storageCleaner;
+    }
+
+    /**
+     * Sets the cleaner tracking the outputs for expiration. It's set explicitly as there might be
+     * more than one cleaner around, e.g., the WPS cluster one, and only the one actually
+     * expiring the outputs should be fed
+     * 
+     * @param storageCleaner
+     */
+    public void setStorageCleaner(WPSStorageCleaner storageCleaner) {
+        this.storageCleaner = storageCleaner;
     }
 
     /**
@@ -238,6 +476,8 @@ public class WPSResourceManager implements DispatcherCallback,
                 LOGGER.log(Level.WARNING,
                         "Failed to clean up the WPS resource " + resource.getName(), t);
             }
+            // only the resources added by threads still running are left for a later cleanup
+            executionResources.temporary.remove(resource);
         }
     }
 
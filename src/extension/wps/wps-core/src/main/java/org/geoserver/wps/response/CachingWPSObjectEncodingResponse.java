@@ -0,0 +1,103 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps.response;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.geoserver.ows.Dispatcher;
+import org.geoserver.ows.Request;
+import org.geoserver.platform.Operation;
+import org.geoserver.platform.ServiceException;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+
+/**
+ * Encodes the capabilities and process descriptions documents only once per document instance,
+ * and answers conditional requests with a 304 when the client already has the current version.
+ * Works along with {@link org.geoserver.wps.WPSDocumentCache}, which returns the same document
+ * instance for the same request
+ *
+ * @author Andrea Aime - GeoSolutions
+ */
+public class CachingWPSObjectEncodingResponse extends WPSObjectEncodingResponse {
+
+    /**
+     * A document encoded in XML, along with its entity tag
+     */
+    static class EncodedDocument {
+        byte[] contents;
+
+        String etag;
+
+        EncodedDocument(byte[] contents) {
+            this.contents = contents;
+            this.etag = "\"" + Hashing.md5().hashBytes(contents).toString() + "\"";
+        }
+    }
+
+    /**
+     * The encoded documents, going away along with the document objects (compared by identity)
+     */
+    ConcurrentMap<Object, EncodedDocument> encoded = CacheBuilder.newBuilder().weakKeys()
+            .<Object, EncodedDocument> build().asMap();
+
+    public CachingWPSObjectEncodingResponse(Class binding, String elementName,
+            Class xmlConfiguration) {
+        super(binding, elementName, xmlConfiguration);
+    }
+
+    @Override
+    public void write(Object value, OutputStream output, Operation operation) throws IOException,
+            ServiceException {
+        EncodedDocument document = encoded.get(value);
+        if (document == null) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            super.write(value, bos, operation);
+            document = new EncodedDocument(bos.toByteArray());
+            encoded.put(value, document);
+        }
+
+        Request request = Dispatcher.REQUEST.get();
+        if (request != null && request.getHttpRequest() != null
+                && request.getHttpResponse() != null) {
+            HttpServletResponse httpResponse = request.getHttpResponse();
+            httpResponse.setHeader("ETag", document.etag);
+            if (isNotModified(request.getHttpRequest(), document.etag)) {
+                httpResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+            httpResponse.setContentLength(document.contents.length);
+        }
+        output.write(document.contents);
+    }
+
+    /**
+     * Returns true if the client sent a If-None-Match header matching the document
+     */
+    static boolean isNotModified(HttpServletRequest httpRequest, String etag) {
+        String ifNoneMatch = httpRequest.getHeader("If-None-Match");
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            // weak comparison is fine, the contents are the same byte by byte anyways
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if ("*".equals(tag) || etag.equals(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
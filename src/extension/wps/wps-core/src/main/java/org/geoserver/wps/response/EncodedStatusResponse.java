@@ -0,0 +1,42 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps.response;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.geoserver.ows.Response;
+import org.geoserver.platform.Operation;
+import org.geoserver.platform.ServiceException;
+import org.geoserver.wps.executor.EncodedStatus;
+
+/**
+ * Writes out the pre-encoded status document of a running process
+ *
+ * @author Andrea Aime - GeoSolutions
+ */
+public class EncodedStatusResponse extends Response {
+
+    public EncodedStatusResponse() {
+        super(EncodedStatus.class);
+    }
+
+    @Override
+    public boolean canHandle(Operation operation) {
+        return "GetExecutionStatus".equalsIgnoreCase(operation.getId())
+                && operation.getService().getId().equals("wps");
+    }
+
+    @Override
+    public String getMimeType(Object value, Operation operation) throws ServiceException {
+        return "text/xml";
+    }
+
+    @Override
+    public void write(Object value, OutputStream output, Operation operation) throws IOException,
+            ServiceException {
+        ((EncodedStatus) value).writeTo(output);
+    }
+}
@@ -9,8 +9,16 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.io.IOUtils;
+import org.geoserver.ows.Dispatcher;
+import org.geoserver.ows.Request;
 import org.geoserver.ows.Response;
 import org.geoserver.platform.Operation;
 import org.geoserver.wps.GetExecutionResultType;
@@ -19,11 +27,20 @@ import org.geoserver.wps.WPSException;
 import org.geoserver.wps.WPSStorageCleaner;
 
 /**
- * Stored file response (for the status and resource operations)
+ * Stored file response (for the status and resource operations). The stored outputs support
+ * single byte range requests, so that downloads can be resumed or split among several
+ * connections
  * 
  * @author Andrea Aime - GeoSolutions
  */
 public class StoredFileResponse extends Response {
+
+    /**
+     * Returned by {@link #parseRange(String, long)} when the range should be ignored and the
+     * whole file returned
+     */
+    static final long[] FULL_CONTENT = new long[0];
+
     WPSStorageCleaner cleaner;
 
     public StoredFileResponse(WPSStorageCleaner cleaner) {
@@ -78,15 +95,150 @@ public class StoredFileResponse extends Response {
 
     public void write(Object value, OutputStream output, Operation operation) throws IOException {
         File file = (File) value;
-        FileInputStream fos = null;
+        FileInputStream fis = null;
         try {
             cleaner.lock(file);
-            fos = new FileInputStream(file);
-            IOUtils.copy(fos, output);
+            cleaner.touch(file);
+            fis = new FileInputStream(file);
+            FileChannel channel = fis.getChannel();
+            long start = 0;
+            long count = channel.size();
+
+            Request request = Dispatcher.REQUEST.get();
+            if (request != null && request.getHttpRequest() != null
+                    && request.getHttpResponse() != null
+                    && operation.getParameters()[0] instanceof GetExecutionResultType) {
+                long[] range = handleRange(file, channel.size(), request.getHttpRequest(),
+                        request.getHttpResponse());
+                if (range == null) {
+                    // unsatisfiable range, nothing to write
+                    return;
+                } else if (range != FULL_CONTENT) {
+                    start = range[0];
+                    count = range[1] - range[0] + 1;
+                }
+            }
+
+            // let the channel move the bytes, no need to go through a heap buffer
+            WritableByteChannel target = Channels.newChannel(output);
+            while (count > 0) {
+                long written = channel.transferTo(start, count, target);
+                if (written <= 0) {
+                    // the file got truncated under our feet
+                    break;
+                }
+                start += written;
+                count -= written;
+            }
         } finally {
             cleaner.unlock(file);
-            IOUtils.closeQuietly(fos);
+            IOUtils.closeQuietly(fis);
+        }
+
+    }
+
+    /**
+     * Sets the range related headers and status code, returns the range to be written, or
+     * {@link #FULL_CONTENT}, or null if the range cannot be satisfied
+     */
+    long[] handleRange(File file, long length, HttpServletRequest httpRequest,
+            HttpServletResponse httpResponse) {
+        long lastModified = file.lastModified();
+        String etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified)
+                + "\"";
+        httpResponse.setHeader("Accept-Ranges", "bytes");
+        httpResponse.setHeader("ETag", etag);
+        httpResponse.setDateHeader("Last-Modified", lastModified);
+
+        long[] range = FULL_CONTENT;
+        String rangeHeader = httpRequest.getHeader("Range");
+        if (rangeHeader != null && isIfRangeMatching(httpRequest, etag, lastModified)) {
+            range = parseRange(rangeHeader, length);
         }
+        if (range == null) {
+            httpResponse.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            httpResponse.setHeader("Content-Range", "bytes */" + length);
+            httpResponse.setContentLength(0);
+        } else if (range == FULL_CONTENT) {
+            setContentLength(httpResponse, length);
+        } else {
+            httpResponse.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            httpResponse.setHeader("Content-Range", "bytes " + range[0] + "-" + range[1] + "/"
+                    + length);
+            setContentLength(httpResponse, range[1] - range[0] + 1);
+        }
+        return range;
+    }
 
+    void setContentLength(HttpServletResponse httpResponse, long length) {
+        if (length <= Integer.MAX_VALUE) {
+            httpResponse.setContentLength((int) length);
+        }
+    }
+
+    /**
+     * Checks the If-Range header, if present the range is to be honoured only if the file did not
+     * change
+     */
+    boolean isIfRangeMatching(HttpServletRequest httpRequest, String etag, long lastModified) {
+        String ifRange = httpRequest.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return etag.equals(ifRange);
+        }
+        try {
+            long date = httpRequest.getDateHeader("If-Range");
+            return date / 1000 == lastModified / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Parses a single byte range specification, returning the first and last byte positions,
+     * {@link #FULL_CONTENT} if the header is invalid or asks for multiple ranges (both cases
+     * should be ignored according to the HTTP specification) or null if the range cannot be
+     * satisfied
+     * 
+     * @param header
+     * @param length
+     * @return
+     */
+    static long[] parseRange(String header, long length) {
+        String spec = header.trim();
+        if (!spec.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return FULL_CONTENT;
+        }
+        spec = spec.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0 || spec.indexOf(',') >= 0) {
+            return FULL_CONTENT;
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                // suffix range, the last N bytes
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0 || length == 0) {
+                    return null;
+                }
+                return new long[] { Math.max(0, length - suffix), length - 1 };
+            }
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? length - 1 : Long.parseLong(last);
+            if (start < 0 || end < start) {
+                return FULL_CONTENT;
+            }
+            if (start >= length) {
+                return null;
+            }
+            return new long[] { start, Math.min(end, length - 1) };
+        } catch (NumberFormatException e) {
+            return FULL_CONTENT;
+        }
     }
 }
@@ -0,0 +1,55 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+import org.xml.sax.helpers.DefaultHandler;
+
+public class Base64ContentHandlerStreamTest {
+
+    static class CollectingHandler extends DefaultHandler {
+        StringBuilder sb = new StringBuilder();
+
+        int maxChunk;
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            sb.append(ch, start, length);
+            maxChunk = Math.max(maxChunk, length);
+        }
+    }
+
+    @Test
+    public void testEncoding() throws Exception {
+        Random random = new Random(0);
+        for (int size : new int[] { 0, 1, 2, 3, 4, 5, 3071, 3072, 3073, 100000 }) {
+            byte[] data = new byte[size];
+            random.nextBytes(data);
+
+            CollectingHandler handler = new CollectingHandler();
+            Base64ContentHandlerStream os = new Base64ContentHandlerStream(handler);
+            // mix single bytes and arrays of different sizes
+            int i = 0;
+            while (i < size) {
+                if (i % 7 == 0) {
+                    os.write(data[i++]);
+                } else {
+                    int len = Math.min(size - i, 1 + (i % 5000));
+                    os.write(data, i, len);
+                    i += len;
+                }
+            }
+            os.close();
+
+            assertEquals("Size " + size, new String(Base64.encodeBase64(data)), handler.sb.toString());
+            assertTrue(handler.maxChunk <= Base64ContentHandlerStream.BUFFER_SIZE);
+        }
+    }
+}
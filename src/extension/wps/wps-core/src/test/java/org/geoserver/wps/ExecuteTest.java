@@ -10,6 +10,7 @@ import static junit.framework.Assert.assertTrue;
 
 import static org.custommonkey.xmlunit.XMLAssert.assertXpathEvaluatesTo;
 import static org.custommonkey.xmlunit.XMLAssert.assertXpathExists;
+import static org.custommonkey.xmlunit.XMLAssert.assertXpathNotExists;
 import static org.geoserver.data.test.MockData.PRIMITIVEGEOFEATURE;
 
 import java.io.ByteArrayInputStream;
@@ -21,6 +22,11 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -34,7 +40,9 @@ import org.custommonkey.xmlunit.exceptions.XpathException;
 import org.geoserver.data.test.MockData;
 import org.geoserver.data.test.SystemTestData;
 import org.geoserver.data.test.SystemTestData.LayerProperty;
+import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.test.RemoteOWSTestSupport;
+import org.geoserver.wps.executor.WPSExecutionManager;
 import org.geotools.data.collection.ListFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.feature.FeatureCollection;
@@ -399,6 +407,70 @@ public class ExecuteTest extends WPSTestSupport {
         assertXpathExists("wfs:FeatureCollection", d);
     }
     
+    @Test
+    public void testInlineOutputEstimatedTooBig() throws Exception {
+        // the GeoTIFF size is estimated from the source file
+        String request = "wps?service=WPS&version=1.0.0&request=Execute&Identifier=gs:GetFullCoverage"
+                + "&DataInputs=" + urlEncode("name=" + getLayerId(TASMANIA_DEM))
+                + "&ResponseDocument=" + urlEncode("result=@mimetype=image/tiff");
+        Document d = getInlineLimitedAsDOM(request, 1000);
+        // print(d);
+        assertXpathExists("/wps:ExecuteResponse/wps:Status/wps:ProcessSucceeded", d);
+        assertXpathExists("/wps:ExecuteResponse/wps:ProcessOutputs/wps:Output/wps:Reference", d);
+        MockHttpServletResponse response = getAsServletResponse(getReferenceLocation(d));
+        assertEquals("image/tiff", response.getContentType());
+    }
+
+    @Test
+    public void testInlineOutputMeasuredTooBig() throws Exception {
+        // GML has no size estimate, the output gets written down and measured
+        String request = getBufferGMLRequest();
+        Document d = getInlineLimitedAsDOM(request, 100);
+        // print(d);
+        assertXpathExists("/wps:ExecuteResponse/wps:Status/wps:ProcessSucceeded", d);
+        assertXpathExists("/wps:ExecuteResponse/wps:ProcessOutputs/wps:Output/wps:Reference", d);
+        d = getAsDOM(getReferenceLocation(d));
+        assertXpathExists("gml:Polygon", d);
+    }
+
+    @Test
+    public void testInlineOutputUnderThreshold() throws Exception {
+        Document d = getInlineLimitedAsDOM(getBufferGMLRequest(), 1024 * 1024);
+        // print(d);
+        assertXpathExists("/wps:ExecuteResponse/wps:Status/wps:ProcessSucceeded", d);
+        assertXpathExists("/wps:ExecuteResponse/wps:ProcessOutputs/wps:Output/wps:Data"
+                + "/wps:ComplexData/gml:Polygon", d);
+        assertXpathNotExists("//wps:Reference", d);
+    }
+
+    String getBufferGMLRequest() throws Exception {
+        return "wps?service=WPS&version=1.0.0&request=Execute&Identifier=JTS:buffer"
+                + "&DataInputs="
+                + urlEncode("geom=POLYGON((1 1, 2 1, 2 2, 1 2, 1 1))@mimetype=application/wkt;distance=1")
+                + "&ResponseDocument=" + urlEncode("result=@mimetype=text/xml; subtype=gml/3.1.1");
+    }
+
+    /**
+     * Runs the request with the specified max inline output size
+     */
+    Document getInlineLimitedAsDOM(String request, long maxInlineOutputSize) throws Exception {
+        WPSExecutionManager manager = GeoServerExtensions.bean(WPSExecutionManager.class);
+        long previous = manager.getMaxInlineOutputSize();
+        manager.setMaxInlineOutputSize(maxInlineOutputSize);
+        try {
+            return getAsDOM(request);
+        } finally {
+            manager.setMaxInlineOutputSize(previous);
+        }
+    }
+
+    String getReferenceLocation(Document d) throws Exception {
+        XpathEngine xpath = XMLUnit.newXpathEngine();
+        String fullLocation = xpath.evaluate(
+                "/wps:ExecuteResponse/wps:ProcessOutputs/wps:Output/wps:Reference/@href", d);
+        return fullLocation.substring(fullLocation.indexOf('?') - 3);
+    }
+
     @Test
     public void testFeatureCollectionFileReference() throws Exception { // Standard Test A.4.4.2, A.4.4.4
         URL collectionURL = getClass().getResource("states-FeatureCollection.xml");
@@ -885,6 +957,63 @@ public class ExecuteTest extends WPSTestSupport {
         assertXpathExists("//wps:ProcessSucceeded", dom);
     }
     
+    @Test
+    public void testStatusLongPolling() throws Exception {
+        String statusLocation = submitMonkey("x6");
+        MonkeyProcess.progress("x6", 10f, true);
+        assertProgress(statusLocation, "" + Math.round(0.66 * 10));
+
+        // move the process forward while the status request is waiting
+        Thread mover = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(500);
+                    MonkeyProcess.progress("x6", 50f, false);
+                } catch (InterruptedException e) {
+                    // nothing to do
+                }
+            }
+        };
+        mover.start();
+        long start = System.currentTimeMillis();
+        Document dom = getAsDOM(statusLocation + "&waitTimeout=30");
+        long elapsed = System.currentTimeMillis() - start;
+        mover.join();
+        // print(dom);
+        assertXpathEvaluatesTo("" + Math.round(0.66 * 50), "//wps:ProcessStarted/@percentCompleted", dom);
+        assertTrue("Waited " + elapsed + "ms", elapsed < 30000);
+
+        MonkeyProcess.exit("x6", collectionOfThings(), true);
+        dom = waitForProcessEnd(statusLocation, 60);
+        assertXpathExists("//wps:ProcessSucceeded", dom);
+    }
+
+    @Test
+    public void testStatusLongPollingWaitersCap() throws Exception {
+        String statusLocation = submitMonkey("x7");
+        MonkeyProcess.progress("x7", 10f, true);
+        assertProgress(statusLocation, "" + Math.round(0.66 * 10));
+
+        // no waiters allowed, the status request gets answered right away
+        WPSExecutionManager manager = GeoServerExtensions.bean(WPSExecutionManager.class);
+        manager.setMaxStatusWaiters(0);
+        try {
+            long start = System.currentTimeMillis();
+            Document dom = getAsDOM(statusLocation + "&waitTimeout=30");
+            long elapsed = System.currentTimeMillis() - start;
+            // print(dom);
+            assertXpathEvaluatesTo("" + Math.round(0.66 * 10),
+                    "//wps:ProcessStarted/@percentCompleted", dom);
+            assertTrue("Waited " + elapsed + "ms", elapsed < 10000);
+        } finally {
+            manager.setMaxStatusWaiters(WPSExecutionManager.DEFAULT_MAX_STATUS_WAITERS);
+        }
+
+        MonkeyProcess.exit("x7", collectionOfThings(), true);
+        Document dom = waitForProcessEnd(statusLocation, 60);
+        assertXpathExists("//wps:ProcessSucceeded", dom);
+    }
+
     /**
      * http://jira.codehaus.org/browse/GEOS-5208
      * @throws Exception
@@ -970,6 +1099,82 @@ public class ExecuteTest extends WPSTestSupport {
         assertXpathExists("//wps:ProcessSucceeded", dom);
     }
 
+    @Test
+    public void testAsynchQueueFull() throws Exception {
+        WPSInfo wps = getGeoServer().getService(WPSInfo.class);
+        int maxAsynch = wps.getMaxAsynchronousProcesses();
+        int maxQueued = wps.getMaxQueuedAsynchronousProcesses();
+        wps.setMaxAsynchronousProcesses(1);
+        wps.setMaxQueuedAsynchronousProcesses(1);
+        getGeoServer().save(wps);
+        try {
+            // one running, one queued
+            String statusLocation1 = submitMonkey("busy1");
+            MonkeyProcess.progress("busy1", 10f, true);
+            String statusLocation2 = submitMonkey("busy2");
+
+            // no more room in the queue
+            MockHttpServletResponse response = getAsServletResponse(getMonkeyRequest("busy3"));
+            Document dom = dom(new ByteArrayInputStream(response.getOutputStreamContent()
+                    .getBytes()));
+            // print(dom);
+            assertXpathExists("//ows:Exception[@exceptionCode='ServerBusy']", dom);
+            assertTrue(Integer.parseInt(response.getHeader("Retry-After")) > 0);
+
+            // the accepted ones run to completion
+            MonkeyProcess.exit("busy1", collectionOfThings(), true);
+            MonkeyProcess.exit("busy2", collectionOfThings(), true);
+            assertXpathExists("//wps:ProcessSucceeded", waitForProcessEnd(statusLocation1, 60));
+            assertXpathExists("//wps:ProcessSucceeded", waitForProcessEnd(statusLocation2, 60));
+        } finally {
+            wps.setMaxAsynchronousProcesses(maxAsynch);
+            wps.setMaxQueuedAsynchronousProcesses(maxQueued);
+            getGeoServer().save(wps);
+        }
+    }
+
+    @Test
+    public void testSynchQueueTimeout() throws Exception {
+        WPSInfo wps = getGeoServer().getService(WPSInfo.class);
+        int maxSynch = wps.getMaxSynchronousProcesses();
+        int queueTimeout = wps.getSynchronousQueueTimeout();
+        wps.setMaxSynchronousProcesses(1);
+        wps.setSynchronousQueueTimeout(1);
+        getGeoServer().save(wps);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // occupy the only synchronous slot from another thread
+            Future<MockHttpServletResponse> running = executor
+                    .submit(new Callable<MockHttpServletResponse>() {
+
+                        @Override
+                        public MockHttpServletResponse call() throws Exception {
+                            return getAsServletResponse(getMonkeyRequest("synch1")
+                                    + "&RawDataOutput=result");
+                        }
+                    });
+            MonkeyProcess.progress("synch1", 10f, true);
+
+            // this one waits in queue longer than the timeout
+            MockHttpServletResponse response = getAsServletResponse(getMonkeyRequest("synch2"));
+            Document dom = dom(new ByteArrayInputStream(response.getOutputStreamContent()
+                    .getBytes()));
+            // print(dom);
+            assertXpathExists("//ows:Exception[@exceptionCode='ServerBusy']", dom);
+            assertTrue(Integer.parseInt(response.getHeader("Retry-After")) > 0);
+
+            // the running one is not affected
+            MonkeyProcess.exit("synch1", collectionOfThings(), false);
+            MockHttpServletResponse result = running.get(60, TimeUnit.SECONDS);
+            assertTrue(result.getOutputStreamContent().contains("FeatureCollection"));
+        } finally {
+            executor.shutdownNow();
+            wps.setMaxSynchronousProcesses(maxSynch);
+            wps.setSynchronousQueueTimeout(queueTimeout);
+            getGeoServer().save(wps);
+        }
+    }
+
     @Test
     public void testInlineGetFeatureNameClash() throws Exception {
         assertNotNull(getCatalog().getLayerByName("foo:PrimitiveGeoFeature"));
@@ -1008,8 +1213,13 @@ public class ExecuteTest extends WPSTestSupport {
         assertXpathEvaluatesTo(progress, "//wps:ProcessStarted/@percentCompleted", dom);
     }
     
+    private String getMonkeyRequest(String id) throws Exception {
+        return "wps?service=WPS&version=1.0.0&request=Execute&Identifier=gs:Monkey&DataInputs="
+                + urlEncode("id=" + id);
+    }
+
     private String submitMonkey(String id) throws Exception, XpathException {
-        String request = "wps?service=WPS&version=1.0.0&request=Execute&Identifier=gs:Monkey&storeExecuteResponse=true&status=true&DataInputs=" + urlEncode("id=" + id);
+        String request = getMonkeyRequest(id) + "&storeExecuteResponse=true&status=true";
         Document dom = getAsDOM(request);
         assertXpathExists("//wps:ProcessAccepted", dom);
         XpathEngine xpath = XMLUnit.newXpathEngine();
@@ -0,0 +1,96 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geoserver.wps.process.AbstractRawData;
+import org.geoserver.wps.process.RawData;
+import org.geotools.process.ProcessFactory;
+import org.geotools.process.factory.AnnotatedBeanProcessFactory;
+import org.geotools.process.factory.DescribeParameter;
+import org.geotools.process.factory.DescribeProcess;
+import org.geotools.process.factory.DescribeResult;
+import org.geotools.process.factory.DescribeResults;
+import org.geotools.util.SimpleInternationalString;
+
+/**
+ * Returns two raw outputs, a slow one, and one that fails as soon as it gets encoded
+ *
+ * @author Andrea Aime - GeoSolutions
+ */
+@DescribeProcess(title = "FailingOutput", description = "Process used to test output encoding failures")
+public class FailingOutputProcess {
+
+    /**
+     * The number of slow outputs being encoded right now
+     */
+    static final AtomicInteger slowEncodings = new AtomicInteger();
+
+    @DescribeResults({
+            @DescribeResult(name = "slow", type = RawData.class, meta = { "mimeTypes=text/plain" }),
+            @DescribeResult(name = "failing", type = RawData.class, meta = { "mimeTypes=text/plain" }) })
+    public Map<String, Object> execute(
+            @DescribeParameter(name = "delay", description = "Encoding time of the slow output, in milliseconds") final Integer delay) {
+        Map<String, Object> result = new HashMap<String, Object>();
+        result.put("slow", new TextRawData() {
+
+            @Override
+            public InputStream getInputStream() throws IOException {
+                slowEncodings.incrementAndGet();
+                try {
+                    // an encoding that does not react to interruption
+                    long end = System.currentTimeMillis() + delay;
+                    boolean interrupted = false;
+                    while (System.currentTimeMillis() < end) {
+                        try {
+                            Thread.sleep(10);
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return new ByteArrayInputStream("slow".getBytes());
+                } finally {
+                    slowEncodings.decrementAndGet();
+                }
+            }
+        });
+        result.put("failing", new TextRawData() {
+
+            @Override
+            public InputStream getInputStream() throws IOException {
+                throw new IOException("Failing on purpose");
+            }
+        });
+        return result;
+    }
+
+    abstract static class TextRawData implements RawData {
+
+        @Override
+        public String getMimeType() {
+            return "text/plain";
+        }
+
+        @Override
+        public String getFileExtension() {
+            return AbstractRawData.DEFAULT_EXTENSION;
+        }
+    }
+
+    static final ProcessFactory getFactory() {
+        return new AnnotatedBeanProcessFactory(new SimpleInternationalString(
+                "Failing output process"), "gs", FailingOutputProcess.class);
+    }
+
+}
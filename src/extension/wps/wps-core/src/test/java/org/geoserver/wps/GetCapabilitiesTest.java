@@ -5,15 +5,24 @@
 package org.geoserver.wps;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertTrue;
 import static org.custommonkey.xmlunit.XMLAssert.assertXpathEvaluatesTo;
+import static org.custommonkey.xmlunit.XMLAssert.assertXpathExists;
+import static org.custommonkey.xmlunit.XMLAssert.assertXpathNotExists;
 
 import org.custommonkey.xmlunit.XMLUnit;
 import org.custommonkey.xmlunit.XpathEngine;
+import org.geoserver.config.GeoServer;
 import org.geoserver.data.test.MockData;
+import org.geotools.feature.NameImpl;
+import org.geotools.process.Processors;
 import org.junit.Test;
 import org.w3c.dom.Document;
 
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+
 public class GetCapabilitiesTest extends WPSTestSupport {
 
     @Test
@@ -52,6 +61,53 @@ public class GetCapabilitiesTest extends WPSTestSupport {
         }
     }
 
+    @Test
+    public void testConditionalGet() throws Exception {
+        String path = "wps?service=wps&request=getcapabilities";
+        MockHttpServletResponse response = getAsServletResponse(path);
+        String etag = response.getHeader("ETag");
+        assertNotNull(etag);
+
+        // same document, the client copy is still good
+        MockHttpServletRequest request = createRequest(path);
+        request.setMethod("GET");
+        request.setBodyContent(new byte[] {});
+        request.addHeader("If-None-Match", etag);
+        response = dispatch(request);
+        assertEquals(304, response.getStatusCode());
+        assertEquals(0, response.getOutputStreamContent().length());
+    }
+
+    @Test
+    public void testDisabledProcessNotCached() throws Exception {
+        String path = "wps?service=wps&request=getcapabilities";
+        String bufferPath = "//wps:Process[ows:Identifier='JTS:buffer']";
+        Document d = getAsDOM(path);
+        assertXpathExists(bufferPath, d);
+
+        // disable the JTS factory, the cached document must not be returned anymore
+        GeoServer gs = getGeoServer();
+        WPSInfo wps = gs.getService(WPSInfo.class);
+        ProcessGroupInfo jtsGroup = new ProcessGroupInfoImpl();
+        jtsGroup.setFactoryClass(Processors.createProcessFactory(new NameImpl("JTS", "buffer"))
+                .getClass());
+        jtsGroup.setEnabled(false);
+        wps.getProcessGroups().add(jtsGroup);
+        gs.save(wps);
+        try {
+            d = getAsDOM(path);
+            assertXpathNotExists(bufferPath, d);
+        } finally {
+            wps = gs.getService(WPSInfo.class);
+            wps.getProcessGroups().remove(jtsGroup);
+            gs.save(wps);
+        }
+
+        // and back
+        d = getAsDOM(path);
+        assertXpathExists(bufferPath, d);
+    }
+
     @Test
     public void testPostBasic() throws Exception { // Standard Test A.4.2.2
         String request = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
@@ -0,0 +1,60 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps;
+
+import static org.custommonkey.xmlunit.XMLAssert.assertXpathNotExists;
+import static org.junit.Assert.assertEquals;
+
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.wps.executor.WPSExecutionManager;
+import org.geotools.process.Processors;
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+public class OutputEncodingFailureTest extends WPSTestSupport {
+
+    static {
+        Processors.addProcessFactory(FailingOutputProcess.getFactory());
+    }
+
+    @Test
+    public void testFailingReferenceOutput() throws Exception {
+        String xml = "<wps:Execute service='WPS' version='1.0.0' xmlns:wps='http://www.opengis.net/wps/1.0.0' "
+                + "xmlns:ows='http://www.opengis.net/ows/1.1'>"
+                + "<ows:Identifier>gs:FailingOutput</ows:Identifier>"
+                + "<wps:DataInputs>"
+                + "<wps:Input>"
+                + "<ows:Identifier>delay</ows:Identifier>"
+                + "<wps:Data>"
+                + "<wps:LiteralData>1000</wps:LiteralData>"
+                + "</wps:Data>"
+                + "</wps:Input>"
+                + "</wps:DataInputs>"
+                + "<wps:ResponseForm>"
+                + "<wps:ResponseDocument storeExecuteResponse='false'>"
+                + "<wps:Output asReference='true' mimeType='text/plain'>"
+                + "<ows:Identifier>failing</ows:Identifier>"
+                + "</wps:Output>"
+                + "<wps:Output asReference='true' mimeType='text/plain'>"
+                + "<ows:Identifier>slow</ows:Identifier>"
+                + "</wps:Output>"
+                + "</wps:ResponseDocument>"
+                + "</wps:ResponseForm>"
+                + "</wps:Execute>";
+
+        // make sure both outputs can be encoded at the same time
+        WPSExecutionManager manager = GeoServerExtensions.bean(WPSExecutionManager.class);
+        manager.setMaxOutputEncoders(2);
+        try {
+            Document d = postAsDOM("wps", xml);
+            // print(d);
+            assertXpathNotExists("//wps:ProcessSucceeded", d);
+            // the slow output either did not start, or it's done encoding
+            assertEquals(0, FailingOutputProcess.slowEncodings.get());
+        } finally {
+            manager.setMaxOutputEncoders(Runtime.getRuntime().availableProcessors());
+        }
+    }
+}
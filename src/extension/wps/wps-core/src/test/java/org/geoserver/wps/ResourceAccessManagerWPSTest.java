@@ -13,11 +13,14 @@ import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.security.CatalogMode;
 import org.geoserver.security.TestResourceAccessManager;
 import org.geoserver.security.VectorAccessLimits;
+import org.geoserver.wps.executor.DefaultProcessManager;
 import org.junit.Before;
 import org.junit.Test;
 import org.opengis.filter.Filter;
 import org.w3c.dom.Document;
 
+import com.mockrunner.mock.web.MockHttpServletResponse;
+
 public class ResourceAccessManagerWPSTest extends WPSTestSupport {
 
     /**
@@ -85,6 +88,101 @@ public class ResourceAccessManagerWPSTest extends WPSTestSupport {
         assertEquals(0.001, Double.parseDouble(uc[1]), 0d);
     }
 
+    @Test
+    public void testChainedPrefetchKeepsAuthentication() throws Exception {
+        // a single prefetch thread and a queue of one, so that some of the chained inputs
+        // get rejected or pulled back, and run in the process thread
+        DefaultProcessManager pm = applicationContext.getBean(DefaultProcessManager.class);
+        pm.setMaxInputPrefetchThreads(0);
+        pm.setMaxInputPrefetchThreads(1);
+        try {
+            setRequestAuth("cite", "cite");
+            StringBuilder inputs = new StringBuilder();
+            for (int i = 0; i < 4; i++) {
+                inputs.append(collectBuildingsInput("geom"));
+            }
+            // @formatter:off
+            String xml =
+                    "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                    + "<wps:Execute version=\"1.0.0\" service=\"WPS\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xmlns=\"http://www.opengis.net/wps/1.0.0\" xmlns:wfs=\"http://www.opengis.net/wfs\" xmlns:wps=\"http://www.opengis.net/wps/1.0.0\" xmlns:ows=\"http://www.opengis.net/ows/1.1\" xmlns:gml=\"http://www.opengis.net/gml\" xmlns:ogc=\"http://www.opengis.net/ogc\" xmlns:wcs=\"http://www.opengis.net/wcs/1.1.1\" xmlns:xlink=\"http://www.w3.org/1999/xlink\" xsi:schemaLocation=\"http://www.opengis.net/wps/1.0.0 http://schemas.opengis.net/wps/1.0.0/wpsAll.xsd\">\n"
+                    + "  <ows:Identifier>JTS:buffer</ows:Identifier>\n"
+                    + "  <wps:DataInputs>\n"
+                    + "    <wps:Input>\n"
+                    + "      <ows:Identifier>geom</ows:Identifier>\n"
+                    + "      <wps:Reference mimeType=\"text/xml; subtype=gml/3.1.1\" xlink:href=\"http://geoserver/wps\" method=\"POST\">\n"
+                    + "        <wps:Body>\n"
+                    + "          <wps:Execute version=\"1.0.0\" service=\"WPS\">\n"
+                    + "            <ows:Identifier>JTS:union</ows:Identifier>\n"
+                    + "            <wps:DataInputs>\n"
+                    + inputs
+                    + "            </wps:DataInputs>\n"
+                    + "            <wps:ResponseForm>\n"
+                    + "              <wps:RawDataOutput mimeType=\"text/xml; subtype=gml/3.1.1\">\n"
+                    + "                <ows:Identifier>result</ows:Identifier>\n"
+                    + "              </wps:RawDataOutput>\n"
+                    + "            </wps:ResponseForm>\n"
+                    + "          </wps:Execute>\n"
+                    + "        </wps:Body>\n"
+                    + "      </wps:Reference>\n"
+                    + "    </wps:Input>\n"
+                    + "    <wps:Input>\n"
+                    + "      <ows:Identifier>distance</ows:Identifier>\n"
+                    + "      <wps:Data>\n"
+                    + "        <wps:LiteralData>0</wps:LiteralData>\n"
+                    + "      </wps:Data>\n"
+                    + "    </wps:Input>\n"
+                    + "  </wps:DataInputs>\n"
+                    + "  <wps:ResponseForm>\n"
+                    + "    <wps:RawDataOutput mimeType=\"application/wkt\">\n"
+                    + "      <ows:Identifier>result</ows:Identifier>\n"
+                    + "    </wps:RawDataOutput>\n"
+                    + "  </wps:ResponseForm>\n"
+                    + "</wps:Execute>";
+            // @formatter:on
+
+            // all the chained inputs are read as the cite user, anonymous would be denied
+            MockHttpServletResponse response = postAsServletResponse("wps", xml);
+            assertEquals(response.getOutputStreamContent(), "application/wkt",
+                    response.getContentType());
+            assertTrue(response.getOutputStreamContent().contains("POLYGON"));
+        } finally {
+            pm.setMaxInputPrefetchThreads(0);
+            pm.setMaxInputPrefetchThreads(4);
+        }
+    }
+
+    private String collectBuildingsInput(String identifier) {
+        // @formatter:off
+        return "              <wps:Input>\n"
+                + "                <ows:Identifier>" + identifier + "</ows:Identifier>\n"
+                + "                <wps:Reference mimeType=\"text/xml; subtype=gml/3.1.1\" xlink:href=\"http://geoserver/wps\" method=\"POST\">\n"
+                + "                  <wps:Body>\n"
+                + "                    <wps:Execute version=\"1.0.0\" service=\"WPS\">\n"
+                + "                      <ows:Identifier>gs:CollectGeometries</ows:Identifier>\n"
+                + "                      <wps:DataInputs>\n"
+                + "                        <wps:Input>\n"
+                + "                          <ows:Identifier>features</ows:Identifier>\n"
+                + "                          <wps:Reference mimeType=\"text/xml; subtype=wfs-collection/1.0\" xlink:href=\"http://geoserver/wfs\" method=\"POST\">\n"
+                + "                            <wps:Body>\n"
+                + "                              <wfs:GetFeature service=\"WFS\" version=\"1.0.0\" outputFormat=\"GML2\">\n"
+                + "                                <wfs:Query typeName=\"" + getLayerId(MockData.BUILDINGS) + "\"/>\n"
+                + "                              </wfs:GetFeature>\n"
+                + "                            </wps:Body>\n"
+                + "                          </wps:Reference>\n"
+                + "                        </wps:Input>\n"
+                + "                      </wps:DataInputs>\n"
+                + "                      <wps:ResponseForm>\n"
+                + "                        <wps:RawDataOutput mimeType=\"text/xml; subtype=gml/3.1.1\">\n"
+                + "                          <ows:Identifier>result</ows:Identifier>\n"
+                + "                        </wps:RawDataOutput>\n"
+                + "                      </wps:ResponseForm>\n"
+                + "                    </wps:Execute>\n"
+                + "                  </wps:Body>\n"
+                + "                </wps:Reference>\n"
+                + "              </wps:Input>\n";
+        // @formatter:on
+    }
+
     private Document runBuildingsRequest() throws Exception {
         // @formatter:off
         String xml =
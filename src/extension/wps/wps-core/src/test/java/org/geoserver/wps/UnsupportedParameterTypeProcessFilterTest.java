@@ -0,0 +1,185 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.platform.GeoServerResourceLoader;
+import org.geotools.process.ProcessFactory;
+import org.geotools.process.factory.AnnotatedBeanProcessFactory;
+import org.geotools.process.factory.DescribeParameter;
+import org.geotools.process.factory.DescribeProcess;
+import org.geotools.process.factory.DescribeResult;
+import org.geotools.util.SimpleInternationalString;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.feature.type.Name;
+
+public class UnsupportedParameterTypeProcessFilterTest extends WPSTestSupport {
+
+    @DescribeProcess(title = "Supported", description = "A process with bindable parameters")
+    public static class SupportedProcess {
+        @DescribeResult(name = "result")
+        public String execute(@DescribeParameter(name = "value") String value) {
+            return value;
+        }
+    }
+
+    @DescribeProcess(title = "Unsupported", description = "A process with an unbindable input")
+    public static class UnsupportedProcess {
+        @DescribeResult(name = "result")
+        public String execute(@DescribeParameter(name = "thread") Thread thread) {
+            return null;
+        }
+    }
+
+    /**
+     * A filter with a controlled factory version, counting the actual process checks
+     */
+    class TestFilter extends UnsupportedParameterTypeProcessFilter {
+        String version;
+
+        AtomicInteger supportChecks = new AtomicInteger();
+
+        TestFilter(String version) {
+            this.version = version;
+            setApplicationContext(applicationContext);
+        }
+
+        @Override
+        String getImplementationVersion(ProcessFactory pf) {
+            return version;
+        }
+
+        @Override
+        boolean isSupported(ProcessFactory pf, Name name) {
+            supportChecks.incrementAndGet();
+            return super.isSupported(pf, name);
+        }
+    }
+
+    ProcessFactory factory = new AnnotatedBeanProcessFactory(new SimpleInternationalString(
+            "Filter test processes"), "test", SupportedProcess.class, UnsupportedProcess.class);
+
+    File cacheFile;
+
+    @Before
+    public void removeCacheFile() {
+        GeoServerResourceLoader loader = GeoServerExtensions.bean(GeoServerResourceLoader.class);
+        cacheFile = new File(loader.getBaseDirectory(),
+                UnsupportedParameterTypeProcessFilter.CACHE_FILE);
+        cacheFile.delete();
+    }
+
+    @Test
+    public void testLazyCheck() throws Exception {
+        TestFilter filter = new TestFilter("1.0");
+        ProcessFactory filtered = filter.filterFactory(factory);
+
+        // only the factory going through the filter has been checked
+        assertEquals(1, filter.checks.size());
+        assertTrue(filter.checks.containsKey(factory));
+        assertEquals(2, filter.supportChecks.get());
+        assertNotNull(filtered);
+        assertEquals(1, filtered.getNames().size());
+        assertTrue(filtered.getNames().contains(getName("SupportedProcess")));
+
+        // checked only once
+        filter.filterFactory(factory);
+        assertEquals(2, filter.supportChecks.get());
+    }
+
+    @Test
+    public void testCacheRoundTrip() throws Exception {
+        TestFilter filter = new TestFilter("1.0");
+        filter.filterFactory(factory);
+        // the results are not written until the background checks are done
+        assertFalse(cacheFile.exists());
+        filter.checksCompleted();
+        assertTrue(cacheFile.exists());
+        Properties props = loadCacheFile();
+        // the fingerprint and the two processes
+        assertEquals(3, props.size());
+        assertTrue(props.containsValue("true"));
+        assertTrue(props.containsValue("false"));
+
+        // a new filter picks the results from the file
+        TestFilter reloaded = new TestFilter("1.0");
+        ProcessFactory filtered = reloaded.filterFactory(factory);
+        assertEquals(0, reloaded.supportChecks.get());
+        assertEquals(1, filtered.getNames().size());
+        assertTrue(filtered.getNames().contains(getName("SupportedProcess")));
+
+        // a new factory version invalidates them
+        TestFilter upgraded = new TestFilter("1.1");
+        upgraded.filterFactory(factory);
+        assertEquals(2, upgraded.supportChecks.get());
+    }
+
+    @Test
+    public void testFingerprintInvalidation() throws Exception {
+        TestFilter filter = new TestFilter("1.0");
+        filter.filterFactory(factory);
+        filter.checksCompleted();
+
+        // simulate a change in the available PPIO
+        Properties props = loadCacheFile();
+        props.setProperty(UnsupportedParameterTypeProcessFilter.FINGERPRINT_KEY, "abcd");
+        FileOutputStream fos = new FileOutputStream(cacheFile);
+        try {
+            props.store(fos, null);
+        } finally {
+            IOUtils.closeQuietly(fos);
+        }
+
+        TestFilter reloaded = new TestFilter("1.0");
+        reloaded.filterFactory(factory);
+        assertEquals(2, reloaded.supportChecks.get());
+    }
+
+    @Test
+    public void testSnapshotNotStored() throws Exception {
+        TestFilter filter = new TestFilter("1.0-SNAPSHOT");
+        filter.filterFactory(factory);
+        filter.checksCompleted();
+        assertFalse(cacheFile.exists());
+
+        filter = new TestFilter(null);
+        filter.filterFactory(factory);
+        filter.checksCompleted();
+        assertFalse(cacheFile.exists());
+    }
+
+    Name getName(String localPart) {
+        for (Name name : factory.getNames()) {
+            if (name.getLocalPart().equals(localPart)) {
+                return name;
+            }
+        }
+        throw new IllegalArgumentException("Could not find process " + localPart);
+    }
+
+    Properties loadCacheFile() throws Exception {
+        Properties props = new Properties();
+        FileInputStream fis = new FileInputStream(cacheFile);
+        try {
+            props.load(fis);
+        } finally {
+            IOUtils.closeQuietly(fis);
+        }
+        return props;
+    }
+}
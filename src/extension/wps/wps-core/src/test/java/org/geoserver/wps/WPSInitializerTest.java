@@ -5,9 +5,11 @@ import static org.junit.Assert.*;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import org.easymock.IArgumentMatcher;
 import org.easymock.internal.LastControl;
+import org.geoserver.catalog.WorkspaceInfo;
 import org.geoserver.config.ConfigurationListener;
 import org.geoserver.config.GeoServer;
 import org.geoserver.wps.executor.DefaultProcessManager;
@@ -91,6 +93,55 @@ public class WPSInitializerTest {
         verify(gs);
     }
 
+    @Test
+    public void testWorkspaceServiceIgnored() throws Exception {
+        WPSExecutionManager execMgr = createNiceMock(WPSExecutionManager.class);
+        DefaultProcessManager procMgr = createMock(DefaultProcessManager.class);
+        WPSStorageCleaner cleaner = createNiceMock(WPSStorageCleaner.class);
+        replay(execMgr, cleaner);
+        WPSInitializer initer = new WPSInitializer(execMgr, procMgr, cleaner);
+
+        GeoServer gs = createMock(GeoServer.class);
+        List<ConfigurationListener> listeners = new ArrayList();
+        gs.addListener(capture(listeners));
+        expectLastCall().atLeastOnce();
+        WPSInfo global = createNiceMock(WPSInfo.class);
+        expect(global.getProcessGroups()).andReturn(WPSInitializer.lookupProcessGroups())
+                .anyTimes();
+        replay(global);
+        expect(gs.getService(WPSInfo.class)).andReturn(global).anyTimes();
+        replay(gs);
+
+        // the startup initialization configures the process manager
+        procMgr.setMaxSynchronousProcesses(anyInt());
+        expectLastCall().anyTimes();
+        procMgr.setMaxAsynchronousProcesses(anyInt());
+        expectLastCall().anyTimes();
+        procMgr.setMaxQueuedSynchronousProcesses(anyInt());
+        expectLastCall().anyTimes();
+        procMgr.setMaxQueuedAsynchronousProcesses(anyInt());
+        expectLastCall().anyTimes();
+        procMgr.setSynchronousQueueTimeout(anyLong());
+        expectLastCall().anyTimes();
+        procMgr.setProcessGroupWeights(anyObject(Map.class));
+        expectLastCall().anyTimes();
+        procMgr.setClientWeights(anyObject(Map.class));
+        expectLastCall().anyTimes();
+        replay(procMgr);
+        initer.initialize(gs);
+        verify(procMgr);
+        assertEquals(1, listeners.size());
+
+        // a workspace specific service change must not touch it
+        reset(procMgr);
+        replay(procMgr);
+        WPSInfo local = createNiceMock(WPSInfo.class);
+        expect(local.getWorkspace()).andReturn(createNiceMock(WorkspaceInfo.class)).anyTimes();
+        replay(local);
+        listeners.get(0).handlePostServiceChange(local);
+        verify(procMgr);
+    }
+
     ConfigurationListener capture(List<ConfigurationListener> listeners) {
         LastControl.reportMatcher(new ListenerCapture(listeners));
         return null;
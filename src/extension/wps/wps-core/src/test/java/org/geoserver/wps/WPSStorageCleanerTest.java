@@ -0,0 +1,153 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WPSStorageCleanerTest {
+
+    static final long DELAY = 10000;
+
+    File root;
+
+    WPSStorageCleaner cleaner;
+
+    long now;
+
+    @Before
+    public void setup() throws IOException {
+        root = File.createTempFile("wps", "storage", new File("target"));
+        root.delete();
+        root.mkdir();
+        cleaner = new WPSStorageCleaner(root);
+        cleaner.setExpirationDelay(DELAY);
+        now = System.currentTimeMillis();
+    }
+
+    @After
+    public void teardown() throws IOException {
+        FileUtils.deleteDirectory(root);
+    }
+
+    File touch(File parent, String name, long time) throws IOException {
+        File file = new File(parent, name);
+        FileUtils.touch(file);
+        file.setLastModified(time);
+        return file;
+    }
+
+    @Test
+    public void testStartupScan() throws Exception {
+        File old = touch(root, "old.txt", now - DELAY * 2);
+        File recent = touch(root, "recent.txt", now);
+
+        cleaner.cleanupExpired(now);
+        assertFalse(old.exists());
+        assertTrue(recent.exists());
+
+        // the recent one is still tracked, and goes away once expired
+        cleaner.cleanupExpired(now + DELAY * 2);
+        assertFalse(recent.exists());
+        assertTrue(cleaner.expirations.isEmpty());
+        assertTrue(cleaner.tracked.isEmpty());
+    }
+
+    @Test
+    public void testTrackedDirectory() throws Exception {
+        cleaner.cleanupExpired(now);
+
+        File directory = new File(root, "execution");
+        directory.mkdir();
+        File old = touch(directory, "old.txt", now - DELAY * 2);
+        File recent = touch(directory, "recent.txt", now);
+        directory.setLastModified(now - DELAY * 2);
+        cleaner.track(directory, now - DELAY * 2);
+
+        // only the old file goes, the directory is kept for the recent one
+        cleaner.cleanupExpired(now);
+        assertFalse(old.exists());
+        assertTrue(recent.exists());
+        assertTrue(directory.exists());
+
+        cleaner.cleanupExpired(now + DELAY * 2);
+        assertFalse(directory.exists());
+        assertTrue(cleaner.tracked.isEmpty());
+    }
+
+    @Test
+    public void testLockedFile() throws Exception {
+        File old = touch(root, "old.txt", now - DELAY * 2);
+        cleaner.lock(old);
+
+        cleaner.cleanupExpired(now);
+        assertTrue(old.exists());
+
+        // retried after the unlock
+        cleaner.unlock(old);
+        cleaner.cleanupExpired(now + WPSStorageCleaner.RETRY_DELAY + 1);
+        assertFalse(old.exists());
+    }
+
+    File write(File parent, String name, int size) throws IOException {
+        File file = new File(parent, name);
+        FileUtils.writeByteArrayToFile(file, new byte[size]);
+        return file;
+    }
+
+    @Test
+    public void testQuotaEviction() throws Exception {
+        cleaner.setMaxStorageSize(250);
+        File first = write(root, "first.bin", 100);
+        cleaner.track(first, now - 2);
+        File second = write(root, "second.bin", 100);
+        cleaner.track(second, now - 1);
+        assertEquals(200, cleaner.getStorageSize());
+
+        // the first one gets downloaded, it's now the most recently used
+        cleaner.touch(first);
+
+        // an execution writes its output, the second result goes away
+        File directory = new File(root, "execution");
+        directory.mkdir();
+        File output = write(directory, "output.bin", 100);
+        cleaner.addUsage(directory, 100);
+        assertTrue(first.exists());
+        assertFalse(second.exists());
+        assertEquals(200, cleaner.getStorageSize());
+
+        // the running execution is not evicted, the first result can't be while downloaded
+        cleaner.lock(first);
+        write(directory, "other.bin", 100);
+        cleaner.addUsage(directory, 100);
+        assertTrue(first.exists());
+        assertTrue(output.exists());
+        assertEquals(300, cleaner.getStorageSize());
+
+        // once the execution completes it's the next candidate
+        cleaner.track(directory, System.currentTimeMillis());
+        assertTrue(first.exists());
+        assertFalse(directory.exists());
+        assertEquals(100, cleaner.getStorageSize());
+    }
+
+    @Test
+    public void testLockCount() throws Exception {
+        File file = touch(root, "file.txt", now);
+        cleaner.lock(file);
+        cleaner.lock(file);
+        cleaner.unlock(file);
+        assertTrue(cleaner.isLocked(file));
+        cleaner.unlock(file);
+        assertFalse(cleaner.isLocked(file));
+    }
+}
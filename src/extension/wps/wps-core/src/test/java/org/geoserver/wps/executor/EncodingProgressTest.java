@@ -0,0 +1,42 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps.executor;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+
+import org.junit.Test;
+
+public class EncodingProgressTest {
+
+    @Test
+    public void testUnknownSize() throws Exception {
+        EncodingProgress progress = new EncodingProgress();
+        progress.addExpected(-1);
+        OutputStream os = progress.wrap(new ByteArrayOutputStream());
+        os.write(new byte[10]);
+        assertEquals(-1f, progress.getRatio(), 0f);
+        assertEquals(10, progress.getWritten());
+    }
+
+    @Test
+    public void testRatio() throws Exception {
+        EncodingProgress progress = new EncodingProgress();
+        progress.addExpected(50);
+        progress.addExpected(50);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        OutputStream os = progress.wrap(bos);
+        os.write(new byte[20], 0, 20);
+        os.write(1);
+        assertEquals(21, bos.size());
+        assertEquals(0.21f, progress.getRatio(), 1e-6);
+
+        // the estimate was too small, but we never claim to be done
+        os.write(new byte[200]);
+        assertEquals(0.99f, progress.getRatio(), 1e-6);
+    }
+}
@@ -0,0 +1,114 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps.executor;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.opengis.ows11.CodeType;
+import net.opengis.ows11.Ows11Factory;
+import net.opengis.wps10.DataInputsType1;
+import net.opengis.wps10.DataType;
+import net.opengis.wps10.ExecuteType;
+import net.opengis.wps10.InputType;
+import net.opengis.wps10.LiteralDataType;
+import net.opengis.wps10.Wps10Factory;
+
+import org.geoserver.ows.util.Ows11Util;
+import org.geoserver.wps.resource.WPSResourceManager;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+public class ExecutionResultCacheTest {
+
+    ExecutionResultCache cache;
+
+    @Before
+    public void setup() {
+        cache = new ExecutionResultCache(new WPSResourceManager());
+        cache.setCacheableProcesses(Collections.singletonList(Ows11Util.name(code("gs:Sum"))));
+    }
+
+    CodeType code(String value) {
+        CodeType code = Ows11Factory.eINSTANCE.createCodeType();
+        code.setValue(value);
+        return code;
+    }
+
+    ExecuteRequest request(String process, String... inputs) {
+        Wps10Factory f = Wps10Factory.eINSTANCE;
+        ExecuteType execute = f.createExecuteType();
+        execute.setIdentifier(code(process));
+        DataInputsType1 dataInputs = f.createDataInputsType1();
+        execute.setDataInputs(dataInputs);
+        for (int i = 0; i < inputs.length; i += 2) {
+            InputType input = f.createInputType();
+            input.setIdentifier(code(inputs[i]));
+            DataType data = f.createDataType();
+            LiteralDataType literal = f.createLiteralDataType();
+            literal.setValue(inputs[i + 1]);
+            data.setLiteralData(literal);
+            input.setData(data);
+            dataInputs.getInput().add(input);
+        }
+        return new ExecuteRequest(execute);
+    }
+
+    @Test
+    public void testKey() throws Exception {
+        String key = cache.getKey(request("gs:Sum", "a", "1", "b", "2"));
+        assertNotNull(key);
+        // input order does not matter
+        assertEquals(key, cache.getKey(request("gs:Sum", "b", "2", "a", "1")));
+        // values do
+        assertFalse(key.equals(cache.getKey(request("gs:Sum", "a", "1", "b", "3"))));
+        // and so does the order of the values of multi valued inputs
+        assertFalse(cache.getKey(request("gs:Sum", "a", "1", "a", "2")).equals(
+                cache.getKey(request("gs:Sum", "a", "2", "a", "1"))));
+        // not cacheable process
+        assertNull(cache.getKey(request("gs:Random", "a", "1")));
+    }
+
+    @Test
+    public void testKeyDependsOnPrincipal() throws Exception {
+        try {
+            String anonymous = cache.getKey(request("gs:Sum", "a", "1"));
+            SecurityContextHolder.getContext().setAuthentication(
+                    new UsernamePasswordAuthenticationToken("cite", "cite", Collections
+                            .singletonList(new SimpleGrantedAuthority("ROLE_A"))));
+            String cite = cache.getKey(request("gs:Sum", "a", "1"));
+            assertFalse(cite.equals(anonymous));
+
+            // same user with different roles might see different data
+            SecurityContextHolder.getContext().setAuthentication(
+                    new UsernamePasswordAuthenticationToken("cite", "cite", Collections
+                            .singletonList(new SimpleGrantedAuthority("ROLE_B"))));
+            assertFalse(cite.equals(cache.getKey(request("gs:Sum", "a", "1"))));
+        } finally {
+            SecurityContextHolder.clearContext();
+        }
+    }
+
+    @Test
+    public void testPutGet() throws Exception {
+        String key = cache.getKey(request("gs:Sum", "a", "1", "b", "2"));
+        Map<String, Object> outputs = new HashMap<String, Object>();
+        outputs.put("result", 3);
+        cache.put(key, outputs);
+        assertEquals(3, cache.get(key).get("result"));
+
+        // non serializable outputs are not cached
+        String otherKey = cache.getKey(request("gs:Sum", "a", "2", "b", "2"));
+        outputs.put("result", new Object());
+        cache.put(otherKey, outputs);
+        assertNull(cache.get(otherKey));
+    }
+}
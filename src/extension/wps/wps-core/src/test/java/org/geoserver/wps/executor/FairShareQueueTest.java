@@ -0,0 +1,142 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps.executor;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class FairShareQueueTest {
+
+    static class ShareTask implements Runnable, FairShareQueue.Task {
+
+        String key;
+
+        int weight;
+
+        String id;
+
+        public ShareTask(String key, int weight, String id) {
+            this.key = key;
+            this.weight = weight;
+            this.id = id;
+        }
+
+        @Override
+        public void run() {
+            // nothing to do
+        }
+
+        @Override
+        public String getShareKey() {
+            return key;
+        }
+
+        @Override
+        public int getShareWeight() {
+            return weight;
+        }
+
+        @Override
+        public String toString() {
+            return id;
+        }
+    }
+
+    @Test
+    public void testFifoWithinShare() throws Exception {
+        FairShareQueue queue = new FairShareQueue();
+        for (int i = 0; i < 5; i++) {
+            queue.offer(new ShareTask("a", 1, "a" + i));
+        }
+        assertEquals(5, queue.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals("a" + i, queue.poll().toString());
+        }
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void testBurstDoesNotStarveOthers() throws Exception {
+        FairShareQueue queue = new FairShareQueue();
+        for (int i = 0; i < 10; i++) {
+            queue.offer(new ShareTask("heavy", 1, "h" + i));
+        }
+        queue.offer(new ShareTask("light", 1, "l0"));
+
+        // the light client gets served right after the first heavy task, not after all of them
+        assertEquals("h0", queue.poll().toString());
+        assertEquals("l0", queue.poll().toString());
+        assertEquals("h1", queue.poll().toString());
+    }
+
+    @Test
+    public void testWeights() throws Exception {
+        FairShareQueue queue = new FairShareQueue();
+        for (int i = 0; i < 9; i++) {
+            queue.offer(new ShareTask("low", 1, "low"));
+            queue.offer(new ShareTask("high", 3, "high"));
+        }
+
+        // over the first 8 dequeues the high weight share should get 3 times the slots
+        int high = 0;
+        for (int i = 0; i < 8; i++) {
+            if ("high".equals(queue.poll().toString())) {
+                high++;
+            }
+        }
+        assertEquals(6, high);
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        FairShareQueue queue = new FairShareQueue();
+        ShareTask t1 = new ShareTask("a", 1, "t1");
+        ShareTask t2 = new ShareTask("a", 1, "t2");
+        queue.offer(t1);
+        queue.offer(t2);
+        assertTrue(queue.remove(t1));
+        assertFalse(queue.remove(t1));
+        assertEquals(1, queue.size());
+        assertSame(t2, queue.poll());
+    }
+
+    @Test
+    public void testPlainRunnablesShareDefault() throws Exception {
+        FairShareQueue queue = new FairShareQueue();
+        Runnable r1 = new ShareTask(null, 1, "r1");
+        queue.offer(r1);
+        assertEquals(1, queue.getQueuedByShare().get(FairShareQueue.DEFAULT_SHARE).intValue());
+
+        List<Runnable> drained = new ArrayList<Runnable>();
+        assertEquals(1, queue.drainTo(drained));
+        assertSame(r1, drained.get(0));
+        assertTrue(queue.getQueuedByShare().isEmpty());
+    }
+
+    @Test
+    public void testCapacity() throws Exception {
+        FairShareQueue queue = new FairShareQueue(2);
+        assertTrue(queue.offer(new ShareTask("a", 1, "t1")));
+        assertTrue(queue.offer(new ShareTask("b", 1, "t2")));
+        assertEquals(0, queue.remainingCapacity());
+        assertFalse(queue.offer(new ShareTask("c", 1, "t3")));
+        assertFalse(queue.offer(new ShareTask("c", 1, "t3"), 10, TimeUnit.MILLISECONDS));
+
+        // making room allows new submissions
+        assertNotNull(queue.poll());
+        assertTrue(queue.offer(new ShareTask("c", 1, "t3")));
+
+        // non positive capacity means unbounded
+        queue.setCapacity(0);
+        assertEquals(Integer.MAX_VALUE, queue.remainingCapacity());
+        assertTrue(queue.offer(new ShareTask("d", 1, "t4")));
+        assertEquals(3, queue.size());
+    }
+}
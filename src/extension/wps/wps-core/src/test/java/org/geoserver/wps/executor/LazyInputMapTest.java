@@ -0,0 +1,191 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps.executor;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.geoserver.wps.WPSException;
+import org.geoserver.wps.resource.WPSResourceManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LazyInputMapTest {
+
+    ThreadPoolExecutor service;
+
+    WPSResourceManager resourceManager;
+
+    String executionId;
+
+    @Before
+    public void setup() {
+        service = (ThreadPoolExecutor) Executors.newFixedThreadPool(4);
+        resourceManager = new WPSResourceManager();
+        executionId = resourceManager.getExecutionId(true);
+    }
+
+    @After
+    public void teardown() {
+        service.shutdownNow();
+    }
+
+    /**
+     * A slow provider that can only complete if the other ones are being retrieved at the same time
+     */
+    static class BarrierProvider implements InputProvider {
+
+        String inputId;
+
+        CyclicBarrier barrier;
+
+        volatile Object value;
+
+        BarrierProvider(String inputId, CyclicBarrier barrier) {
+            this.inputId = inputId;
+            this.barrier = barrier;
+        }
+
+        @Override
+        public Object getValue() throws Exception {
+            if (value == null) {
+                barrier.await(5, TimeUnit.SECONDS);
+                value = inputId;
+            }
+            return value;
+        }
+
+        @Override
+        public String getInputId() {
+            return inputId;
+        }
+
+        @Override
+        public boolean resolved() {
+            return value != null;
+        }
+
+        @Override
+        public boolean longParse() {
+            return true;
+        }
+    }
+
+    @Test
+    public void testParallelPrefetch() throws Exception {
+        CyclicBarrier barrier = new CyclicBarrier(3);
+        Map<String, InputProvider> providers = new HashMap<String, InputProvider>();
+        providers.put("a", new BarrierProvider("a", barrier));
+        ListInputProvider list = new ListInputProvider(new BarrierProvider("b", barrier));
+        list.add(new BarrierProvider("c", barrier));
+        providers.put("b", list);
+        providers.put("s", new StringInputProvider("test", "s"));
+
+        LazyInputMap map = new LazyInputMap(providers);
+        assertEquals(100f / 3, map.getRetrievedInputPercentage(), 0.01f);
+        map.prefetch(service, resourceManager, executionId);
+
+        // all the single values got retrieved, the list is still to be assembled
+        assertEquals(100f, map.getRetrievedInputPercentage(), 0.01f);
+        assertEquals("a", map.get("a"));
+        assertEquals("test", map.get("s"));
+        assertEquals(1f, list.getResolvedRatio(), 0.01f);
+        assertEquals(2, ((List<?>) map.get("b")).size());
+    }
+
+    @Test
+    public void testPrefetchFailure() throws Exception {
+        // the first input fails, the second one is fine
+        Map<String, InputProvider> providers = new HashMap<String, InputProvider>();
+        providers.put("a", new BarrierProvider("a", new CyclicBarrier(2) {
+            @Override
+            public int await(long timeout, TimeUnit unit) {
+                throw new IllegalStateException("Remote server is down");
+            }
+        }));
+        providers.put("b", new BarrierProvider("b", new CyclicBarrier(1)));
+
+        LazyInputMap map = new LazyInputMap(providers);
+        map.prefetch(service, resourceManager, executionId);
+        assertEquals(50f, map.getRetrievedInputPercentage(), 0.01f);
+        assertEquals("b", map.get("b"));
+        try {
+            map.get("a");
+            fail("Should have failed");
+        } catch (WPSException e) {
+            assertEquals("Failed to retrieve value for input a", e.getMessage());
+        }
+    }
+
+    /**
+     * A chained process, prefetching its own inputs when evaluated
+     */
+    class ChainedProvider implements InputProvider {
+
+        String inputId;
+
+        LazyInputMap inputs;
+
+        volatile Object value;
+
+        ChainedProvider(String inputId, LazyInputMap inputs) {
+            this.inputId = inputId;
+            this.inputs = inputs;
+        }
+
+        @Override
+        public Object getValue() throws Exception {
+            if (value == null) {
+                inputs.prefetch(service, resourceManager, executionId);
+                value = inputs.get("a") + "" + inputs.get("b");
+            }
+            return value;
+        }
+
+        @Override
+        public String getInputId() {
+            return inputId;
+        }
+
+        @Override
+        public boolean resolved() {
+            return value != null;
+        }
+
+        @Override
+        public boolean longParse() {
+            return true;
+        }
+    }
+
+    @Test
+    public void testNestedChainsDoNotStarve() throws Exception {
+        // a single thread, a tree of chained processes waiting on each other
+        service.shutdownNow();
+        service = (ThreadPoolExecutor) Executors.newFixedThreadPool(1);
+
+        Map<String, InputProvider> providers = new HashMap<String, InputProvider>();
+        for (String id : new String[] { "a", "b" }) {
+            Map<String, InputProvider> nested = new HashMap<String, InputProvider>();
+            nested.put("a", new BarrierProvider(id + "1", new CyclicBarrier(1)));
+            nested.put("b", new BarrierProvider(id + "2", new CyclicBarrier(1)));
+            providers.put(id, new ChainedProvider(id, new LazyInputMap(nested)));
+        }
+
+        LazyInputMap map = new LazyInputMap(providers);
+        map.prefetch(service, resourceManager, executionId);
+        assertEquals(100f, map.getRetrievedInputPercentage(), 0.01f);
+        assertEquals("a1a2", map.get("a"));
+        assertEquals("b1b2", map.get("b"));
+    }
+}
@@ -0,0 +1,231 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps.executor;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.geoserver.wps.resource.WPSResourceManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RemoteInputCacheTest {
+
+    File storage;
+
+    RemoteInputCache cache;
+
+    StubClient client;
+
+    @Before
+    public void setup() throws Exception {
+        storage = File.createTempFile("remote", "cache", new File("target"));
+        storage.delete();
+        storage.mkdir();
+        cache = new RemoteInputCache(new WPSResourceManager() {
+            @Override
+            public File getWpsOutputStorage() {
+                return storage;
+            }
+
+            @Override
+            public void scheduleExpiration(File file) {
+                // no cleaner around
+            }
+        });
+        cache.setMaxEntries(2);
+        client = new StubClient();
+    }
+
+    @After
+    public void teardown() throws Exception {
+        FileUtils.deleteQuietly(storage);
+    }
+
+    /**
+     * Returns the configured response, recording the requests it receives
+     */
+    static class StubClient extends HttpClient {
+
+        int code = HttpStatus.SC_OK;
+
+        String body;
+
+        Map<String, String> headers = new HashMap<String, String>();
+
+        List<HttpMethod> requests = new ArrayList<HttpMethod>();
+
+        @Override
+        public int executeMethod(HttpMethod method) throws IOException {
+            requests.add(method);
+            StubMethod stub = (StubMethod) method;
+            stub.body = body;
+            stub.headers = new HashMap<String, String>(headers);
+            return code;
+        }
+    }
+
+    static class StubMethod extends GetMethod {
+
+        String body;
+
+        Map<String, String> headers;
+
+        public StubMethod(String uri) {
+            super(uri);
+        }
+
+        @Override
+        public Header getResponseHeader(String headerName) {
+            String value = headers.get(headerName);
+            return value == null ? null : new Header(headerName, value);
+        }
+
+        @Override
+        public InputStream getResponseBodyAsStream() throws IOException {
+            return new ByteArrayInputStream(body.getBytes("UTF-8"));
+        }
+    }
+
+    String read(InputStream is) throws IOException {
+        try {
+            return IOUtils.toString(is, "UTF-8");
+        } finally {
+            is.close();
+        }
+    }
+
+    @Test
+    public void testNotModifiedReuse() throws Exception {
+        client.body = "first";
+        client.headers.put(RemoteInputCache.ETAG, "\"v1\"");
+        assertEquals("first", read(cache.get(client, new StubMethod("http://host/data"))));
+
+        // the server says nothing changed, the local copy is used
+        client.code = HttpStatus.SC_NOT_MODIFIED;
+        client.body = "";
+        StubMethod method = new StubMethod("http://host/data");
+        assertEquals("first", read(cache.get(client, method)));
+        assertEquals("\"v1\"", method.getRequestHeader("If-None-Match").getValue());
+        assertEquals(2, client.requests.size());
+    }
+
+    @Test
+    public void testValidatorsStored() throws Exception {
+        client.body = "data";
+        client.headers.put(RemoteInputCache.ETAG, "\"v1\"");
+        client.headers.put(RemoteInputCache.LAST_MODIFIED, "Wed, 21 Oct 2015 07:28:00 GMT");
+        StubMethod method = new StubMethod("http://host/data");
+        read(cache.get(client, method));
+
+        String key = cache.getKey(method);
+        File directory = cache.getCacheDirectory();
+        File info = new File(directory, key + RemoteInputCache.INFO_EXTENSION);
+        File data = new File(directory, key + RemoteInputCache.DATA_EXTENSION);
+        Properties validators = cache.readValidators(info, data);
+        assertEquals("\"v1\"", validators.getProperty(RemoteInputCache.ETAG));
+        assertEquals("Wed, 21 Oct 2015 07:28:00 GMT",
+                validators.getProperty(RemoteInputCache.LAST_MODIFIED));
+        assertEquals("data", FileUtils.readFileToString(data, "UTF-8"));
+
+        // the next request is a conditional one
+        client.code = HttpStatus.SC_NOT_MODIFIED;
+        method = new StubMethod("http://host/data");
+        read(cache.get(client, method));
+        assertEquals("Wed, 21 Oct 2015 07:28:00 GMT", method.getRequestHeader(
+                "If-Modified-Since").getValue());
+    }
+
+    @Test
+    public void testNoValidatorsNotCached() throws Exception {
+        client.body = "data";
+        assertEquals("data", read(cache.get(client, new StubMethod("http://host/data"))));
+        File[] files = cache.getCacheDirectory().listFiles();
+        assertTrue(files == null || files.length == 0);
+    }
+
+    @Test
+    public void testKeyDependsOnHeaders() throws Exception {
+        StubMethod m1 = new StubMethod("http://host/data");
+        m1.setRequestHeader("Authorization", "Basic dXNlcjE6cHdk");
+        StubMethod m2 = new StubMethod("http://host/data");
+        m2.setRequestHeader("Authorization", "Basic dXNlcjI6cHdk");
+        StubMethod m3 = new StubMethod("http://host/data");
+        m3.setRequestHeader("Authorization", "Basic dXNlcjE6cHdk");
+        assertFalse(cache.getKey(m1).equals(cache.getKey(m2)));
+        assertEquals(cache.getKey(m1), cache.getKey(m3));
+
+        // a different user does not get the copy cached for the first one
+        client.body = "user1";
+        client.headers.put(RemoteInputCache.ETAG, "\"v1\"");
+        read(cache.get(client, m1));
+        client.body = "user2";
+        assertEquals("user2", read(cache.get(client, m2)));
+        assertNull(m2.getRequestHeader("If-None-Match"));
+    }
+
+    @Test
+    public void testPruneLeastRecentlyUsed() throws Exception {
+        client.headers.put(RemoteInputCache.ETAG, "\"v1\"");
+        List<String> keys = new ArrayList<String>();
+        long time = System.currentTimeMillis() - 100000;
+        for (int i = 0; i < 3; i++) {
+            client.body = "data" + i;
+            StubMethod method = new StubMethod("http://host/data" + i);
+            read(cache.get(client, method));
+            String key = cache.getKey(method);
+            keys.add(key);
+            // make the entries age in order, the first one is the least recently used
+            new File(cache.getCacheDirectory(), key + RemoteInputCache.DATA_EXTENSION)
+                    .setLastModified(time + i * 10000);
+        }
+
+        // storing the third entry evicted the first one
+        File directory = cache.getCacheDirectory();
+        assertFalse(new File(directory, keys.get(0) + RemoteInputCache.DATA_EXTENSION).exists());
+        assertFalse(new File(directory, keys.get(0) + RemoteInputCache.INFO_EXTENSION).exists());
+        assertTrue(new File(directory, keys.get(1) + RemoteInputCache.DATA_EXTENSION).exists());
+        assertTrue(new File(directory, keys.get(2) + RemoteInputCache.DATA_EXTENSION).exists());
+    }
+
+    @Test
+    public void testStoreFailureServesDownload() throws Exception {
+        StubMethod method = new StubMethod("http://host/data");
+        String key = cache.getKey(method);
+        File directory = cache.getCacheDirectory();
+        assertTrue(directory.mkdirs());
+        // a non empty directory in place of the data file makes the rename fail
+        File data = new File(directory, key + RemoteInputCache.DATA_EXTENSION);
+        assertTrue(data.mkdir());
+        assertTrue(new File(data, "blocker").createNewFile());
+
+        client.body = "data";
+        client.headers.put(RemoteInputCache.ETAG, "\"v1\"");
+        assertEquals("data", read(cache.get(client, method)));
+
+        // nothing cached, and no temporary files left behind
+        assertFalse(new File(directory, key + RemoteInputCache.INFO_EXTENSION).exists());
+        for (File file : directory.listFiles()) {
+            assertFalse(file.getName(), file.getName().endsWith(".tmp"));
+        }
+    }
+}
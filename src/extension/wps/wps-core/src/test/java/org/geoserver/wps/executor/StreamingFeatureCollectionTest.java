@@ -0,0 +1,207 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps.executor;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.geoserver.wps.resource.WPSResource;
+import org.geoserver.wps.resource.WPSResourceManager;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.DefaultFeatureCollection;
+import org.geotools.feature.collection.DecoratingSimpleFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.process.ProcessException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+public class StreamingFeatureCollectionTest {
+
+    ExecutorService executor;
+
+    DefaultFeatureCollection features;
+
+    @Before
+    public void setup() {
+        executor = Executors.newCachedThreadPool();
+
+        SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+        tb.setName("test");
+        tb.add("value", Integer.class);
+        SimpleFeatureType type = tb.buildFeatureType();
+        SimpleFeatureBuilder fb = new SimpleFeatureBuilder(type);
+        features = new DefaultFeatureCollection(null, type);
+        for (int i = 0; i < 10; i++) {
+            fb.add(i);
+            features.add(fb.buildFeature("test." + i));
+        }
+    }
+
+    @After
+    public void teardown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Counts down a latch once all features have been read
+     */
+    static class ObservedCollection extends DecoratingSimpleFeatureCollection {
+
+        CountDownLatch produced = new CountDownLatch(1);
+
+        RuntimeException failure;
+
+        protected ObservedCollection(SimpleFeatureCollection delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public SimpleFeatureIterator features() {
+            final SimpleFeatureIterator it = delegate.features();
+            return new SimpleFeatureIterator() {
+
+                @Override
+                public boolean hasNext() {
+                    boolean result = it.hasNext();
+                    if (!result) {
+                        if (failure != null) {
+                            throw failure;
+                        }
+                        produced.countDown();
+                    }
+                    return result;
+                }
+
+                @Override
+                public SimpleFeature next() {
+                    return it.next();
+                }
+
+                @Override
+                public void close() {
+                    it.close();
+                }
+            };
+        }
+    }
+
+    @Test
+    public void testLazy() throws Exception {
+        assertFalse(StreamingFeatureCollection.isLazy(features));
+        assertFalse(StreamingFeatureCollection.isLazy(new ListFeatureCollection(features
+                .getSchema())));
+        assertTrue(StreamingFeatureCollection.isLazy(new ObservedCollection(features)));
+    }
+
+    @Test
+    public void testProducerRunsAhead() throws Exception {
+        ObservedCollection observed = new ObservedCollection(features);
+        StreamingFeatureCollection streaming = new StreamingFeatureCollection(observed, executor,
+                null, null, 100);
+
+        SimpleFeatureIterator it = streaming.features();
+        try {
+            assertTrue(it.hasNext());
+            assertEquals("test.0", it.next().getID());
+            // the child collection got fully read in the background while we were still at
+            // the first feature
+            assertTrue(observed.produced.await(5, TimeUnit.SECONDS));
+            int count = 1;
+            while (it.hasNext()) {
+                assertEquals("test." + count, it.next().getID());
+                count++;
+            }
+            assertEquals(10, count);
+        } finally {
+            it.close();
+        }
+
+        // the second iteration goes straight to the delegate
+        assertEquals(10, streaming.size());
+        SimpleFeatureIterator direct = streaming.features();
+        try {
+            assertFalse(direct instanceof StreamingFeatureCollection.QueueIterator);
+        } finally {
+            direct.close();
+        }
+    }
+
+    @Test
+    public void testBoundedBuffer() throws Exception {
+        ObservedCollection observed = new ObservedCollection(features);
+        StreamingFeatureCollection streaming = new StreamingFeatureCollection(observed, executor,
+                null, null, 2);
+
+        SimpleFeatureIterator it = streaming.features();
+        try {
+            assertTrue(it.hasNext());
+            // the producer cannot go further than the buffer size
+            assertFalse(observed.produced.await(200, TimeUnit.MILLISECONDS));
+        } finally {
+            // closing early releases the producer
+            it.close();
+        }
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        ObservedCollection observed = new ObservedCollection(features);
+        observed.failure = new IllegalStateException("Boom");
+        StreamingFeatureCollection streaming = new StreamingFeatureCollection(observed, executor,
+                null, null, 100);
+
+        SimpleFeatureIterator it = streaming.features();
+        try {
+            while (it.hasNext()) {
+                it.next();
+            }
+            fail("Should have failed");
+        } catch (ProcessException e) {
+            assertEquals("Boom", e.getCause().getMessage());
+        } finally {
+            it.close();
+        }
+    }
+
+    @Test
+    public void testAbandonedIterator() throws Exception {
+        final List<WPSResource> resources = new CopyOnWriteArrayList<WPSResource>();
+        WPSResourceManager manager = new WPSResourceManager() {
+            @Override
+            public void addResource(String executionId, WPSResource resource) {
+                super.addResource(executionId, resource);
+                resources.add(resource);
+            }
+        };
+        String executionId = manager.getExecutionId(true);
+        try {
+            ObservedCollection observed = new ObservedCollection(features);
+            StreamingFeatureCollection streaming = new StreamingFeatureCollection(observed,
+                    executor, manager, executionId, 2);
+
+            SimpleFeatureIterator it = streaming.features();
+            assertTrue(it.hasNext());
+            // the iterator is not closed, the execution cleanup releases the producer
+            assertEquals(1, resources.size());
+            resources.get(0).delete();
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        } finally {
+            manager.clearCurrentExecutionId();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps.ppio;
+
+import static org.junit.Assert.*;
+import it.geosolutions.imageioimpl.plugins.tiff.TIFFImageReader;
+import it.geosolutions.imageioimpl.plugins.tiff.TIFFImageReaderSpi;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.junit.Test;
+
+public class CloudOptimizedGeoTiffEncoderTest {
+
+    @Test
+    public void testOverviewCount() {
+        CloudOptimizedGeoTiffEncoder encoder = new CloudOptimizedGeoTiffEncoder();
+        encoder.setTileSize(256);
+        assertEquals(0, encoder.getOverviewCount(256, 100));
+        assertEquals(1, encoder.getOverviewCount(257, 100));
+        assertEquals(3, encoder.getOverviewCount(2000, 1000));
+
+        encoder.setOverviews(1);
+        assertEquals(1, encoder.getOverviewCount(2000, 1000));
+    }
+
+    @Test
+    public void testSettings() {
+        CloudOptimizedGeoTiffEncoder encoder = new CloudOptimizedGeoTiffEncoder();
+        encoder.setTileSize(100);
+        assertEquals(112, encoder.tileSize);
+        encoder.setCompression("lzw");
+        assertEquals("LZW", encoder.compression);
+        encoder.setCompression("jpeg2000");
+        assertEquals("Deflate", encoder.compression);
+    }
+
+    @Test
+    public void testEncodeOverviews() throws Exception {
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_BYTE_GRAY);
+        GridCoverage2D coverage = new GridCoverageFactory().create("test", image,
+                new ReferencedEnvelope(0, 10, 0, 10, DefaultGeographicCRS.WGS84));
+
+        CloudOptimizedGeoTiffEncoder encoder = new CloudOptimizedGeoTiffEncoder();
+        encoder.setTileSize(64);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        encoder.encode(coverage, bos);
+
+        TIFFImageReader reader = (TIFFImageReader) new TIFFImageReaderSpi()
+                .createReaderInstance();
+        ImageInputStream iis = new MemoryCacheImageInputStream(new ByteArrayInputStream(
+                bos.toByteArray()));
+        try {
+            reader.setInput(iis);
+            assertEquals(3, reader.getNumImages(true));
+            assertEquals(256, reader.getWidth(0));
+            assertEquals(128, reader.getWidth(1));
+            assertEquals(64, reader.getWidth(2));
+            assertEquals(64, reader.getTileWidth(2));
+        } finally {
+            reader.dispose();
+            iis.close();
+        }
+    }
+
+    @Test
+    public void testEncodePaletteOverviews() throws Exception {
+        // each level is computed from the previous one, make sure the palette survives the chain
+        BufferedImage image = new BufferedImage(512, 256, BufferedImage.TYPE_BYTE_INDEXED);
+        GridCoverage2D coverage = new GridCoverageFactory().create("test", image,
+                new ReferencedEnvelope(0, 20, 0, 10, DefaultGeographicCRS.WGS84));
+
+        CloudOptimizedGeoTiffEncoder encoder = new CloudOptimizedGeoTiffEncoder();
+        encoder.setTileSize(64);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        encoder.encode(coverage, bos);
+
+        TIFFImageReader reader = (TIFFImageReader) new TIFFImageReaderSpi()
+                .createReaderInstance();
+        ImageInputStream iis = new MemoryCacheImageInputStream(new ByteArrayInputStream(
+                bos.toByteArray()));
+        try {
+            reader.setInput(iis);
+            assertEquals(4, reader.getNumImages(true));
+            assertEquals(256, reader.getWidth(1));
+            assertEquals(128, reader.getWidth(2));
+            assertEquals(64, reader.getWidth(3));
+            assertEquals(32, reader.getHeight(3));
+            assertTrue(reader.getImageTypes(3).next().getColorModel() instanceof IndexColorModel);
+        } finally {
+            reader.dispose();
+            iis.close();
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps.ppio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.geoserver.platform.GeoServerExtensions;
+import org.geotools.data.Parameter;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.support.StaticApplicationContext;
+
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Polygon;
+
+public class PPIORegistryTest {
+
+    static class TestPPIO extends ComplexPPIO {
+
+        TestPPIO(Class<?> type, String mimeType, String identifier) {
+            super(type, type, mimeType);
+            this.identifer = identifier;
+        }
+
+        @Override
+        public Object decode(InputStream input) throws Exception {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void encode(Object value, OutputStream os) throws Exception {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String getFileExtension() {
+            return "test";
+        }
+    }
+
+    StaticApplicationContext context;
+
+    @Before
+    public void setupContext() {
+        context = new StaticApplicationContext();
+        context.registerSingleton("ppioRegistry", PPIORegistry.class);
+        // a more specific type, a mime type shared with a default PPIO, and an identifier match
+        context.getBeanFactory().registerSingleton("polygonPPIO",
+                new TestPPIO(Polygon.class, "application/test-polygon", null));
+        context.getBeanFactory().registerSingleton("wktClashPPIO",
+                new TestPPIO(Geometry.class, "application/wkt", null));
+        context.getBeanFactory().registerSingleton("namedPPIO",
+                new TestPPIO(Geometry.class, "application/test-named", "named"));
+        context.refresh();
+    }
+
+    @After
+    public void closeContext() {
+        context.close();
+    }
+
+    @Test
+    public void testSameAsUncachedLookup() {
+        List<Parameter<?>> parameters = new ArrayList<Parameter<?>>();
+        parameters.add(new Parameter<Geometry>("geom", Geometry.class));
+        parameters.add(new Parameter<Polygon>("polygon", Polygon.class));
+        parameters.add(new Parameter<Geometry>("named", Geometry.class));
+        parameters.add(new Parameter<SimpleFeatureCollection>("features",
+                SimpleFeatureCollection.class));
+        parameters.add(new Parameter<ReferencedEnvelope>("bbox", ReferencedEnvelope.class));
+        parameters.add(new Parameter<String>("text", String.class));
+        parameters.add(new Parameter<Double>("number", Double.class));
+        parameters.add(new Parameter<Thread>("unsupported", Thread.class));
+
+        for (Parameter<?> p : parameters) {
+            List<ProcessParameterIO> expected = uncachedFindAll(p);
+            // twice, the second time comes from the cache
+            for (int i = 0; i < 2; i++) {
+                assertEquals(p.key, expected, ProcessParameterIO.findAll(p, context));
+
+                List<String> mimeTypes = new ArrayList<String>(Arrays.asList(null,
+                        "application/unknown"));
+                for (ProcessParameterIO ppio : expected) {
+                    if (ppio instanceof ComplexPPIO) {
+                        mimeTypes.add(((ComplexPPIO) ppio).getMimeType());
+                    }
+                }
+                for (String mime : mimeTypes) {
+                    assertSame(p.key + "/" + mime, uncachedFind(p, mime),
+                            ProcessParameterIO.find(p, context, mime));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMimeAndHierarchy() {
+        // the first PPIO with the mime type wins
+        Parameter<Geometry> geom = new Parameter<Geometry>("geom", Geometry.class);
+        ProcessParameterIO wkt = ProcessParameterIO.find(geom, context, "application/wkt");
+        assertFalse(wkt instanceof TestPPIO);
+
+        // the most specific type is preferred when the mime type is not found
+        Parameter<Polygon> polygon = new Parameter<Polygon>("polygon", Polygon.class);
+        ProcessParameterIO fallback = ProcessParameterIO.find(polygon, context,
+                "application/unknown");
+        assertEquals(Polygon.class, fallback.getType());
+
+        // the identifier match excludes the others
+        Parameter<Geometry> named = new Parameter<Geometry>("named", Geometry.class);
+        List<ProcessParameterIO> matches = ProcessParameterIO.findAll(named, context);
+        assertEquals(1, matches.size());
+        assertSame(context.getBean("namedPPIO"), matches.get(0));
+    }
+
+    @Test
+    public void testFindAllReturnsCopies() {
+        Parameter<Geometry> geom = new Parameter<Geometry>("geom", Geometry.class);
+        List<ProcessParameterIO> first = ProcessParameterIO.findAll(geom, context);
+        int size = first.size();
+        assertTrue(size > 1);
+        first.clear();
+
+        List<ProcessParameterIO> second = ProcessParameterIO.findAll(geom, context);
+        assertNotSame(first, second);
+        assertEquals(size, second.size());
+        // sorting the result, as the old code did, does not affect the cached lookup either
+        ProcessParameterIO.sortByHierarchy(second);
+        assertEquals(uncachedFindAll(geom), ProcessParameterIO.findAll(geom, context));
+    }
+
+    @Test
+    public void testRefreshDropsLookups() {
+        Parameter<Polygon> polygon = new Parameter<Polygon>("polygon", Polygon.class);
+        PPIORegistry registry = context.getBean(PPIORegistry.class);
+        ProcessParameterIO.findAll(polygon, context);
+        assertTrue(registry.index != null);
+
+        context.publishEvent(new ContextRefreshedEvent(context));
+        assertTrue(registry.index == null);
+    }
+
+    /**
+     * The lookup as it was done before the registry caching
+     */
+    List<ProcessParameterIO> uncachedFindAll(Parameter<?> p) {
+        List<ProcessParameterIO> l = new ArrayList<ProcessParameterIO>(ProcessParameterIO.defaults);
+        l.addAll(GeoServerExtensions.extensions(ProcessParameterIO.class, context));
+
+        List<ProcessParameterIO> matches = new ArrayList<ProcessParameterIO>();
+        for (ProcessParameterIO ppio : l) {
+            if (ppio.getIdentifer() != null && ppio.getIdentifer().equals(p.key)
+                    && ppio.getType().isAssignableFrom(p.type)) {
+                matches.add(ppio);
+            }
+        }
+        if (matches.isEmpty()) {
+            for (ProcessParameterIO ppio : l) {
+                if (ppio.getType().isAssignableFrom(p.type)) {
+                    matches.add(ppio);
+                }
+            }
+        }
+        return matches;
+    }
+
+    ProcessParameterIO uncachedFind(Parameter<?> p, String mime) {
+        List<ProcessParameterIO> all = uncachedFindAll(p);
+        if (all.isEmpty()) {
+            return null;
+        }
+        if (mime != null) {
+            for (ProcessParameterIO ppio : all) {
+                if (ppio instanceof ComplexPPIO && ((ComplexPPIO) ppio).getMimeType().equals(mime)) {
+                    return ppio;
+                }
+            }
+        }
+        Collections.sort(all, new Comparator<ProcessParameterIO>() {
+            public int compare(ProcessParameterIO o1, ProcessParameterIO o2) {
+                Class<?> c1 = o1.getType();
+                Class<?> c2 = o2.getType();
+                if (c1.equals(c2)) {
+                    return 0;
+                }
+                if (c1.isAssignableFrom(c2)) {
+                    return 1;
+                }
+                return -1;
+            }
+        });
+        return all.get(0);
+    }
+}
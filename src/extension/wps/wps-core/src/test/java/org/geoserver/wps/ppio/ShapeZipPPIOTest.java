@@ -0,0 +1,93 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps.ppio;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ShapeZipPPIOTest {
+
+    File root;
+
+    File target;
+
+    @Before
+    public void setup() throws Exception {
+        root = File.createTempFile("shapezip", "test", new File("target"));
+        root.delete();
+        target = new File(root, "extracted");
+        assertTrue(target.mkdirs());
+    }
+
+    @After
+    public void teardown() throws Exception {
+        FileUtils.deleteQuietly(root);
+    }
+
+    byte[] zip(String... names) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ZipOutputStream zos = new ZipOutputStream(bos);
+        for (String name : names) {
+            zos.putNextEntry(new ZipEntry(name));
+            if (!name.endsWith("/")) {
+                zos.write(name.getBytes("UTF-8"));
+            }
+            zos.closeEntry();
+        }
+        zos.close();
+        return bos.toByteArray();
+    }
+
+    Set<String> list(File directory) {
+        return new HashSet<String>(Arrays.asList(directory.list()));
+    }
+
+    @Test
+    public void testExtractionFiltering() throws Exception {
+        byte[] data = zip("states.shp", "states.SHX", "states.dbf", "states.prj", "states.cpg",
+                "readme.txt", "states.shp.xml", ".states.prj", "__MACOSX/", "docs/");
+        File shp = new ShapeZipPPIO(null).unzip(new ByteArrayInputStream(data), target);
+
+        assertEquals(new File(target, "states.shp"), shp);
+        assertEquals(new HashSet<String>(Arrays.asList("states.shp", "states.SHX", "states.dbf",
+                "states.prj", "states.cpg")), list(target));
+        assertEquals("states.dbf", FileUtils.readFileToString(new File(target, "states.dbf"),
+                "UTF-8"));
+    }
+
+    @Test
+    public void testNoShapefile() throws Exception {
+        byte[] data = zip("readme.txt", "states.dbf");
+        assertNull(new ShapeZipPPIO(null).unzip(new ByteArrayInputStream(data), target));
+    }
+
+    @Test
+    public void testPathsFlattened() throws Exception {
+        byte[] data = zip("data/nested/states.shp", "../states.shx", "../../../states.dbf",
+                "/tmp/states.prj");
+        File shp = new ShapeZipPPIO(null).unzip(new ByteArrayInputStream(data), target);
+
+        // everything ends up straight in the target directory, nothing escapes it
+        assertEquals(new File(target, "states.shp"), shp);
+        assertEquals(new HashSet<String>(Arrays.asList("states.shp", "states.shx", "states.dbf",
+                "states.prj")), list(target));
+        assertEquals(new HashSet<String>(Arrays.asList("extracted")), list(root));
+        assertEquals("../states.shx", FileUtils.readFileToString(new File(target, "states.shx"),
+                "UTF-8"));
+    }
+}
@@ -0,0 +1,56 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps.ppio;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class StagedInputTest {
+
+    @Test
+    public void testSmallInMemory() throws Exception {
+        byte[] data = new byte[1000];
+        data[999] = 1;
+        StagedInput staged = StagedInput.stage(new ByteArrayInputStream(data), ".bin");
+        assertTrue(staged.isInMemory());
+        assertNull(staged.file);
+        assertArrayEquals(data, IOUtils.toByteArray(staged.getMemoryStream()));
+    }
+
+    @Test
+    public void testLargeOnDisk() throws Exception {
+        byte[] data = new byte[StagedInput.MEMORY_THRESHOLD + 10000];
+        data[data.length - 1] = 1;
+        StagedInput staged = StagedInput.stage(new ByteArrayInputStream(data), ".bin");
+        try {
+            assertFalse(staged.isInMemory());
+            assertTrue(staged.file.getName().endsWith(".bin"));
+            assertArrayEquals(data, FileUtils.readFileToByteArray(staged.file));
+        } finally {
+            staged.file.delete();
+        }
+    }
+
+    @Test
+    public void testFileReference() throws Exception {
+        File file = File.createTempFile("staged", ".bin", new File("target"));
+        FileUtils.writeByteArrayToFile(file, new byte[10]);
+        FileReferenceInputStream fis = new FileReferenceInputStream(file);
+        try {
+            StagedInput staged = StagedInput.stage(fis, ".bin");
+            assertFalse(staged.isInMemory());
+            assertEquals(file, staged.file);
+        } finally {
+            fis.close();
+            file.delete();
+        }
+    }
+}
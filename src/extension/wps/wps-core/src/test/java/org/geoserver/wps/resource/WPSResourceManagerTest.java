@@ -4,8 +4,19 @@
  */
 package org.geoserver.wps.resource;
 
+import static org.junit.Assert.*;
+
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.geoserver.wps.WPSStorageCleaner;
 import org.geoserver.wps.WPSTestSupport;
 import org.junit.Before;
 import org.junit.Test;
@@ -24,4 +35,103 @@ public class WPSResourceManagerTest extends WPSTestSupport {
         File f = File.createTempFile("dummy", "dummy", new File("target"));
         resourceMgr.addResource(new WPSFileResource(f));
     }
+
+    @Test
+    public void testShardedLayout() throws Exception {
+        String id = UUID.randomUUID().toString();
+        File storage = resourceMgr.getWpsOutputStorage();
+        File output = resourceMgr.getOutputFile(id, "result.txt");
+        File expected = new File(new File(new File(storage, id.substring(0, 2)),
+                id.substring(2, 4)), id);
+        assertEquals(expected, output.getParentFile());
+        assertTrue(expected.exists());
+        assertEquals(new File(expected.getParentFile(), id + ".xml"),
+                resourceMgr.getStoredResponseFile(id));
+    }
+
+    @Test
+    public void testLegacyLayout() throws Exception {
+        String id = UUID.randomUUID().toString();
+        File storage = resourceMgr.getWpsOutputStorage();
+        File legacy = new File(storage, id);
+        assertTrue(legacy.mkdir());
+        File legacyResponse = new File(storage, id + ".xml");
+        assertTrue(legacyResponse.createNewFile());
+
+        assertEquals(legacy, resourceMgr.getExecutionDirectory(id));
+        assertEquals(new File(legacy, "result.txt"), resourceMgr.getOutputFile(id, "result.txt"));
+        assertEquals(legacyResponse, resourceMgr.getStoredResponseFile(id));
+    }
+
+    @Test
+    public void testExpirationTracksClusterOutputs() throws Exception {
+        final List<File> tracked = new ArrayList<File>();
+        resourceMgr.setStorageCleaner(new WPSStorageCleaner(resourceMgr.getWpsOutputStorage()) {
+            @Override
+            public void track(File file, long time) {
+                tracked.add(file);
+            }
+        });
+
+        // the cluster process manager moves the result next to the stored response
+        String id = UUID.randomUUID().toString();
+        File directory = resourceMgr.getOutputFile(id, "result.txt").getParentFile();
+        File response = resourceMgr.getStoredResponseFile(id);
+        assertTrue(response.createNewFile());
+        File zip = new File(response.getParentFile(), id + ".zip");
+        assertTrue(zip.createNewFile());
+        File other = new File(response.getParentFile(), UUID.randomUUID() + ".zip");
+        assertTrue(other.createNewFile());
+
+        resourceMgr.scheduleExpiration(id, System.currentTimeMillis());
+        assertEquals(3, tracked.size());
+        assertTrue(tracked.contains(directory));
+        assertTrue(tracked.contains(response));
+        assertTrue(tracked.contains(zip));
+    }
+
+    @Test
+    public void testConcurrentResources() throws Exception {
+        final String id = resourceMgr.getExecutionId(true);
+        final AtomicInteger deleted = new AtomicInteger();
+        final int threads = 8;
+        final int resources = 200;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+
+                    @Override
+                    public Void call() throws Exception {
+                        resourceMgr.setCurrentExecutionId(id);
+                        for (int j = 0; j < resources; j++) {
+                            resourceMgr.addResource(new WPSResource() {
+
+                                @Override
+                                public void delete() throws Exception {
+                                    deleted.incrementAndGet();
+                                }
+
+                                @Override
+                                public String getName() {
+                                    return "counter";
+                                }
+                            });
+                        }
+                        return null;
+                    }
+                }));
+            }
+            // clean up while the other threads are still adding
+            resourceMgr.cleanProcess(id);
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+            resourceMgr.cleanProcess(id);
+            assertEquals(threads * resources, deleted.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 }
@@ -0,0 +1,38 @@
+/* Copyright (c) 2014 OpenPlans - www.openplans.org. All rights reserved.
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps.response;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class StoredFileResponseTest {
+
+    @Test
+    public void testParseRange() {
+        assertArrayEquals(new long[] { 0, 99 }, StoredFileResponse.parseRange("bytes=0-99", 1000));
+        assertArrayEquals(new long[] { 500, 999 }, StoredFileResponse.parseRange("bytes=500-", 1000));
+        assertArrayEquals(new long[] { 900, 999 }, StoredFileResponse.parseRange("bytes=-100", 1000));
+        // clipped to the file size
+        assertArrayEquals(new long[] { 900, 999 }, StoredFileResponse.parseRange("bytes=900-5000", 1000));
+        assertArrayEquals(new long[] { 0, 999 }, StoredFileResponse.parseRange("bytes=-5000", 1000));
+    }
+
+    @Test
+    public void testIgnoredRange() {
+        // invalid or multiple ranges, the whole file is returned
+        assertSame(StoredFileResponse.FULL_CONTENT, StoredFileResponse.parseRange("items=0-1", 1000));
+        assertSame(StoredFileResponse.FULL_CONTENT, StoredFileResponse.parseRange("bytes=abc", 1000));
+        assertSame(StoredFileResponse.FULL_CONTENT, StoredFileResponse.parseRange("bytes=10-5", 1000));
+        assertSame(StoredFileResponse.FULL_CONTENT, StoredFileResponse.parseRange("bytes=0-1,5-6", 1000));
+    }
+
+    @Test
+    public void testUnsatisfiableRange() {
+        assertNull(StoredFileResponse.parseRange("bytes=1000-", 1000));
+        assertNull(StoredFileResponse.parseRange("bytes=-0", 1000));
+        assertNull(StoredFileResponse.parseRange("bytes=-10", 0));
+    }
+}